@@ -0,0 +1,196 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.PluginUser;
+import com.google.gerrit.server.account.GroupBackend;
+import com.google.gerrit.server.account.GroupIncludeCache;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.googlesource.gerrit.plugins.replication.CredentialsFactory;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Source wired to in-memory collaborators, for benchmarking its bookkeeping.
+ *
+ * <p>The projects are not cached locally, as on a replica being populated with
+ * createMissingRepositories, so that their replication is not subject to any permission check.
+ *
+ * <p>The collaborators invoked while scheduling are not Mockito mocks, whose invocations capture a
+ * stack trace and would dominate the measurements.
+ */
+class BenchmarkSource {
+  static final String REMOTE_NAME = "benchmark";
+
+  final Source source;
+  final FetchOne.Factory opFactory;
+
+  /**
+   * Create a source from the URLs of a remote, queuing its fetches without ever running them.
+   *
+   * @param urls URLs of the remote, as in {@code remote.NAME.url}.
+   */
+  BenchmarkSource(String... urls) throws Exception {
+    this(
+        schedulingConfig(urls),
+        stub(GitRepositoryManager.class),
+        new DiscardingExecutor(),
+        new ReplicationStateListeners(DynamicSet.emptySet()));
+  }
+
+  /**
+   * Create a source running its fetches.
+   *
+   * @param cfg replication configuration, with the {@link #REMOTE_NAME} remote.
+   * @param gitManager manager of the local repositories to fetch into.
+   * @param pool executor of the fetches of the source.
+   * @param stateLog listeners of the replication errors.
+   */
+  BenchmarkSource(
+      Config cfg,
+      GitRepositoryManager gitManager,
+      ScheduledExecutorService pool,
+      ReplicationStateListeners stateLog)
+      throws Exception {
+    SourceConfiguration config = new SourceConfiguration(new RemoteConfig(cfg, REMOTE_NAME), cfg);
+
+    SourcesCollection sources = stub(SourcesCollection.class);
+    FetchReplicationMetrics metrics =
+        new FetchReplicationMetrics("pull-replication", new DisabledMetricMaker(), () -> sources);
+    Injector injector =
+        Guice.createInjector(
+            new AbstractModule() {
+              @Override
+              protected void configure() {
+                bind(GitRepositoryManager.class).toInstance(gitManager);
+                bind(CredentialsFactory.class).toInstance(remoteName -> null);
+                bind(ReplicationStateListeners.class).toInstance(stateLog);
+                bind(FetchReplicationMetrics.class).toInstance(metrics);
+                bind(FetchAuditLog.class).toInstance(new FetchAuditLog(cfg));
+                bind(RepositoryMaintenance.class)
+                    .toInstance(new RepositoryMaintenance(cfg, null, gitManager));
+              }
+            });
+
+    PluginUser pluginUser = stub(PluginUser.class);
+    source =
+        new Source(
+            injector,
+            config,
+            pluginUser,
+            gitManager,
+            stub(PermissionBackend.class),
+            () -> (CurrentUser) pluginUser,
+            emptyProjectCache(),
+            stub(GroupBackend.class),
+            stateLog,
+            stub(GroupIncludeCache.class),
+            DynamicItem.itemOf(EventDispatcher.class, stub(EventDispatcher.class)),
+            stub(LocalRepositoryCreator.class),
+            new Config(),
+            new FetchPartitioner(cfg, null, null),
+            metrics);
+
+    WorkQueue workQueue = stub(WorkQueue.class);
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(pool);
+    source.start(workQueue);
+    opFactory = source.getOpFactory();
+  }
+
+  private static Config schedulingConfig(String... urls) {
+    Config cfg = new Config();
+    cfg.setStringList("remote", REMOTE_NAME, "url", Arrays.asList(urls));
+    cfg.setString("remote", REMOTE_NAME, "fetch", "+refs/*:refs/*");
+    // Long enough for no scheduled fetch to ever be due during a run.
+    cfg.setInt("remote", REMOTE_NAME, "replicationDelay", 3600);
+    cfg.setInt("remote", REMOTE_NAME, "rescheduleDelay", 3600);
+    cfg.setBoolean("remote", REMOTE_NAME, "createMissingRepositories", true);
+    return cfg;
+  }
+
+  void shutdown() {
+    source.shutdown();
+  }
+
+  /** @return a replication state discarding the outcome of the replication. */
+  static ReplicationState newReplicationState() {
+    return new ReplicationState(
+        new FetchResultProcessing() {
+          @Override
+          void onOneProjectReplicationDone(
+              String project,
+              String ref,
+              URIish uri,
+              ReplicationState.RefFetchResult status,
+              RefUpdate.Result refUpdateResult) {}
+
+          @Override
+          void onRefReplicatedFromAllNodes(String project, String ref, int nodesCount) {}
+
+          @Override
+          void onAllRefsReplicatedFromAllNodes(int totalFetchTasksCount) {}
+        });
+  }
+
+  private static ProjectCache emptyProjectCache() {
+    return (ProjectCache)
+        Proxy.newProxyInstance(
+            ProjectCache.class.getClassLoader(),
+            new Class<?>[] {ProjectCache.class},
+            (proxy, method, args) -> method.getReturnType() == boolean.class ? false : null);
+  }
+
+  /** @return a mock not recording its invocations, for the collaborators not used on hot paths. */
+  static <T> T stub(Class<T> type) {
+    return mock(type, withSettings().stubOnly());
+  }
+
+  /** Executor accepting the fetch operations without ever running them. */
+  private static class DiscardingExecutor extends ScheduledThreadPoolExecutor {
+    DiscardingExecutor() {
+      super(0);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.entities.Project;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import org.eclipse.jgit.transport.URIish;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Heap retained by the fetches pending from a source.
+ *
+ * <p>The harness schedules the replication of some refs of many projects with a source that never
+ * runs its fetches, and reports the heap used after GC per pending fetch. The names, URIs and
+ * replication state of the projects are allocated before the first measurement, so that only the
+ * bookkeeping of the source is counted.
+ */
+public class PendingFootprint {
+  @Option(name = "--tasks", usage = "number of projects with a pending fetch")
+  private int tasks = 1_000_000;
+
+  @Option(name = "--refs", usage = "refs scheduled for each project")
+  private int refs = 1;
+
+  @Option(name = "--help", aliases = "-h", usage = "display this help text", help = true)
+  private boolean help;
+
+  public static void main(String[] args) throws Exception {
+    PendingFootprint footprint = new PendingFootprint();
+    CmdLineParser parser = new CmdLineParser(footprint);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.exit(1);
+    }
+    if (footprint.help) {
+      parser.printUsage(System.out);
+      System.exit(0);
+    }
+    footprint.run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    BenchmarkSource bench = new BenchmarkSource("ssh://source-host/${name}.git");
+    Project.NameKey[] names = new Project.NameKey[tasks];
+    URIish[] uris = new URIish[tasks];
+    for (int i = 0; i < tasks; i++) {
+      names[i] = Project.nameKey("platform/project-" + i);
+      uris[i] = bench.source.getURIs(names[i], "").get(0);
+    }
+    String[] refNames = new String[refs];
+    for (int i = 0; i < refs; i++) {
+      refNames[i] = String.format("refs/changes/%02d/%d/1", i % 100, 1000 + i);
+    }
+    ReplicationState state = BenchmarkSource.newReplicationState();
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long before = usedAfterGc(memory);
+    long start = System.nanoTime();
+    for (int i = 0; i < tasks; i++) {
+      for (String ref : refNames) {
+        bench.source.schedule(names[i], ref, uris[i], state);
+      }
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    long used = usedAfterGc(memory) - before;
+
+    System.out.printf(
+        "Scheduled %d refs of %d projects in %dms%n", tasks * refs, tasks, elapsedMillis);
+    System.out.printf(
+        "Heap: %dMB used by the pending fetches, %d bytes per pending fetch%n",
+        used >> 20, used / tasks);
+    bench.shutdown();
+  }
+
+  private static long usedAfterGc(MemoryMXBean memory) {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
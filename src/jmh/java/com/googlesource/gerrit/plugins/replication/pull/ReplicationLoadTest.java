@@ -0,0 +1,497 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.googlesource.gerrit.plugins.replication.ReplicationFilter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * End-to-end replication throughput and lag, from local bare repositories.
+ *
+ * <p>The harness creates the source repositories with a synthetic history and fetches them with a
+ * source configured with {@code file://} URLs: first all of them at once, as a FetchAll does, then
+ * the refs updated by a random churn, each one scheduled as a ref-update event would. It reports
+ * the fetches per second, the percentiles of the replication lag and the heap usage.
+ *
+ * <p>Nothing but the local file system is needed, so that the results of different settings of
+ * threads and delays can be compared on the same machine.
+ */
+public class ReplicationLoadTest {
+  @Option(name = "--projects", usage = "number of source repositories")
+  private int projects = 50;
+
+  @Option(name = "--commits", usage = "commits of the history of each repository")
+  private int commits = 100;
+
+  @Option(name = "--refs", usage = "change refs of each repository")
+  private int refs = 100;
+
+  @Option(name = "--updates", usage = "ref updates of the churn phase")
+  private int updates = 2000;
+
+  @Option(name = "--rate", usage = "ref updates per second of the churn phase, 0 for unthrottled")
+  private int rate = 200;
+
+  @Option(name = "--threads", usage = "remote.NAME.threads of the source")
+  private int threads = 4;
+
+  @Option(name = "--delay", usage = "remote.NAME.replicationDelay of the source, in seconds")
+  private int delay = 0;
+
+  @Option(name = "--timeout", usage = "maximum duration of each phase, in seconds")
+  private int timeout = 600;
+
+  @Option(name = "--dir", usage = "directory of the repositories, a temporary one by default")
+  private File dir;
+
+  @Option(name = "--keep", usage = "do not delete the repositories at the end")
+  private boolean keep;
+
+  @Option(name = "--help", aliases = "-h", usage = "display this help text", help = true)
+  private boolean help;
+
+  private final Random random = new Random(42);
+  private final List<Project.NameKey> names = new ArrayList<>();
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong maxHeapUsed = new AtomicLong();
+  private File sourceDir;
+  private File localDir;
+  private CountingExecutor pool;
+
+  public static void main(String[] args) throws Exception {
+    ReplicationLoadTest loadTest = new ReplicationLoadTest();
+    CmdLineParser parser = new CmdLineParser(loadTest);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.exit(1);
+    }
+    if (loadTest.help) {
+      parser.printUsage(System.out);
+      System.exit(0);
+    }
+    loadTest.run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    boolean tempDir = dir == null;
+    if (tempDir) {
+      dir = Files.createTempDirectory("pull-replication-load").toFile();
+    }
+    sourceDir = new File(dir, "source");
+    localDir = new File(dir, "local");
+
+    ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor();
+    BenchmarkSource bench = null;
+    try {
+      long start = System.nanoTime();
+      createRepositories();
+      System.out.printf(
+          "Created %d repositories of %d commits and %d refs in %dms%n",
+          projects, commits, refs, elapsedMillis(start));
+
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      heapSampler.scheduleAtFixedRate(
+          () -> maxHeapUsed.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+          0,
+          100,
+          TimeUnit.MILLISECONDS);
+
+      DynamicSet<ReplicationStateListener> listeners = new DynamicSet<>();
+      listeners.add("load-test", new ErrorPrinter());
+      pool = new CountingExecutor();
+      bench =
+          new BenchmarkSource(
+              sourceConfig(),
+              new LocalRepositories(),
+              pool,
+              new ReplicationStateListeners(listeners));
+      fetchAll(bench.source);
+      churn(bench.source);
+
+      System.gc();
+      System.out.printf(
+          "Heap: %dMB max used, %dMB used after GC%n",
+          maxHeapUsed.get() >> 20, memory.getHeapMemoryUsage().getUsed() >> 20);
+    } finally {
+      heapSampler.shutdownNow();
+      if (bench != null) {
+        bench.shutdown();
+      }
+      if (tempDir && !keep) {
+        FileUtils.delete(dir, FileUtils.RECURSIVE);
+      }
+    }
+  }
+
+  private Config sourceConfig() {
+    Config cfg = new Config();
+    String remote = BenchmarkSource.REMOTE_NAME;
+    cfg.setString(
+        "remote", remote, "url", "file://" + sourceDir.getAbsolutePath() + "/${name}.git");
+    cfg.setString("remote", remote, "fetch", "+refs/*:refs/*");
+    cfg.setInt("remote", remote, "threads", threads);
+    cfg.setInt("remote", remote, "replicationDelay", delay);
+    cfg.setBoolean("remote", remote, "createMissingRepositories", true);
+    return cfg;
+  }
+
+  /** Replicate all the projects, as a FetchAll does when the source is added. */
+  private void fetchAll(Source source) throws Exception {
+    Stats stats = new Stats();
+    CountDownLatch done = new CountDownLatch(1);
+    long start = System.nanoTime();
+    ReplicationState state = newState(stats, start, done);
+
+    long fetchesBefore = fetches.get();
+    SourcesCollection sources = BenchmarkSource.stub(SourcesCollection.class);
+    when(sources.getAll()).thenReturn(Collections.singletonList(source));
+    new FetchAll(
+            BenchmarkSource.stub(WorkQueue.class),
+            projectCache(),
+            new ReplicationStateListeners(DynamicSet.emptySet()),
+            sources,
+            null,
+            ReplicationFilter.all(),
+            state,
+            true)
+        .run();
+
+    boolean completed = awaitDone(done);
+    report("FetchAll", start, fetches.get() - fetchesBefore, stats, projects, completed);
+  }
+
+  /** Update random refs of random projects, scheduling their replication as events would. */
+  private void churn(Source source) throws Exception {
+    Stats stats = new Stats();
+    CountDownLatch done = new CountDownLatch(updates);
+    long fetchesBefore = fetches.get();
+    long start = System.nanoTime();
+    for (int i = 0; i < updates; i++) {
+      if (rate > 0) {
+        long due = start + TimeUnit.SECONDS.toNanos(i) / rate;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+      }
+      Project.NameKey project = names.get(random.nextInt(projects));
+      String ref = changeRef(random.nextInt(refs));
+      try (Repository repo = openSource(project)) {
+        updateRef(repo, ref);
+      }
+
+      ReplicationState state = newState(stats, System.nanoTime(), done);
+      for (URIish uri : source.getURIs(project, null)) {
+        source.schedule(project, ref, uri, state);
+      }
+      state.markAllFetchTasksScheduled();
+    }
+
+    boolean completed = awaitDone(done);
+    report("Churn", start, fetches.get() - fetchesBefore, stats, updates, completed);
+  }
+
+  /**
+   * Wait for the replication of the refs of a phase, or for the source to have nothing left to
+   * fetch: a ref scheduled again while its fetch is still pending is replicated, but its latest
+   * state is not notified.
+   *
+   * @return false if the phase timed out.
+   */
+  private boolean awaitDone(CountDownLatch done) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+    int idle = 0;
+    while (!done.await(100, TimeUnit.MILLISECONDS)) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      idle = pool.getActiveCount() == 0 && pool.getQueue().isEmpty() ? idle + 1 : 0;
+      if (idle > 10) {
+        return true;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Create the replication state of a phase.
+   *
+   * @param stats statistics of the phase.
+   * @param since time the replication lag of the refs is measured from.
+   * @param done latch counted down when all the refs are replicated.
+   */
+  private static ReplicationState newState(Stats stats, long since, CountDownLatch done) {
+    return new ReplicationState(
+        new FetchResultProcessing() {
+          @Override
+          void onOneProjectReplicationDone(
+              String project,
+              String ref,
+              URIish uri,
+              ReplicationState.RefFetchResult status,
+              RefUpdate.Result refUpdateResult) {
+            stats.done(since, status);
+          }
+
+          @Override
+          void onRefReplicatedFromAllNodes(String project, String ref, int nodesCount) {}
+
+          @Override
+          void onAllRefsReplicatedFromAllNodes(int totalFetchTasksCount) {
+            done.countDown();
+          }
+        });
+  }
+
+  private void report(
+      String phase, long start, long fetchCount, Stats stats, int expected, boolean completed) {
+    long elapsed = elapsedMillis(start);
+    System.out.printf(
+        "%s: %d fetches in %dms, %.1f fetches/s%s%n",
+        phase,
+        fetchCount,
+        elapsed,
+        fetchCount * 1000.0 / Math.max(1, elapsed),
+        completed ? "" : ", timed out");
+    System.out.printf(
+        "  %d of %d refs notified: %d succeeded, %d already up to date, %d failed%n",
+        stats.count(), expected, stats.succeeded, stats.upToDate, stats.failed);
+    System.out.printf(
+        "  lag p50 %dms, p99 %dms, max %dms%n",
+        stats.percentile(50), stats.percentile(99), stats.percentile(100));
+  }
+
+  private void createRepositories() throws IOException {
+    for (int p = 0; p < projects; p++) {
+      Project.NameKey name = Project.nameKey("load/project-" + p);
+      names.add(name);
+      try (Repository repo =
+          FileRepositoryBuilder.create(new File(sourceDir, name.get() + Constants.DOT_GIT))) {
+        repo.create(true);
+        ObjectId tip = null;
+        for (int c = 0; c < commits; c++) {
+          tip = commit(repo, tip);
+        }
+        setRef(repo, Constants.R_HEADS + Constants.MASTER, tip);
+        for (int r = 0; r < refs; r++) {
+          setRef(repo, changeRef(r), commit(repo, tip));
+        }
+      }
+      try (Repository local =
+          FileRepositoryBuilder.create(new File(localDir, name.get() + Constants.DOT_GIT))) {
+        local.create(true);
+      }
+    }
+  }
+
+  private static String changeRef(int change) {
+    return String.format("refs/changes/%02d/%d/1", change % 100, change + 1);
+  }
+
+  private void updateRef(Repository repo, String ref) throws IOException {
+    setRef(repo, ref, commit(repo, repo.exactRef(ref).getObjectId()));
+  }
+
+  private ObjectId commit(Repository repo, ObjectId parent) throws IOException {
+    byte[] content = new byte[1024];
+    random.nextBytes(content);
+    try (ObjectInserter ins = repo.newObjectInserter()) {
+      TreeFormatter tree = new TreeFormatter();
+      tree.append("file", FileMode.REGULAR_FILE, ins.insert(Constants.OBJ_BLOB, content));
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(ins.insert(tree));
+      if (parent != null) {
+        cb.setParentId(parent);
+      }
+      PersonIdent ident = new PersonIdent("Load Test", "load-test@example.com");
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage("Load test commit");
+      ObjectId id = ins.insert(cb);
+      ins.flush();
+      return id;
+    }
+  }
+
+  private static void setRef(Repository repo, String ref, ObjectId id) throws IOException {
+    RefUpdate u = repo.updateRef(ref);
+    u.setNewObjectId(id);
+    u.setForceUpdate(true);
+    RefUpdate.Result result = u.update();
+    if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED) {
+      throw new IOException("Cannot update " + ref + ": " + result);
+    }
+  }
+
+  private Repository openSource(Project.NameKey name) throws IOException {
+    return new FileRepositoryBuilder()
+        .setGitDir(new File(sourceDir, name.get() + Constants.DOT_GIT))
+        .setMustExist(true)
+        .build();
+  }
+
+  private ProjectCache projectCache() {
+    ProjectCache projectCache = BenchmarkSource.stub(ProjectCache.class);
+    when(projectCache.all()).thenReturn(ImmutableSortedSet.copyOf(names));
+    return projectCache;
+  }
+
+  private static long elapsedMillis(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /** Local repositories the projects are fetched into. */
+  private class LocalRepositories implements GitRepositoryManager {
+    @Override
+    public Repository openRepository(Project.NameKey name) throws IOException {
+      File gitDir = new File(localDir, name.get() + Constants.DOT_GIT);
+      if (!gitDir.isDirectory()) {
+        throw new RepositoryNotFoundException(gitDir);
+      }
+      return new FileRepositoryBuilder().setGitDir(gitDir).build();
+    }
+
+    @Override
+    public Repository createRepository(Project.NameKey name) throws IOException {
+      Repository repo =
+          FileRepositoryBuilder.create(new File(localDir, name.get() + Constants.DOT_GIT));
+      repo.create(true);
+      return repo;
+    }
+
+    @Override
+    public SortedSet<Project.NameKey> list() {
+      return ImmutableSortedSet.copyOf(names);
+    }
+  }
+
+  /** Prints the first replication errors, which would otherwise go unnoticed. */
+  private static class ErrorPrinter implements ReplicationStateListener {
+    private static final int MAX_ERRORS = 10;
+    private final AtomicLong errors = new AtomicLong();
+
+    @Override
+    public void warn(String msg, ReplicationState... states) {}
+
+    @Override
+    public void error(String msg, ReplicationState... states) {
+      error(msg, null, states);
+    }
+
+    @Override
+    public void error(String msg, Throwable t, ReplicationState... states) {
+      if (errors.incrementAndGet() <= MAX_ERRORS) {
+        System.err.println("Replication error: " + msg + (t != null ? ": " + t : ""));
+      }
+    }
+  }
+
+  /** Executor of the fetches of the source, counting them. */
+  private class CountingExecutor extends ScheduledThreadPoolExecutor {
+    CountingExecutor() {
+      super(threads);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+      super.afterExecute(r, t);
+      fetches.incrementAndGet();
+    }
+  }
+
+  /** Replication lag of the refs of a phase. */
+  private static class Stats {
+    private final List<Long> lags = new ArrayList<>();
+    private int succeeded;
+    private int upToDate;
+    private int failed;
+
+    synchronized void done(long since, ReplicationState.RefFetchResult status) {
+      lags.add(elapsedMillis(since));
+      switch (status) {
+        case SUCCEEDED:
+          succeeded++;
+          break;
+        case NOT_ATTEMPTED:
+          // The ref was already fetched along with another one.
+          upToDate++;
+          break;
+        case FAILED:
+        default:
+          failed++;
+          break;
+      }
+    }
+
+    synchronized int count() {
+      return lags.size();
+    }
+
+    synchronized long percentile(int percentile) {
+      if (lags.isEmpty()) {
+        return 0;
+      }
+      long[] sorted = lags.stream().mapToLong(Long::longValue).toArray();
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(0, index)];
+    }
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of tracking the replication of a set of refs from a set of source URLs, from the scheduling
+ * of the fetch tasks to the notification of their outcome.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplicationStateBenchmark {
+  private static final String PROJECT = "platform/project";
+
+  @Param({"1", "100", "10000"})
+  public int refs;
+
+  @Param({"1", "4"})
+  public int sources;
+
+  private String[] refNames;
+  private URIish[] uris;
+
+  @Setup
+  public void setUp() throws Exception {
+    refNames = new String[refs];
+    for (int i = 0; i < refs; i++) {
+      refNames[i] = String.format("refs/changes/%02d/%d/1", i % 100, i);
+    }
+    uris = new URIish[sources];
+    for (int i = 0; i < sources; i++) {
+      uris[i] = new URIish("ssh://source-" + i + "/" + PROJECT + ".git");
+    }
+  }
+
+  @Benchmark
+  public ReplicationState replicateAllRefs() {
+    ReplicationState state = BenchmarkSource.newReplicationState();
+    for (String ref : refNames) {
+      for (int i = 0; i < sources; i++) {
+        state.increaseFetchTaskCount(PROJECT, ref);
+      }
+    }
+    state.markAllFetchTasksScheduled();
+    for (String ref : refNames) {
+      for (URIish uri : uris) {
+        state.notifyRefReplicated(
+            PROJECT, ref, uri, ReplicationState.RefFetchResult.SUCCEEDED, RefUpdate.Result.NEW);
+      }
+    }
+    return state;
+  }
+}
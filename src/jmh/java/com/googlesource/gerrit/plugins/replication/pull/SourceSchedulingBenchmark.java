@@ -0,0 +1,120 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.entities.Project;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.transport.URIish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the scheduling of fetch operations by a source, with several threads contending for
+ * its lock as the ref-update events of a busy primary do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class SourceSchedulingBenchmark {
+  private static final int REFS_PER_PROJECT = 16;
+
+  @Param({"100", "10000"})
+  public int projects;
+
+  private BenchmarkSource bench;
+  private Project.NameKey[] names;
+  private URIish[] uris;
+  private String[] refs;
+  private final AtomicInteger threads = new AtomicInteger();
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    int index;
+    int next;
+    ReplicationState state;
+
+    @Setup(Level.Iteration)
+    public void setUp(SourceSchedulingBenchmark benchmark) {
+      index = benchmark.threads.getAndIncrement() % benchmark.projects;
+      state = BenchmarkSource.newReplicationState();
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception {
+    bench = new BenchmarkSource("ssh://source-host/${name}.git");
+    names = new Project.NameKey[projects];
+    uris = new URIish[projects];
+    for (int i = 0; i < projects; i++) {
+      names[i] = Project.nameKey("platform/project-" + i);
+      uris[i] = bench.source.getURIs(names[i], "").get(0);
+    }
+    refs = new String[REFS_PER_PROJECT];
+    for (int i = 0; i < REFS_PER_PROJECT; i++) {
+      refs[i] = String.format("refs/changes/%02d/%d/1", i, 1000 + i);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    bench.shutdown();
+    threads.set(0);
+  }
+
+  /** Schedule the replication of a ref, merging it into the pending fetch of its project. */
+  @Benchmark
+  public void schedule(ThreadState t) {
+    int i = t.next++;
+    int project = Math.floorMod(i, projects);
+    String ref = refs[Math.floorMod(i / projects, REFS_PER_PROJECT)];
+    bench.source.schedule(names[project], ref, uris[project], t.state);
+  }
+
+  /**
+   * Run into an in-flight fetch of the same project: the second fetch is denied its runway and
+   * rescheduled, then the first one finishes. Each thread works on its own project.
+   */
+  @Benchmark
+  public boolean collision(ThreadState t) {
+    Source source = bench.source;
+    FetchOne running = bench.opFactory.create(names[t.index], uris[t.index]);
+    running.addRef(refs[0]);
+    FetchOne colliding = bench.opFactory.create(names[t.index], uris[t.index]);
+    colliding.addRef(refs[1]);
+
+    boolean started = source.requestRunway(running);
+    boolean collided = !source.requestRunway(colliding);
+    source.reschedule(colliding, Source.RetryReason.COLLISION);
+    source.notifyFinished(running);
+    return started && collided;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.entities.Project;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.transport.URIish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Cost of resolving the URLs of a project on a source, done for every scheduled ref. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SourceUrlBenchmark {
+  @Param({"ssh://source-host/${name}.git", "https://source-host/git/${name}"})
+  public String url;
+
+  @Param({"platform/external/project", "platform/external/project with spaces+symbols"})
+  public String project;
+
+  private BenchmarkSource bench;
+  private Project.NameKey name;
+
+  @Setup
+  public void setUp() throws Exception {
+    bench = new BenchmarkSource(url);
+    name = Project.nameKey(project);
+  }
+
+  @TearDown
+  public void tearDown() {
+    bench.shutdown();
+  }
+
+  @Benchmark
+  public List<URIish> getURIs() {
+    return bench.source.getURIs(name, "");
+  }
+
+  @Benchmark
+  public String encode() {
+    return Source.encode(project);
+  }
+}
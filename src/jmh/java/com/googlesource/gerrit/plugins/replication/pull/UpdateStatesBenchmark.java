@@ -0,0 +1,171 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Project;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of notifying the replication states of a fetch of many refs.
+ *
+ * <p>The ref updates come from a dry-run fetch of a local repository, so that they are the ones
+ * JGit actually produces. Each invocation registers on a new fetch operation, before updating the
+ * refs:
+ *
+ * <ul>
+ *   <li>{@code perRef}: the states of all the refs, as the scheduling of the refs does.
+ *   <li>{@code allRefs}: one state waiting for all the refs, as a {@code FetchAll} does.
+ *   <li>{@code someRefs}: one state waiting for all the refs and the states of a few refs, as when
+ *       ref-update events are merged into a pending fetch of all the refs.
+ * </ul>
+ *
+ * <p>Run with {@code -prof gc} to compare the garbage produced for each ref.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateStatesBenchmark {
+  private static final Project.NameKey PROJECT = Project.nameKey("platform/project");
+  private static final int SOME_REFS = 10;
+
+  @Param({"100", "10000"})
+  public int refs;
+
+  @Param({"perRef", "allRefs", "someRefs"})
+  public String states;
+
+  private File dir;
+  private Collection<TrackingRefUpdate> refUpdates;
+  private BenchmarkSource bench;
+  private URIish uri;
+
+  @Setup
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("updateStates").toFile();
+    File sourceDir = new File(dir, "source.git");
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+      createRefs(source);
+    }
+    try (Repository local = FileRepositoryBuilder.create(new File(dir, "local.git"))) {
+      local.create(true);
+      try (Transport tn = Transport.open(local, sourceDir.getPath())) {
+        tn.setDryRun(true);
+        refUpdates =
+            tn.fetch(NullProgressMonitor.INSTANCE, ImmutableList.of(new RefSpec("+refs/*:refs/*")))
+                .getTrackingRefUpdates();
+      }
+    }
+    bench = new BenchmarkSource("ssh://source-host/${name}.git");
+    uri = bench.source.getURIs(PROJECT, "").get(0);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    bench.shutdown();
+    FileUtils.delete(dir, FileUtils.RECURSIVE);
+  }
+
+  @Benchmark
+  public FetchOne updateStates() throws IOException {
+    ReplicationState state = BenchmarkSource.newReplicationState();
+    FetchOne op = bench.opFactory.create(PROJECT, uri);
+    if (!states.equals("perRef")) {
+      op.addRef(FetchOne.ALL_REFS);
+      op.addState(FetchOne.ALL_REFS, state);
+      state.increaseFetchTaskCount(PROJECT.get(), FetchOne.ALL_REFS);
+    }
+    if (states.equals("someRefs")) {
+      int i = 0;
+      for (TrackingRefUpdate u : refUpdates) {
+        if (i++ % (refs / SOME_REFS) == 0) {
+          op.addState(u.getRemoteName(), state);
+          state.increaseFetchTaskCount(PROJECT.get(), u.getRemoteName());
+        }
+      }
+    } else if (states.equals("perRef")) {
+      for (TrackingRefUpdate u : refUpdates) {
+        op.addRef(u.getRemoteName());
+        op.addState(u.getRemoteName(), state);
+        state.increaseFetchTaskCount(PROJECT.get(), u.getRemoteName());
+      }
+    }
+    state.markAllFetchTasksScheduled();
+    op.updateStates(refUpdates, Collections.emptyMap(), Collections.emptyList());
+    return op;
+  }
+
+  private void createRefs(Repository repo) throws IOException {
+    ObjectId commit;
+    try (ObjectInserter ins = repo.newObjectInserter()) {
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(ins.insert(new TreeFormatter()));
+      PersonIdent ident = new PersonIdent("Benchmark", "benchmark@example.com");
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage("Benchmark");
+      commit = ins.insert(cb);
+      ins.flush();
+    }
+    BatchRefUpdate batch = repo.getRefDatabase().newBatchUpdate();
+    batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), commit, Constants.R_HEADS + "master"));
+    for (int i = 1; i < refs; i++) {
+      batch.addCommand(
+          new ReceiveCommand(
+              ObjectId.zeroId(), commit, String.format("refs/changes/%02d/%d/1", i % 100, i)));
+    }
+    try (RevWalk rw = new RevWalk(repo)) {
+      batch.execute(rw, NullProgressMonitor.INSTANCE);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.util.Map;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushConnection;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.Transport;
+
+/**
+ * Transport reading the refs advertised by the source on the connection of the next fetch.
+ *
+ * <p>The refspecs of the fetch can then be built from the advertised refs: a ref deleted on the
+ * source after being advertised is still fetched, rather than failing the whole fetch as it would
+ * when listing the refs with another connection.
+ */
+class AdvertisedRefsTransport extends Transport {
+  private final Transport delegate;
+  private volatile FetchConnection connection;
+
+  /**
+   * @param local repository to fetch into.
+   * @param delegate transport opening the connections to the source.
+   */
+  AdvertisedRefsTransport(Repository local, Transport delegate) {
+    super(local, delegate.getURI());
+    this.delegate = delegate;
+  }
+
+  /**
+   * Get the refs advertised by the source, opening the connection of the next fetch if needed.
+   *
+   * @return the advertised refs, indexed by name.
+   */
+  Map<String, Ref> getAdvertisedRefs() throws NotSupportedException, TransportException {
+    if (connection == null) {
+      connection = delegate.openFetch();
+    }
+    return connection.getRefsMap();
+  }
+
+  @Override
+  public FetchConnection openFetch() throws NotSupportedException, TransportException {
+    FetchConnection conn = connection;
+    if (conn == null) {
+      return delegate.openFetch();
+    }
+    connection = null;
+    return conn;
+  }
+
+  @Override
+  public PushConnection openPush() throws NotSupportedException, TransportException {
+    return delegate.openPush();
+  }
+
+  @Override
+  public void applyConfig(RemoteConfig cfg) {
+    super.applyConfig(cfg);
+    delegate.applyConfig(cfg);
+  }
+
+  @Override
+  public void setCredentialsProvider(CredentialsProvider credentialsProvider) {
+    super.setCredentialsProvider(credentialsProvider);
+    delegate.setCredentialsProvider(credentialsProvider);
+  }
+
+  @Override
+  public void setTimeout(int seconds) {
+    super.setTimeout(seconds);
+    delegate.setTimeout(seconds);
+  }
+
+  @Override
+  public void close() {
+    if (connection != null) {
+      connection.close();
+      connection = null;
+    }
+    delegate.close();
+  }
+}
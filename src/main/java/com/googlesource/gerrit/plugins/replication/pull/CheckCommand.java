@@ -0,0 +1,215 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.replication.ReplicationFilter;
+import com.googlesource.gerrit.plugins.replication.StartReplicationCapability;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.eclipse.jgit.transport.URIish;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(StartReplicationCapability.START_REPLICATION)
+@CommandMetaData(
+    name = "check",
+    description = "Check that projects match their sources and fetch the divergent refs")
+final class CheckCommand extends SshCommand {
+  @Option(name = "--all", usage = "check all known projects")
+  private boolean all;
+
+  @Option(name = "--url", metaVar = "PATTERN", usage = "pattern to match URL on")
+  private String urlMatch;
+
+  @Option(name = "--now", usage = "start replication without waiting for replicationDelay")
+  private boolean now;
+
+  @Option(name = "--dry-run", usage = "only report the divergent refs, without fetching them")
+  private boolean dryRun;
+
+  @Option(name = "--verbose", usage = "list the divergent refs")
+  private boolean verbose;
+
+  @Argument(index = 0, multiValued = true, metaVar = "PATTERN", usage = "project name pattern")
+  private List<String> projectPatterns = new ArrayList<>(2);
+
+  @Inject private SourcesCollection sources;
+
+  @Inject private ProjectCache projectCache;
+
+  @Inject private ConsistencyChecker checker;
+
+  @Inject private ReplicationState.Factory replicationStateFactory;
+
+  @Inject private DynamicItem<EventDispatcher> eventDispatcher;
+
+  @Inject private WorkQueue workQueue;
+
+  private int checked;
+  private int divergent;
+  private int scheduled;
+
+  @Override
+  protected void run() throws Failure {
+    if (all == !projectPatterns.isEmpty()) {
+      throw new UnloggedFailure(1, "error: specify either --all or PROJECT");
+    }
+    ReplicationFilter filter =
+        all ? ReplicationFilter.all() : new ReplicationFilter(projectPatterns);
+
+    ReplicationState state =
+        replicationStateFactory.create(
+            new FetchResultProcessing.GitUpdateProcessing(eventDispatcher.get()));
+    // The projects are checked by the tasks of the default queue, a few more at a time than it
+    // has threads, and reported in order.
+    ScheduledExecutorService queue = workQueue.getDefaultQueue();
+    int maxChecks =
+        queue instanceof ThreadPoolExecutor
+            ? 2 * Math.max(1, ((ThreadPoolExecutor) queue).getCorePoolSize())
+            : 1;
+    Deque<Future<ProjectCheck>> checks = new ArrayDeque<>();
+    try {
+      for (Project.NameKey project : projectCache.all()) {
+        if (!filter.matches(project)) {
+          continue;
+        }
+        if (checks.size() == maxChecks) {
+          report(checks.removeFirst().get(), state);
+        }
+        checks.addLast(queue.submit(new ProjectCheck(project)));
+      }
+      while (!checks.isEmpty()) {
+        report(checks.removeFirst().get(), state);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw die("interrupted while checking the projects");
+    } catch (ExecutionException e) {
+      throw die(e.getCause());
+    } finally {
+      for (Future<ProjectCheck> check : checks) {
+        check.cancel(true);
+      }
+      state.markAllFetchTasksScheduled();
+    }
+
+    stdout.println(
+        String.format(
+            "Checked %d projects: %d divergent, %d refs scheduled for replication",
+            checked, divergent, scheduled));
+  }
+
+  private void report(ProjectCheck check, ReplicationState state) {
+    for (String error : check.errors) {
+      stderr.println(error);
+    }
+    if (check.reports.isEmpty()) {
+      return;
+    }
+    checked++;
+    boolean consistent = true;
+    for (ConsistencyChecker.Report report : check.reports) {
+      if (report.isConsistent()) {
+        continue;
+      }
+      consistent = false;
+      print(report);
+      if (!dryRun) {
+        scheduled += checker.repair(report, state, now);
+      }
+    }
+    if (!consistent) {
+      divergent++;
+    }
+  }
+
+  /** Check of a project against all its sources, run by a task of the default queue. */
+  private class ProjectCheck implements Callable<ProjectCheck> {
+    final Project.NameKey project;
+    final List<ConsistencyChecker.Report> reports = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+
+    ProjectCheck(Project.NameKey project) {
+      this.project = project;
+    }
+
+    @Override
+    public ProjectCheck call() {
+      for (Source source : sources.getAll()) {
+        if (!source.wouldFetchProject(project)) {
+          continue;
+        }
+        List<URIish> uris = source.getURIs(project, urlMatch);
+        if (source.isMirrorGroup() && uris.size() > 1) {
+          // The mirrors serve the same refs.
+          uris = uris.subList(0, 1);
+        }
+        for (URIish uri : uris) {
+          try {
+            reports.add(checker.check(source, project, uri));
+          } catch (IOException e) {
+            errors.add("Cannot check " + project + " from " + uri + ": " + e.getMessage());
+          }
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return "Check " + project + " against its sources";
+    }
+  }
+
+  private void print(ConsistencyChecker.Report report) {
+    stdout.println(
+        String.format(
+            "%s from %s: %d missing, %d different, %d stale refs out of %d",
+            report.project,
+            report.uri,
+            report.missing.size(),
+            report.different.size(),
+            report.stale.size(),
+            report.checkedRefs));
+    if (verbose) {
+      print("missing", report.missing);
+      print("different", report.different);
+      print("stale", report.stale);
+    }
+  }
+
+  private void print(String divergence, List<String> refs) {
+    for (String ref : refs) {
+      stdout.println("  " + divergence + " " + ref);
+    }
+  }
+}
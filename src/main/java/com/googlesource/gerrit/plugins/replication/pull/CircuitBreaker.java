@@ -0,0 +1,181 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Circuit breaker of the fetches from one host of a source.
+ *
+ * <p>The breaker opens after a number of consecutive transport failures. While open, the fetches
+ * from the host are parked instead of being scheduled. Once the probe interval has elapsed, the
+ * breaker is half-open and lets one fetch through as a probe: if the probe succeeds the breaker
+ * closes and the parked fetches are released, otherwise it opens again.
+ *
+ * <p>Instance members are protected by the lock within Source.
+ */
+class CircuitBreaker implements Runnable {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final Source source;
+  private final String host;
+  private final int threshold;
+  private final Set<PendingFetch> parked = new LinkedHashSet<>();
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private PendingFetch probe;
+
+  CircuitBreaker(Source source, String host, int threshold) {
+    this.source = source;
+    this.host = host;
+    this.threshold = threshold;
+  }
+
+  String getHost() {
+    return host;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  /**
+   * Check whether a fetch can be scheduled, making it the probe of a half-open breaker.
+   *
+   * @param op fetch to schedule.
+   * @return true if the fetch can be scheduled, false if it has to be parked.
+   */
+  boolean allowRequest(PendingFetch op) {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (probe == null) {
+          probe = op;
+        }
+        return probe == op;
+      case OPEN:
+      default:
+        return false;
+    }
+  }
+
+  void park(PendingFetch op) {
+    parked.add(op);
+  }
+
+  void unpark(PendingFetch op) {
+    parked.remove(op);
+  }
+
+  /**
+   * Record a transport failure of a fetch from the host.
+   *
+   * @param op failed fetch.
+   * @return true if the breaker has just opened.
+   */
+  boolean recordFailure(FetchOne op) {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN && op == probe) {
+      probe = null;
+      state = State.OPEN;
+      return true;
+    }
+    if (state == State.CLOSED && consecutiveFailures >= threshold) {
+      state = State.OPEN;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Record a successful fetch from the host.
+   *
+   * @return the parked fetches to release, if the breaker has just closed.
+   */
+  List<PendingFetch> recordSuccess() {
+    consecutiveFailures = 0;
+    if (state == State.CLOSED) {
+      return Collections.emptyList();
+    }
+    state = State.CLOSED;
+    probe = null;
+    List<PendingFetch> released = new ArrayList<>(parked);
+    parked.clear();
+    return released;
+  }
+
+  /**
+   * Make the breaker half-open, taking a parked fetch as probe if any.
+   *
+   * @return the parked fetch to schedule as probe, null if the next scheduled fetch is going to be
+   *     the probe.
+   */
+  PendingFetch halfOpen() {
+    state = State.HALF_OPEN;
+    probe = null;
+    Iterator<PendingFetch> it = parked.iterator();
+    if (it.hasNext()) {
+      probe = it.next();
+      it.remove();
+    }
+    return probe;
+  }
+
+  /**
+   * Release the probe of a half-open breaker that completed without any transport outcome.
+   *
+   * @param op completed fetch.
+   * @return true if the fetch was the probe.
+   */
+  boolean releaseProbe(FetchOne op) {
+    if (state == State.HALF_OPEN && probe == op) {
+      probe = null;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Hand the probe over to the fetch operation running it, once the pending probe is due.
+   *
+   * @param pending pending fetch that is due.
+   * @param op fetch operation running it.
+   */
+  void replaceProbe(PendingFetch pending, FetchOne op) {
+    if (probe == pending) {
+      probe = op;
+    }
+  }
+
+  @Override
+  public void run() {
+    source.probeCircuitBreaker(this);
+  }
+
+  @Override
+  public String toString() {
+    return "Circuit breaker of " + host + ": " + state + ", " + parked.size() + " parked";
+  }
+}
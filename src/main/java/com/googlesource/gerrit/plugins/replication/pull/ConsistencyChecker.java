@@ -0,0 +1,361 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.common.collect.Comparators;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Table;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.CredentialsFactory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Compares the refs advertised by a source with the local refs of a project, without fetching
+ * anything, and schedules the fetch of the refs that diverge.
+ *
+ * <p>The refs advertised by the source, mapped to their local names by the fetch refspecs, and the
+ * local refs within the destinations of the refspecs are compared with a single merge of the two
+ * sides sorted by name, rather than by looking up each ref in a map of the other side. The
+ * advertisement held by the connection is merged without being copied when it is already in order,
+ * and the local refs are listed one refspec destination at a time.
+ */
+@Singleton
+class ConsistencyChecker {
+  private final GitRepositoryManager gitManager;
+  private final CredentialsFactory credentialsFactory;
+  private final FetchReplicationMetrics metrics;
+
+  /** Divergent refs found by the last check of each source URI, indexed by source name. */
+  private final Table<String, URIish, Set<String>> lastDivergentRefs = HashBasedTable.create();
+
+  @Inject
+  ConsistencyChecker(
+      GitRepositoryManager gitManager,
+      CredentialsFactory credentialsFactory,
+      FetchReplicationMetrics metrics) {
+    this.gitManager = gitManager;
+    this.credentialsFactory = credentialsFactory;
+    this.metrics = metrics;
+  }
+
+  /** Divergences of a project from a source URI, with the names of the refs on the source. */
+  static class Report {
+    final Source source;
+    final Project.NameKey project;
+    final URIish uri;
+    /** Refs of the source missing locally. */
+    final List<String> missing = new ArrayList<>();
+    /** Refs of the source pointing locally to another object. */
+    final List<String> different = new ArrayList<>();
+    /** Local refs not advertised anymore by the source. */
+    final List<String> stale = new ArrayList<>();
+
+    int checkedRefs;
+
+    Report(Source source, Project.NameKey project, URIish uri) {
+      this.source = source;
+      this.project = project;
+      this.uri = uri;
+    }
+
+    boolean isConsistent() {
+      return missing.isEmpty() && different.isEmpty() && stale.isEmpty();
+    }
+
+    int getDivergentRefs() {
+      return missing.size() + different.size() + stale.size();
+    }
+  }
+
+  /** Ref advertised by a source, with its name in the local repository. */
+  static class RemoteRef {
+    final String name;
+    final String localName;
+    final ObjectId id;
+
+    RemoteRef(String name, String localName, ObjectId id) {
+      this.name = name;
+      this.localName = localName;
+      this.id = id;
+    }
+  }
+
+  /**
+   * Compare the local refs of a project with the ones advertised by a source URI.
+   *
+   * @param source source of the project.
+   * @param project project to check.
+   * @param uri URI of the project on the source.
+   * @return the divergences of the project.
+   */
+  Report check(Source source, Project.NameKey project, URIish uri) throws IOException {
+    RemoteConfig remoteConfig = source.getRemoteConfig();
+    List<RefSpec> specs = remoteConfig.getFetchRefSpecs();
+    RefPatternMatcher refMatcher = source.getRefPatternMatcher();
+    Report report = new Report(source, project, uri);
+
+    try (Repository git = gitManager.openRepository(project);
+        Transport tn = Transport.open(git, uri)) {
+      tn.applyConfig(remoteConfig);
+      tn.setCredentialsProvider(credentialsFactory.create(remoteConfig.getName()));
+      try (FetchConnection conn = tn.openFetch()) {
+        merge(
+            remoteRefs(conn.getRefs(), specs, refMatcher),
+            localRefs(git.getRefDatabase(), specs),
+            local -> {
+              String name = toRemoteName(specs, local.getName());
+              return name != null
+                      && refMatcher.matches(name)
+                      && !RefNames.REFS_CONFIG.equals(local.getName())
+                  ? name
+                  : null;
+            },
+            report);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    metrics.recordDivergentRefs(
+        source.getRemoteConfigName(), countNewDivergentRefs(source, report));
+    return report;
+  }
+
+  /**
+   * Compare the refs advertised by a source with the local refs in a single pass over both.
+   *
+   * @param remoteRefs refs advertised by the source, sorted by local name.
+   * @param localRefs local refs, sorted by name.
+   * @param staleName name on the source of a local ref to report when the source does not advertise
+   *     it, or null to ignore the ref.
+   * @param report report receiving the divergences.
+   */
+  static void merge(
+      Iterator<RemoteRef> remoteRefs,
+      Iterator<Ref> localRefs,
+      Function<Ref, String> staleName,
+      Report report) {
+    PeekingIterator<RemoteRef> remote = Iterators.peekingIterator(remoteRefs);
+    PeekingIterator<Ref> local = Iterators.peekingIterator(localRefs);
+    while (remote.hasNext() || local.hasNext()) {
+      int cmp;
+      if (!remote.hasNext()) {
+        cmp = 1;
+      } else if (!local.hasNext()) {
+        cmp = -1;
+      } else {
+        cmp = remote.peek().localName.compareTo(local.peek().getName());
+      }
+
+      if (cmp < 0) {
+        report.missing.add(remote.next().name);
+      } else if (cmp > 0) {
+        String name = staleName.apply(local.next());
+        if (name != null) {
+          report.stale.add(name);
+        }
+      } else {
+        RemoteRef ref = remote.next();
+        if (!ref.id.equals(local.next().getObjectId())) {
+          report.different.add(ref.name);
+        }
+      }
+      report.checkedRefs++;
+    }
+  }
+
+  /**
+   * Count the divergent refs of a report that the previous check of the same project did not find,
+   * so that the refs still diverging when checked again are not counted twice.
+   */
+  private int countNewDivergentRefs(Source source, Report report) {
+    Set<String> divergent = new HashSet<>();
+    divergent.addAll(report.missing);
+    divergent.addAll(report.different);
+    divergent.addAll(report.stale);
+    Set<String> previous;
+    synchronized (lastDivergentRefs) {
+      previous =
+          divergent.isEmpty()
+              ? lastDivergentRefs.remove(source.getRemoteConfigName(), report.uri)
+              : lastDivergentRefs.put(source.getRemoteConfigName(), report.uri, divergent);
+    }
+    return previous == null
+        ? divergent.size()
+        : (int) divergent.stream().filter(ref -> !previous.contains(ref)).count();
+  }
+
+  /**
+   * Schedule the fetch of the divergent refs of a project, and the deletion of its stale refs if
+   * the source prunes them.
+   *
+   * @param report divergences of the project.
+   * @param state replication state notified of the fetches.
+   * @param now true to start the fetches without delay.
+   * @return the number of refs scheduled.
+   */
+  int repair(Report report, ReplicationState state, boolean now) {
+    Source source = report.source;
+    int scheduled = 0;
+    for (List<String> refs : ImmutableList.of(report.missing, report.different)) {
+      for (String ref : refs) {
+        if (source.isMirrorGroup()) {
+          source.scheduleFromMirrors(report.project, ref, null, state, now, null);
+        } else {
+          source.schedule(report.project, ref, report.uri, state, now, null);
+        }
+        scheduled++;
+      }
+    }
+    if (source.isPruneEnabled()) {
+      for (String ref : report.stale) {
+        source.scheduleDeletion(report.project, ref, report.uri, state);
+        scheduled++;
+      }
+    }
+    return scheduled;
+  }
+
+  /**
+   * Sources advertise their refs sorted by name, which the refspecs mapping them to their local
+   * names usually preserve: they are then streamed from the advertisement, and only sorted
+   * otherwise.
+   *
+   * @return the advertised refs selected by the refspecs and the ref patterns, sorted by local
+   *     name.
+   */
+  private static Iterator<RemoteRef> remoteRefs(
+      Collection<Ref> advertised, List<RefSpec> specs, RefPatternMatcher refMatcher) {
+    FluentIterable<RemoteRef> refs =
+        FluentIterable.from(advertised)
+            .filter(ref -> ref.getObjectId() != null && refMatcher.matches(ref.getName()))
+            .transform(
+                ref -> {
+                  String localName = toLocalName(specs, ref.getName());
+                  return localName != null
+                      ? new RemoteRef(ref.getName(), localName, ref.getObjectId())
+                      : null;
+                })
+            .filter(Objects::nonNull);
+    return inOrder(refs, Comparator.comparing(ref -> ref.localName));
+  }
+
+  /**
+   * The local refs are listed one destination of the refspecs at a time, in the order of the
+   * destinations, while they are merged with the advertised refs.
+   *
+   * @return the local refs within the destinations of the refspecs, sorted by name.
+   */
+  private static Iterator<Ref> localRefs(RefDatabase refDb, List<RefSpec> specs) {
+    List<String> prefixes = new ArrayList<>();
+    for (RefSpec spec : specs) {
+      String destination = spec.getDestination();
+      if (destination != null) {
+        prefixes.add(
+            spec.isWildcard() ? destination.substring(0, destination.indexOf('*')) : destination);
+      }
+    }
+    Collections.sort(prefixes);
+    // Overlapping refspecs would list the same refs more than once: only the prefixes not within
+    // another one are kept, so that the refs listed for each of them follow the previous ones.
+    List<String> disjointPrefixes = new ArrayList<>();
+    for (String prefix : prefixes) {
+      if (disjointPrefixes.isEmpty()
+          || !prefix.startsWith(disjointPrefixes.get(disjointPrefixes.size() - 1))) {
+        disjointPrefixes.add(prefix);
+      }
+    }
+
+    return Iterators.concat(
+        Iterators.transform(
+            disjointPrefixes.iterator(),
+            prefix -> {
+              List<Ref> refs;
+              try {
+                refs = refDb.getRefsByPrefix(prefix);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+              return inOrder(
+                  FluentIterable.from(refs)
+                      .filter(
+                          ref ->
+                              !ref.isSymbolic()
+                                  && ref.getObjectId() != null
+                                  && specs.stream()
+                                      .anyMatch(
+                                          spec ->
+                                              spec.getDestination() != null
+                                                  && spec.matchDestination(ref.getName()))),
+                  Comparator.comparing(Ref::getName));
+            }));
+  }
+
+  private static <T> Iterator<T> inOrder(Iterable<T> items, Comparator<T> order) {
+    if (Comparators.isInOrder(items, order)) {
+      return items.iterator();
+    }
+    List<T> sorted = Lists.newArrayList(items);
+    sorted.sort(order);
+    return sorted.iterator();
+  }
+
+  private static String toLocalName(List<RefSpec> specs, String remoteName) {
+    for (RefSpec spec : specs) {
+      if (spec.getDestination() != null && spec.matchSource(remoteName)) {
+        return spec.expandFromSource(remoteName).getDestination();
+      }
+    }
+    return null;
+  }
+
+  private static String toRemoteName(List<RefSpec> specs, String localName) {
+    for (RefSpec spec : specs) {
+      if (spec.getSource() != null && spec.matchDestination(localName)) {
+        return spec.expandFromDestination(localName).getSource();
+      }
+    }
+    return null;
+  }
+}
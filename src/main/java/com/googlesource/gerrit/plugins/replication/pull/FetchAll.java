@@ -21,6 +21,9 @@ import com.google.gerrit.server.project.ProjectCache;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.googlesource.gerrit.plugins.replication.ReplicationFilter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.transport.URIish;
@@ -39,6 +42,10 @@ public class FetchAll implements Runnable {
   private final ReplicationState state;
   private final boolean now;
   private final SourcesCollection sources;
+  private final List<Project.NameKey> missingProjects = new ArrayList<>();
+  private final List<String> deletedRefs = new ArrayList<>();
+  private String origin;
+  private boolean reuseFreshFetches;
 
   @Inject
   protected FetchAll(
@@ -60,18 +67,79 @@ public class FetchAll implements Runnable {
     this.now = now;
   }
 
+  /**
+   * Fetch also projects that do not exist locally from the sources that create missing
+   * repositories.
+   *
+   * @param projects names of the projects missing locally.
+   * @return this instance.
+   */
+  FetchAll includeMissingProjects(Collection<Project.NameKey> projects) {
+    missingProjects.addAll(projects);
+    return this;
+  }
+
+  /**
+   * Replicate updates that originated from another node of a multi-primary setup.
+   *
+   * @param instanceId instance id of the node where the projects have been updated. Nothing is
+   *     replicated when it is the id of this instance.
+   * @return this instance.
+   */
+  FetchAll originatedFrom(@Nullable String instanceId) {
+    origin = instanceId;
+    return this;
+  }
+
+  /**
+   * Reuse the fetches of all the refs of the projects completed within the freshness TTL of each
+   * source, or in flight, instead of queuing new ones.
+   *
+   * @param reuse true to reuse the recent fetches.
+   * @return this instance.
+   */
+  FetchAll reuseFreshFetches(boolean reuse) {
+    reuseFreshFetches = reuse;
+    return this;
+  }
+
+  /**
+   * Delete refs removed from the sources, instead of fetching all the refs of the projects.
+   *
+   * <p>The refs are deleted locally without fetching from the sources, and only from the projects
+   * that exist locally.
+   *
+   * @param refs names of the refs on the sources.
+   * @return this instance.
+   */
+  FetchAll deleteRefs(Collection<String> refs) {
+    deletedRefs.addAll(refs);
+    return this;
+  }
+
   Future<?> schedule(long delay, TimeUnit unit) {
     return workQueue.getDefaultQueue().schedule(this, delay, unit);
   }
 
   @Override
   public void run() {
+    // Scheduled on the default work queue, which must never wait for room in
+    // the pending fetches.
+    Source.runWithoutBlocking(this::scheduleProjects);
+  }
+
+  private void scheduleProjects() {
     try {
       for (Project.NameKey nameKey : projectCache.all()) {
         if (filter.matches(nameKey)) {
           scheduleFullSync(nameKey, urlMatch, state, now);
         }
       }
+      if (deletedRefs.isEmpty()) {
+        for (Project.NameKey nameKey : missingProjects) {
+          scheduleMissingProjectSync(nameKey, urlMatch, state, now);
+        }
+      }
     } catch (Exception e) {
       stateLog.error("Cannot enumerate known projects", e, state);
     }
@@ -83,13 +151,66 @@ public class FetchAll implements Runnable {
 
     for (Source cfg : sources.getAll()) {
       if (cfg.wouldFetchProject(project)) {
-        for (URIish uri : cfg.getURIs(project, urlMatch)) {
-          cfg.schedule(project, FetchOne.ALL_REFS, uri, state, now);
+        if (deletedRefs.isEmpty()) {
+          scheduleAllRefs(cfg, project, urlMatch, state, now, origin, reuseFreshFetches);
+        } else {
+          scheduleDeletions(cfg, project, urlMatch, state, now);
         }
       }
     }
   }
 
+  private void scheduleDeletions(
+      Source cfg, Project.NameKey project, String urlMatch, ReplicationState state, boolean now) {
+    for (URIish uri : cfg.getURIs(project, urlMatch)) {
+      for (String ref : deletedRefs) {
+        cfg.scheduleDeletion(project, ref, uri, state, now, origin);
+      }
+      if (cfg.isMirrorGroup()) {
+        // The refs are deleted locally: once is enough for all the mirrors.
+        return;
+      }
+    }
+  }
+
+  private void scheduleMissingProjectSync(
+      Project.NameKey project, String urlMatch, ReplicationState state, boolean now) {
+    for (Source cfg : sources.getAll()) {
+      if (cfg.isCreateMissingRepositories() && cfg.wouldFetchProject(project)) {
+        scheduleAllRefs(cfg, project, urlMatch, state, now, origin, reuseFreshFetches);
+      }
+    }
+  }
+
+  static void scheduleAllRefs(
+      Source cfg,
+      Project.NameKey project,
+      String urlMatch,
+      ReplicationState state,
+      boolean now,
+      String origin) {
+    scheduleAllRefs(cfg, project, urlMatch, state, now, origin, false);
+  }
+
+  private static void scheduleAllRefs(
+      Source cfg,
+      Project.NameKey project,
+      String urlMatch,
+      ReplicationState state,
+      boolean now,
+      String origin,
+      boolean reuseFreshFetches) {
+    if (cfg.isMirrorGroup()) {
+      cfg.scheduleFromMirrors(project, FetchOne.ALL_REFS, urlMatch, state, now, origin);
+      return;
+    }
+    for (URIish uri : cfg.getURIs(project, urlMatch)) {
+      if (!reuseFreshFetches || !cfg.reuseFreshFetch(project, uri, state, origin)) {
+        cfg.schedule(project, FetchOne.ALL_REFS, uri, state, now, origin);
+      }
+    }
+  }
+
   @Override
   public String toString() {
     String s = "Replicate All Projects";
@@ -0,0 +1,97 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.json.OutputFormat;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.ReplicationFileBasedConfig;
+import java.util.Collection;
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Audit log of the fetch operations, with one JSON record per execution of a fetch.
+ *
+ * <p>Enabled by {@code replication.auditLog}. The records are written by {@link
+ * PullReplicationAuditLogFile}, which drops them rather than blocking the fetch threads when its
+ * buffer of {@code replication.auditLogBufferSize} records is full.
+ */
+@Singleton
+class FetchAuditLog {
+  static final String AUDIT_LOG_NAME = "pull_replication_audit_log";
+  static final int DEFAULT_BUFFER_SIZE = 1024;
+
+  private static final Logger auditLog = LoggerFactory.getLogger(AUDIT_LOG_NAME);
+
+  private final Gson gson = OutputFormat.JSON_COMPACT.newGson();
+  private final boolean enabled;
+  private final int bufferSize;
+
+  @Inject
+  FetchAuditLog(ReplicationFileBasedConfig replicationConfig) {
+    this(replicationConfig.getConfig());
+  }
+
+  FetchAuditLog(Config cfg) {
+    enabled = cfg.getBoolean("replication", "auditLog", false);
+    bufferSize = Math.max(1, cfg.getInt("replication", "auditLogBufferSize", DEFAULT_BUFFER_SIZE));
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  void log(Record record) {
+    if (enabled) {
+      auditLog.info(toJson(record));
+    }
+  }
+
+  String toJson(Record record) {
+    return gson.toJson(record);
+  }
+
+  /** Outcome of one execution of a fetch operation. Durations are in milliseconds. */
+  static class Record {
+    String timestamp;
+    String id;
+    String type;
+    String source;
+    String project;
+    String uri;
+    String status;
+    Collection<String> refs;
+    Collection<String> deletedRefs;
+    Collection<String> alternates;
+    int fetchedRefs;
+    int updatedRefs;
+    int removedRefs;
+    int failedRefs;
+    long receivedObjects;
+    long delay;
+    long openRepository;
+    long fetch;
+    long updateRefs;
+    long elapsed;
+    int retries;
+  }
+}
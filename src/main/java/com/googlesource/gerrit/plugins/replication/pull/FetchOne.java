@@ -14,19 +14,23 @@
 
 package com.googlesource.gerrit.plugins.replication.pull;
 
+import static com.googlesource.gerrit.plugins.replication.pull.FetchResultProcessing.resolveNodeName;
 import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.PerThreadRequestScope;
-import com.google.gerrit.server.git.ProjectRunnable;
-import com.google.gerrit.server.git.WorkQueue.CanceledWhileRunning;
 import com.google.gerrit.server.ioutil.HexFormat;
 import com.google.gerrit.server.util.IdGenerator;
 import com.google.inject.Inject;
@@ -34,22 +38,37 @@ import com.google.inject.assistedinject.Assisted;
 import com.googlesource.gerrit.plugins.replication.CredentialsFactory;
 import com.jcraft.jsch.JSchException;
 import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import org.eclipse.jgit.errors.NoRemoteRepositoryException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.RemoteRepositoryException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
 import org.eclipse.jgit.transport.Transport;
@@ -57,14 +76,13 @@ import org.eclipse.jgit.transport.URIish;
 import org.slf4j.MDC;
 
 /**
- * A pull from remote operation started by command-line.
+ * A pull from remote operation, created from its {@link PendingFetch} once due.
  *
- * <p>Instance members are protected by the lock within FetchQueue. Callers must take that lock to
+ * <p>Instance members are protected by the lock within Source. Callers must take that lock to
  * ensure they are working with a current view of the object.
  */
-class FetchOne implements ProjectRunnable, CanceledWhileRunning {
+class FetchOne extends PendingFetch {
   private final ReplicationStateListener stateLog;
-  static final String ALL_REFS = "..all..";
   static final String ID_MDC_KEY = "fetchOneId";
 
   interface Factory {
@@ -72,27 +90,43 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
   }
 
   private final GitRepositoryManager gitManager;
-  private final Source pool;
   private final RemoteConfig config;
-  private final CredentialsProvider credentialsProvider;
+  private final CredentialsFactory credentialsFactory;
+  private CredentialsProvider credentialsProvider;
   private final PerThreadRequestScope.Scoper threadScoper;
 
-  private final Project.NameKey projectName;
-  private final URIish uri;
-  private final Set<String> delta = Sets.newHashSetWithExpectedSize(4);
-  private boolean fetchAllRefs;
+  private boolean fetchDeltaOnly;
+  private boolean backfill;
+  private boolean hedge;
+  private MirrorFetch mirrorFetch;
+  private Map<String, RefUpdate.Result> refResults;
+  private RefUpdate.Result allRefsResult;
+  private volatile Transport transport;
+  private volatile boolean aborted;
+  private final FetchProgressMonitor progressMonitor = new FetchProgressMonitor();
+  private long openRepositoryNanos;
+  private long fetchNanos;
+  private boolean sourceReached;
+  private int fetchedRefCount;
+  private int updatedRefCount;
+  private int deletedRefCount;
+  private int failedRefCount;
   private Repository git;
+  private List<Project.NameKey> alternates = Collections.emptyList();
   private boolean retrying;
   private int retryCount;
   private final int maxRetries;
-  private boolean canceled;
-  private final ListMultimap<String, ReplicationState> stateMap = LinkedListMultimap.create();
+  private boolean waitingForRepository;
+  private int deferrals;
+  // States subscribed while in flight, guarded by this operation.
+  private ListMultimap<String, ReplicationState> subscriptions;
+  private boolean subscribable;
   private final int maxLockRetries;
   private int lockRetryCount;
-  private final int id;
-  private final long createdAt;
   private final FetchReplicationMetrics metrics;
-  private final AtomicBoolean canceledWhileRunning;
+  private final FetchAuditLog auditLog;
+  private final RepositoryMaintenance maintenance;
+  private volatile boolean canceledWhileRunning;
 
   @Inject
   FetchOne(
@@ -104,56 +138,38 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
       IdGenerator ig,
       ReplicationStateListeners sl,
       FetchReplicationMetrics m,
+      FetchAuditLog al,
+      RepositoryMaintenance rm,
       @Assisted Project.NameKey d,
       @Assisted URIish u) {
+    super(s, d, u, ig.next());
     gitManager = grm;
-    pool = s;
     config = c;
-    credentialsProvider = cpFactory.create(c.getName());
+    credentialsFactory = cpFactory;
     threadScoper = ts;
-    projectName = d;
-    uri = u;
     lockRetryCount = 0;
     maxLockRetries = pool.getLockErrorMaxRetries();
-    id = ig.next();
     stateLog = sl;
-    createdAt = System.nanoTime();
     metrics = m;
-    canceledWhileRunning = new AtomicBoolean(false);
+    auditLog = al;
+    maintenance = rm;
     maxRetries = s.getMaxRetries();
   }
 
-  @Override
-  public void cancel() {
-    repLog.info("Replication {} was canceled", getURI());
-    canceledByReplication();
-    pool.fetchWasCanceled(this);
-  }
-
   @Override
   public void setCanceledWhileRunning() {
     repLog.info("Replication {} was canceled while being executed", getURI());
-    canceledWhileRunning.set(true);
-  }
-
-  @Override
-  public Project.NameKey getProjectNameKey() {
-    return projectName;
-  }
-
-  @Override
-  public String getRemoteName() {
-    return config.getName();
-  }
-
-  @Override
-  public boolean hasCustomizedPrint() {
-    return true;
+    canceledWhileRunning = true;
   }
 
   @Override
   public String toString() {
-    String print = "[" + HexFormat.fromInt(id) + "] fetch " + uri;
+    String print =
+        "["
+            + HexFormat.fromInt(id)
+            + "] "
+            + (backfill ? "backfill " : hedge ? "hedge " : "fetch ")
+            + uri;
 
     if (retryCount > 0) {
       print = "(retry " + retryCount + ") " + print;
@@ -161,6 +177,7 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
     return print;
   }
 
+  @Override
   boolean isRetrying() {
     return retrying;
   }
@@ -171,70 +188,171 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
     return maxRetries == 0 || retryCount <= maxRetries;
   }
 
-  void canceledByReplication() {
-    canceled = true;
+  /** @return the number of times this fetch into a fork has waited for its parents. */
+  int getDeferrals() {
+    return deferrals;
   }
 
-  boolean wasCanceled() {
-    return canceled;
+  void recordDeferral() {
+    deferrals++;
   }
 
-  URIish getURI() {
-    return uri;
+  /**
+   * Mark this operation as waiting for the creation of its missing local repository.
+   *
+   * @return false if it has already waited for it, and the repository is still missing.
+   */
+  boolean setWaitingForRepository() {
+    if (waitingForRepository) {
+      return false;
+    }
+    waitingForRepository = true;
+    return true;
   }
 
-  void addRef(String ref) {
-    if (ALL_REFS.equals(ref)) {
-      delta.clear();
-      fetchAllRefs = true;
-      repLog.trace("Added all refs for replication from {}", uri);
-    } else if (!fetchAllRefs) {
-      delta.add(ref);
-      repLog.trace("Added ref {} for replication from {}", ref, uri);
-    }
+  /** Mark this operation as the background fetch of all refs following a staged initial fetch. */
+  void setBackfill() {
+    backfill = true;
   }
 
-  Set<String> getRefs() {
-    return fetchAllRefs ? Sets.newHashSet(ALL_REFS) : delta;
+  @Override
+  boolean isBackfill() {
+    return backfill;
   }
 
-  void addRefs(Set<String> refs) {
-    if (!fetchAllRefs) {
-      for (String ref : refs) {
-        addRef(ref);
-      }
+  /**
+   * Make this operation one of the fetches of a mirror fetch.
+   *
+   * @param mirrorFetch the mirror fetch.
+   */
+  void setMirrorFetch(MirrorFetch mirrorFetch) {
+    this.mirrorFetch = mirrorFetch;
+    refResults = new LinkedHashMap<>();
+  }
+
+  @Override
+  MirrorFetch getMirrorFetch() {
+    return mirrorFetch;
+  }
+
+  /** Mark this operation as the hedge fetch of its mirror fetch. */
+  void setHedge() {
+    hedge = true;
+  }
+
+  @Override
+  boolean isHedge() {
+    return hedge;
+  }
+
+  /**
+   * Check whether the connection of this operation to the source is not making any progress.
+   *
+   * @param timeoutNanos nanoseconds without progress after which the operation is stalled.
+   * @return true if the operation is connected to the source and stalled, and not aborted yet.
+   */
+  boolean isStalled(long timeoutNanos) {
+    return !aborted && transport != null && progressMonitor.getIdleNanos() > timeoutNanos;
+  }
+
+  String getProgress() {
+    return progressMonitor.toString();
+  }
+
+  /**
+   * Abort this operation, if running, by closing its connection to the source.
+   *
+   * <p>Used when another fetch of the same mirror fetch completed first, or when the fetch is
+   * stalled. Transports that do not support closing a connection while in use let the fetch
+   * complete, or fail once its progress monitor is checked again.
+   */
+  void abort() {
+    aborted = true;
+    progressMonitor.cancel();
+    Transport tn = transport;
+    if (tn != null) {
+      tn.close();
     }
   }
 
-  void addState(String ref, ReplicationState state) {
-    stateMap.put(ref, state);
+  /**
+   * @return the result reported to the states waiting for all the refs, if the last run of this
+   *     operation fetched all of them successfully, null otherwise.
+   */
+  @Nullable
+  RefUpdate.Result getAllRefsResult() {
+    return allRefsResult;
   }
 
-  ListMultimap<String, ReplicationState> getStates() {
-    return stateMap;
+  /**
+   * Subscribe a replication state to this in-flight operation, rather than fetching the ref again
+   * after it.
+   *
+   * <p>Only possible until the operation reads the refs advertised by the source, so that the ref
+   * is fetched at least as new as when subscribed, and only for a ref that the operation fetches.
+   *
+   * @param ref ref to replicate.
+   * @param state replication state notified of the replication of the ref.
+   * @return true if subscribed, false if the ref needs another fetch.
+   */
+  synchronized boolean subscribe(String ref, ReplicationState state) {
+    if (!subscribable || mirrorFetch != null || !(fetchAllRefs || delta.contains(ref))) {
+      return false;
+    }
+    if (subscriptions == null) {
+      subscriptions = LinkedListMultimap.create(1);
+    }
+    subscriptions.put(ref, state);
+    return true;
   }
 
-  ReplicationState[] getStatesAsArray() {
-    Set<ReplicationState> statesSet = new HashSet<>();
-    statesSet.addAll(stateMap.values());
-    return statesSet.toArray(new ReplicationState[statesSet.size()]);
+  /** Accept subscriptions until the refs advertised by the source are read. */
+  private synchronized void openSubscriptions() {
+    subscribable = true;
   }
 
-  ReplicationState[] getStatesByRef(String ref) {
-    Collection<ReplicationState> states = stateMap.get(ref);
-    return states.toArray(new ReplicationState[states.size()]);
+  /** Take over the subscribed states, as the refs advertised by the source are about to be read. */
+  private synchronized void takeSubscriptions() {
+    subscribable = false;
+    if (subscriptions != null) {
+      stateMap.putAll(subscriptions);
+      subscriptions = null;
+    }
   }
 
-  void addStates(ListMultimap<String, ReplicationState> states) {
-    stateMap.putAll(states);
+  /**
+   * Stop accepting subscriptions, once the operation is finished.
+   *
+   * @return the states subscribed but not taken over, as the refs of the source were never read.
+   */
+  synchronized ListMultimap<String, ReplicationState> closeSubscriptions() {
+    subscribable = false;
+    ListMultimap<String, ReplicationState> states = subscriptions;
+    subscriptions = null;
+    return states != null ? states : ImmutableListMultimap.of();
   }
 
-  void removeStates() {
-    stateMap.clear();
+  /**
+   * Get the states to report an error about a ref to, including the states waiting for all the
+   * refs. Only meant for the error paths, as it copies the states.
+   */
+  private ReplicationState[] getStatesAsArray(String ref) {
+    Set<ReplicationState> statesSet = new HashSet<>();
+    statesSet.addAll(stateMap.get(ref));
+    statesSet.addAll(stateMap.get(ALL_REFS));
+    return statesSet.toArray(new ReplicationState[statesSet.size()]);
+  }
+
+  private void notifyStates(
+      String ref, ReplicationState.RefFetchResult status, RefUpdate.Result result) {
+    for (ReplicationState rs : stateMap.get(ref)) {
+      rs.notifyRefReplicated(projectName.get(), ref, uri, status, result);
+    }
   }
 
   private void statesCleanUp() {
-    if (!stateMap.isEmpty() && !isRetrying()) {
+    // A fetch rescheduled after a collision is pending again and notifies its states when it runs.
+    if (!stateMap.isEmpty() && !isRetrying() && !pool.isPending(this)) {
       for (Map.Entry<String, ReplicationState> entry : stateMap.entries()) {
         entry
             .getValue()
@@ -275,6 +393,8 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
     // created and scheduled for a future point in time.)
     //
     MDC.put(ID_MDC_KEY, HexFormat.fromInt(id));
+    // Only aborted while in flight: a previous run may have been aborted.
+    aborted = false;
     if (!pool.requestRunway(this)) {
       if (!canceled) {
         repLog.info(
@@ -284,14 +404,50 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
       return;
     }
 
+    openSubscriptions();
     repLog.info("Replication from {} started...", uri);
     Timer1.Context<String> context = metrics.start(config.getName());
+    long startedAt = context.getStartTime();
+    long delay = NANOSECONDS.toMillis(startedAt - createdAt);
+    FetchAuditLog.Record auditRecord = auditLog.isEnabled() ? newAuditRecord() : null;
+    boolean succeeded = false;
+    boolean replayed = false;
+    boolean deferred = false;
+    FetchPartitioner.Lease lease = null;
     try {
-      long startedAt = context.getStartTime();
-      long delay = NANOSECONDS.toMillis(startedAt - createdAt);
       metrics.record(config.getName(), delay, retryCount);
+      resetPhaseStats();
+      allRefsResult = null;
       git = gitManager.openRepository(projectName);
-      runImpl();
+      openRepositoryNanos = System.nanoTime() - startedAt;
+      alternates = ProjectAlternates.of(git, projectName);
+      if (pool.deferAfterParents(this, alternates)) {
+        deferred = true;
+        return;
+      }
+      lease = pool.tryLease(this, git);
+      if (lease == null) {
+        repLog.info(
+            "Rescheduling replication from {} to avoid collision with a fetch of another node.",
+            uri);
+        pool.reschedule(this, Source.RetryReason.COLLISION);
+        return;
+      }
+      if (mirrorFetch == null) {
+        runImpl();
+      } else {
+        replayed = !runFromMirror();
+      }
+      if (!replayed) {
+        succeeded = true;
+        maintenance.recordFetch(projectName, progressMonitor.getReceivedObjects() > 0);
+      }
+      if (sourceReached) {
+        pool.recordTransportSuccess(this);
+        if (!alternates.isEmpty()) {
+          metrics.recordForkFetch(config.getName(), progressMonitor.getReceivedObjects());
+        }
+      }
       long elapsed = NANOSECONDS.toMillis(context.stop());
       repLog.info(
           "Replication from {} completed in {}ms, {}ms delay, {} retries",
@@ -300,9 +456,16 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
           delay,
           retryCount);
     } catch (RepositoryNotFoundException e) {
-      stateLog.error(
-          "Cannot replicate " + projectName + "; Local repository error: " + e.getMessage(),
-          getStatesAsArray());
+      if (pool.createMissingRepository(this)) {
+        repLog.info(
+            "Local repository {} is missing, replication from {} is retried once created",
+            projectName,
+            uri);
+      } else {
+        stateLog.error(
+            "Cannot replicate " + projectName + "; Local repository error: " + e.getMessage(),
+            getStatesAsArray());
+      }
 
     } catch (NoRemoteRepositoryException | RemoteRepositoryException e) {
       // Tried to replicate to a remote via anonymous git:// but the repository
@@ -324,7 +487,7 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
 
         // The remote fetch operation should be retried.
         if (lockRetryCount <= maxLockRetries) {
-          if (canceledWhileRunning.get()) {
+          if (canceledWhileRunning) {
             logCanceledWhileRunningException(e);
           } else {
             pool.reschedule(this, Source.RetryReason.TRANSPORT_ERROR);
@@ -337,7 +500,8 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
               uri);
         }
       } else {
-        if (canceledWhileRunning.get()) {
+        pool.recordTransportFailure(this);
+        if (canceledWhileRunning) {
           logCanceledWhileRunningException(e);
         } else {
           repLog.error("Cannot replicate from {}", uri, e);
@@ -350,116 +514,724 @@ class FetchOne implements ProjectRunnable, CanceledWhileRunning {
     } catch (RuntimeException | Error e) {
       stateLog.error("Unexpected error during replication from " + uri, e, getStatesAsArray());
     } finally {
+      if (lease != null) {
+        lease.close();
+      }
       if (git != null) {
         git.close();
       }
       pool.notifyFinished(this);
+      // A fetch deferred after its parents has neither run nor failed.
+      if (!deferred) {
+        reportIfSlow(startedAt, delay);
+      }
+      if (auditRecord != null && !deferred) {
+        audit(
+            auditRecord,
+            succeeded ? "succeeded" : replayed ? "replayed" : "failed",
+            startedAt,
+            delay);
+      }
     }
   }
 
+  private void resetPhaseStats() {
+    openRepositoryNanos = 0;
+    fetchNanos = 0;
+    sourceReached = false;
+    fetchedRefCount = 0;
+    updatedRefCount = 0;
+    deletedRefCount = 0;
+    failedRefCount = 0;
+  }
+
+  private void reportIfSlow(long startedAt, long delay) {
+    long threshold = SECONDS.toMillis(pool.getSlowLatencyThreshold());
+    long elapsed = NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    if (threshold <= 0 || elapsed < threshold) {
+      return;
+    }
+
+    long openRepository = NANOSECONDS.toMillis(openRepositoryNanos);
+    long fetch = NANOSECONDS.toMillis(fetchNanos);
+    long updateRefs = Math.max(0, elapsed - openRepository - fetch);
+    metrics.recordSlowFetch(config.getName());
+    // The states are already notified: only logged.
+    stateLog.warn(
+        String.format(
+            "Replication from %s took %dms, above the slow latency threshold of %dms: %dms delay,"
+                + " %dms opening the local repository, %dms fetching, %dms updating the local"
+                + " refs; %d refs fetched, %d updated, %d deleted, %d retries",
+            uri,
+            elapsed,
+            threshold,
+            delay,
+            openRepository,
+            fetch,
+            updateRefs,
+            fetchedRefCount,
+            updatedRefCount,
+            deletedRefCount,
+            retryCount));
+    pool.postSlowFetchEvent(
+        new FetchSlowEvent(
+            projectName.get(),
+            resolveNodeName(uri),
+            elapsed,
+            delay,
+            openRepository,
+            fetch,
+            updateRefs,
+            fetchedRefCount,
+            updatedRefCount,
+            deletedRefCount,
+            retryCount));
+  }
+
+  /** Start the audit record of this execution, with the refs requested before it runs. */
+  private FetchAuditLog.Record newAuditRecord() {
+    FetchAuditLog.Record r = new FetchAuditLog.Record();
+    r.timestamp = Instant.now().toString();
+    r.id = HexFormat.fromInt(id);
+    r.type = backfill ? "backfill" : hedge ? "hedge" : "fetch";
+    r.source = config.getName();
+    r.project = projectName.get();
+    r.uri = uri.toString();
+    r.refs = new ArrayList<>(getRefs());
+    r.deletedRefs = new ArrayList<>(deletedRefs);
+    r.retries = retryCount;
+    return r;
+  }
+
+  private void audit(FetchAuditLog.Record r, String status, long startedAt, long delay) {
+    long elapsed = NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    r.status = status;
+    r.fetchedRefs = fetchedRefCount;
+    r.updatedRefs = updatedRefCount;
+    r.removedRefs = deletedRefCount;
+    r.failedRefs = failedRefCount;
+    r.receivedObjects = progressMonitor.getReceivedObjects();
+    r.alternates = alternates.isEmpty() ? null : Lists.transform(alternates, Project.NameKey::get);
+    r.delay = delay;
+    r.openRepository = NANOSECONDS.toMillis(openRepositoryNanos);
+    r.fetch = NANOSECONDS.toMillis(fetchNanos);
+    r.updateRefs = Math.max(0, elapsed - r.openRepository - r.fetch);
+    r.elapsed = elapsed;
+    auditLog.log(r);
+  }
+
   private void logCanceledWhileRunningException(TransportException e) {
     repLog.info("Cannot replicate from {}. It was canceled while running", uri, e);
   }
 
+  /**
+   * Run this operation as one of the fetches of its mirror fetch.
+   *
+   * @return true if this fetch completed, false if it failed after the other fetch completed and
+   *     the outcome of the other fetch has been replayed instead.
+   */
+  private boolean runFromMirror() throws IOException {
+    long startedAt = System.nanoTime();
+    refResults.clear();
+    try {
+      runImpl();
+    } catch (IOException | RuntimeException e) {
+      MirrorFetch.Outcome outcome = pool.getMirrorFetchOutcome(this);
+      if (outcome != null) {
+        pool.recordMirrorAborted(this, NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        replayMirrorFetch(outcome);
+        return false;
+      }
+      if (!(e instanceof LockFailureException)) {
+        pool.recordMirrorFailure(this);
+      }
+      throw e;
+    }
+    pool.completeMirrorFetch(
+        this,
+        NANOSECONDS.toMillis(System.nanoTime() - startedAt),
+        new MirrorFetch.Outcome(uri, new LinkedHashMap<>(refResults)));
+    return true;
+  }
+
+  /**
+   * Notify the replication states of this operation with the outcome of the other fetch of its
+   * mirror fetch, which completed first.
+   *
+   * @param outcome outcome of the other fetch.
+   */
+  void replayMirrorFetch(MirrorFetch.Outcome outcome) {
+    repLog.info("Replication from {} completed by the fetch from {}", uri, outcome.getURI());
+    Set<String> waitingRefs = getWaitingRefs();
+    boolean anyRefFailed = false;
+    RefUpdate.Result lastRefUpdateResult = RefUpdate.Result.NO_CHANGE;
+    try {
+      for (Map.Entry<String, RefUpdate.Result> r : outcome.getRefResults().entrySet()) {
+        lastRefUpdateResult = r.getValue();
+        if (!updateState(
+            r.getKey(), r.getValue(), () -> "fetched from " + outcome.getURI(), waitingRefs)) {
+          anyRefFailed = true;
+        }
+      }
+    } catch (IOException e) {
+      // Not expected, the outcome is the one of a successful fetch.
+      repLog.error("Cannot replay replication from {}", outcome.getURI(), e);
+      anyRefFailed = true;
+    }
+    notifyRemainingStates(waitingRefs, anyRefFailed, lastRefUpdateResult);
+  }
+
   private void runImpl() throws IOException {
+    List<RefDeletionResult> deletions = new ArrayList<>();
+    if (!deletedRefs.isEmpty()) {
+      deletions.addAll(deleteRefs(toLocalRefs(deletedRefs)));
+      if (!fetchAllRefs && delta.isEmpty()) {
+        // Nothing else to replicate: no need to fetch from the source.
+        updateStates(Collections.emptyList(), Collections.emptyMap(), deletions);
+        return;
+      }
+    }
+
+    List<RefSpec> fetchRefSpecs = config.getFetchRefSpecs();
+    boolean initialFetch =
+        !backfill && !hedge && pool.isInitialFetchStaged() && isEmptyRepository();
+    if (initialFetch) {
+      fetchRefSpecs = pool.getInitialFetchRefSpecs();
+      repLog.info("Local repository {} is empty, staging initial fetch from {}", projectName, uri);
+    }
+
+    boolean atomicRefUpdates = pool.isAtomicRefUpdates();
     FetchResult res;
-    try (Transport tn = Transport.open(git, uri)) {
-      res = fetchVia(tn);
+    long fetchStartedAt = System.nanoTime();
+    try (AdvertisedRefsTransport tn = new AdvertisedRefsTransport(git, Transport.open(git, uri))) {
+      takeSubscriptions();
+      progressMonitor.restart();
+      transport = tn;
+      if (aborted) {
+        throw new TransportException(uri, "aborted");
+      }
+      if (!initialFetch && fetchDeltaOnly && !fetchAllRefs) {
+        fetchRefSpecs = deltaRefSpecs(tn);
+      } else if (!pool.getRefPatternMatcher().matchesAll()) {
+        fetchRefSpecs = selectedRefSpecs(tn, fetchRefSpecs);
+      }
+      if (fetchRefSpecs.isEmpty()) {
+        // None of the refs is advertised anymore by the source, or all are excluded.
+        sourceReached = true;
+        updateStates(Collections.emptyList(), Collections.emptyMap(), deletions);
+        return;
+      }
+      // With atomic ref updates the transport only fetches the objects and
+      // computes the ref updates, which are then applied with one batch.
+      tn.setDryRun(atomicRefUpdates);
+      res = fetchVia(tn, fetchRefSpecs);
+      sourceReached = true;
+    } finally {
+      transport = null;
+      fetchNanos += System.nanoTime() - fetchStartedAt;
+    }
+    fetchedRefCount += res.getTrackingRefUpdates().size();
+
+    Map<String, RefUpdate.Result> appliedResults =
+        atomicRefUpdates ? applyRefUpdates(res.getTrackingRefUpdates()) : Collections.emptyMap();
+
+    if (!initialFetch) {
+      if (fetchAllRefs && pool.isPruneEnabled()) {
+        deletions.addAll(deleteRefs(staleRefs(res)));
+      }
+      updateStates(res.getTrackingRefUpdates(), appliedResults, deletions);
+      return;
+    }
+
+    // The states waiting for all the refs, and for the refs not updated by
+    // the initial fetch, are handed over to the backfill, which is the one
+    // completing the replication of the repository.
+    ListMultimap<String, ReplicationState> backfillStates = LinkedListMultimap.create();
+    backfillStates.putAll(ALL_REFS, stateMap.removeAll(ALL_REFS));
+    if (!stateMap.isEmpty()) {
+      Set<String> updatedRefs = new HashSet<>();
+      for (TrackingRefUpdate u : res.getTrackingRefUpdates()) {
+        updatedRefs.add(u.getRemoteName());
+      }
+      for (RefDeletionResult d : deletions) {
+        updatedRefs.add(d.getRemoteName());
+      }
+      for (String ref : new ArrayList<>(stateMap.keySet())) {
+        if (!updatedRefs.contains(ref)) {
+          backfillStates.putAll(ref, stateMap.removeAll(ref));
+        }
+      }
+    }
+    try {
+      updateStates(res.getTrackingRefUpdates(), appliedResults, deletions);
+      allRefsResult = null;
+    } finally {
+      pool.scheduleBackfill(projectName, uri, backfillStates);
     }
-    updateStates(res.getTrackingRefUpdates());
   }
 
-  private FetchResult fetchVia(Transport tn) throws IOException {
-    tn.applyConfig(config);
-    tn.setCredentialsProvider(credentialsProvider);
+  private boolean isEmptyRepository() throws IOException {
+    return git.getRefDatabase().getRefsByPrefix(Constants.R_REFS).isEmpty();
+  }
 
-    repLog.info("Fetch references {} from {}", config.getFetchRefSpecs(), uri);
+  private Map<String, String> toLocalRefs(Set<String> remoteRefs) {
+    Map<String, String> localRefs = new HashMap<>();
+    for (String remoteRef : remoteRefs) {
+      for (RefSpec spec : config.getFetchRefSpecs()) {
+        if (spec.getDestination() != null && spec.matchSource(remoteRef)) {
+          localRefs.put(remoteRef, spec.expandFromSource(remoteRef).getDestination());
+          break;
+        }
+      }
+    }
+    return localRefs;
+  }
 
-    return tn.fetch(NullProgressMonitor.INSTANCE, config.getFetchRefSpecs());
+  /**
+   * Find the local refs, within the destinations of the fetch refspecs, that are not advertised
+   * anymore by the source.
+   *
+   * <p>The {@code refs/meta/config} branch and the symbolic refs are never considered stale.
+   */
+  private Map<String, String> staleRefs(FetchResult res) throws IOException {
+    List<RefSpec> fetchRefSpecs = config.getFetchRefSpecs();
+    Set<String> advertisedRefs = new HashSet<>();
+    for (Ref ref : res.getAdvertisedRefs()) {
+      for (RefSpec spec : fetchRefSpecs) {
+        if (spec.getDestination() != null && spec.matchSource(ref.getName())) {
+          advertisedRefs.add(spec.expandFromSource(ref.getName()).getDestination());
+        }
+      }
+    }
+
+    Map<String, String> staleRefs = new HashMap<>();
+    RefDatabase refDb = git.getRefDatabase();
+    for (RefSpec spec : fetchRefSpecs) {
+      String destination = spec.getDestination();
+      if (destination == null) {
+        continue;
+      }
+      String prefix =
+          spec.isWildcard() ? destination.substring(0, destination.indexOf('*')) : destination;
+      for (Ref ref : refDb.getRefsByPrefix(prefix)) {
+        String localName = ref.getName();
+        if (ref.isSymbolic()
+            || RefNames.REFS_CONFIG.equals(localName)
+            || advertisedRefs.contains(localName)
+            || !spec.matchDestination(localName)) {
+          continue;
+        }
+        staleRefs.put(spec.expandFromDestination(localName).getSource(), localName);
+      }
+    }
+    return staleRefs;
   }
 
-  private void updateStates(Collection<TrackingRefUpdate> refUpdates) throws IOException {
-    Set<String> doneRefs = new HashSet<>();
-    boolean anyRefFailed = false;
-    RefUpdate.Result lastRefUpdateResult = RefUpdate.Result.NO_CHANGE;
+  /**
+   * Delete local refs with one single batch, atomic when supported by the ref database.
+   *
+   * @param localByRemoteName local refs to delete, indexed by their name on the source.
+   * @return the outcome of the deletions.
+   */
+  private List<RefDeletionResult> deleteRefs(Map<String, String> localByRemoteName)
+      throws IOException {
+    if (localByRemoteName.isEmpty()) {
+      return Collections.emptyList();
+    }
 
-    for (TrackingRefUpdate u : refUpdates) {
-      ReplicationState.RefFetchResult fetchStatus = ReplicationState.RefFetchResult.SUCCEEDED;
-      Set<ReplicationState> logStates = new HashSet<>();
-      lastRefUpdateResult = u.getResult();
+    RefDatabase refDb = git.getRefDatabase();
+    BatchRefUpdate batch = refDb.newBatchUpdate();
+    batch.setAtomic(refDb.performsAtomicTransactions());
+    batch.setAllowNonFastForwards(true);
+    batch.setRefLogMessage("fetch: deleted from " + uri, false);
+
+    List<RefDeletionResult> results = new ArrayList<>(localByRemoteName.size());
+    List<String> remoteNames = new ArrayList<>(localByRemoteName.size());
+    for (Map.Entry<String, String> e : localByRemoteName.entrySet()) {
+      Ref ref = refDb.exactRef(e.getValue());
+      if (ref == null || ref.getObjectId() == null) {
+        results.add(new RefDeletionResult(e.getKey(), e.getValue(), RefUpdate.Result.NO_CHANGE));
+      } else if (ref.isSymbolic()) {
+        results.add(
+            new RefDeletionResult(e.getKey(), e.getValue(), RefUpdate.Result.NOT_ATTEMPTED));
+      } else {
+        batch.addCommand(new ReceiveCommand(ref.getObjectId(), ObjectId.zeroId(), e.getValue()));
+        remoteNames.add(e.getKey());
+      }
+    }
 
-      logStates.addAll(stateMap.get(u.getRemoteName()));
-      logStates.addAll(stateMap.get(ALL_REFS));
-      ReplicationState[] logStatesArray = logStates.toArray(new ReplicationState[logStates.size()]);
+    List<ReceiveCommand> commands = batch.getCommands();
+    if (!commands.isEmpty()) {
+      repLog.info("Delete {} refs removed from {}", commands.size(), uri);
+      try (RevWalk rw = new RevWalk(git)) {
+        batch.execute(rw, NullProgressMonitor.INSTANCE);
+      }
+      for (int i = 0; i < commands.size(); i++) {
+        ReceiveCommand cmd = commands.get(i);
+        results.add(
+            new RefDeletionResult(remoteNames.get(i), cmd.getRefName(), toRefUpdateResult(cmd)));
+      }
+    }
+    return results;
+  }
 
-      doneRefs.add(u.getRemoteName());
+  /**
+   * Build the fetch refspecs of the refs of this operation that are still advertised by the source.
+   *
+   * <p>Used when retrying only the refs that failed to be updated locally, rather than fetching
+   * again all the refs matching the configured refspecs.
+   */
+  private List<RefSpec> deltaRefSpecs(AdvertisedRefsTransport tn) throws IOException {
+    Map<String, Ref> advertisedRefs = advertisedRefs(tn);
+    RefPatternMatcher refMatcher = pool.getRefPatternMatcher();
+    List<RefSpec> deltaRefSpecs = new ArrayList<>(delta.size());
+    for (String ref : delta) {
+      if (advertisedRefs.containsKey(ref) && refMatcher.matches(ref)) {
+        addExpandedRefSpec(deltaRefSpecs, config.getFetchRefSpecs(), ref);
+      }
+    }
+    return deltaRefSpecs;
+  }
+
+  /**
+   * Build the fetch refspecs of the refs advertised by the source that are selected by its ref
+   * patterns, so that the excluded refs are not transferred by a fetch of all the refs.
+   */
+  private List<RefSpec> selectedRefSpecs(AdvertisedRefsTransport tn, List<RefSpec> fetchRefSpecs)
+      throws IOException {
+    RefPatternMatcher refMatcher = pool.getRefPatternMatcher();
+    List<RefSpec> selectedRefSpecs = new ArrayList<>();
+    for (String ref : advertisedRefs(tn).keySet()) {
+      if (refMatcher.matches(ref)) {
+        addExpandedRefSpec(selectedRefSpecs, fetchRefSpecs, ref);
+      }
+    }
+    return selectedRefSpecs;
+  }
+
+  /** Get the refs advertised by the source on the connection the fetch then uses. */
+  private Map<String, Ref> advertisedRefs(AdvertisedRefsTransport tn) throws IOException {
+    tn.applyConfig(config);
+    tn.setCredentialsProvider(getCredentialsProvider());
+    return tn.getAdvertisedRefs();
+  }
+
+  private static void addExpandedRefSpec(
+      List<RefSpec> specs, List<RefSpec> fetchRefSpecs, String ref) {
+    for (RefSpec spec : fetchRefSpecs) {
+      if (spec.matchSource(ref)) {
+        specs.add(spec.expandFromSource(ref));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Apply the ref updates computed by a dry-run fetch with one single batch, atomic when supported
+   * by the ref database.
+   *
+   * <p>If the atomic batch is aborted by a lock failure, the updates of the other refs are applied
+   * again without atomicity, so that only the refs that could not be locked need to be retried.
+   *
+   * @param refUpdates ref updates computed by the fetch.
+   * @return the outcome of the updates that have been applied, indexed by the name of the ref on
+   *     the source.
+   */
+  private Map<String, RefUpdate.Result> applyRefUpdates(Collection<TrackingRefUpdate> refUpdates)
+      throws IOException {
+    Map<String, TrackingRefUpdate> toApply = new HashMap<>();
+    for (TrackingRefUpdate u : refUpdates) {
       switch (u.getResult()) {
-        case NO_CHANGE:
         case NEW:
-        case FORCED:
-        case RENAMED:
         case FAST_FORWARD:
+        case FORCED:
+          toApply.put(u.getLocalName(), u);
           break;
-        case NOT_ATTEMPTED:
-        case REJECTED:
-        case REJECTED_CURRENT_BRANCH:
-        case REJECTED_MISSING_OBJECT:
-          stateLog.error(
-              String.format(
-                  "Failed replicate %s from %s: result %s", uri, u.getRemoteName(), u.getResult()),
-              logStatesArray);
-          fetchStatus = ReplicationState.RefFetchResult.FAILED;
-          anyRefFailed = true;
+        default:
           break;
+      }
+    }
+    if (toApply.isEmpty()) {
+      return Collections.emptyMap();
+    }
 
-        case LOCK_FAILURE:
-          throw new LockFailureException(uri, u.toString());
-        case IO_FAILURE:
-          throw new IOException(u.toString());
+    RefDatabase refDb = git.getRefDatabase();
+    List<ReceiveCommand> commands =
+        executeRefUpdates(toApply.values(), refDb.performsAtomicTransactions());
+    List<TrackingRefUpdate> aborted = new ArrayList<>();
+    boolean lockFailure = false;
+    for (ReceiveCommand cmd : commands) {
+      if (cmd.getResult() == ReceiveCommand.Result.LOCK_FAILURE) {
+        lockFailure = true;
+      } else if (cmd.getResult() != ReceiveCommand.Result.OK) {
+        aborted.add(toApply.get(cmd.getRefName()));
+      }
+    }
+    if (lockFailure && !aborted.isEmpty() && refDb.performsAtomicTransactions()) {
+      repLog.info(
+          "Atomic update of {} refs fetched from {} aborted by a lock failure, retrying without"
+              + " atomicity",
+          commands.size(),
+          uri);
+      commands = new ArrayList<>(commands);
+      commands.removeIf(cmd -> cmd.getResult() != ReceiveCommand.Result.LOCK_FAILURE);
+      commands.addAll(executeRefUpdates(aborted, false));
+    }
 
-        case REJECTED_OTHER_REASON:
-          stateLog.error(
-              String.format(
-                  "Failed replicate %s from %s, reason: %s", uri, u.getRemoteName(), u.toString()),
-              logStatesArray);
+    Map<String, RefUpdate.Result> results = new HashMap<>();
+    for (ReceiveCommand cmd : commands) {
+      TrackingRefUpdate u = toApply.get(cmd.getRefName());
+      // Updates of existing refs keep the fast-forward or forced result
+      // computed by the fetch.
+      results.put(
+          u.getRemoteName(),
+          cmd.getResult() == ReceiveCommand.Result.OK && cmd.getType() != ReceiveCommand.Type.CREATE
+              ? u.getResult()
+              : toRefUpdateResult(cmd));
+    }
+    return results;
+  }
 
-          fetchStatus = ReplicationState.RefFetchResult.FAILED;
-          anyRefFailed = true;
-          break;
+  private List<ReceiveCommand> executeRefUpdates(
+      Collection<TrackingRefUpdate> refUpdates, boolean atomic) throws IOException {
+    BatchRefUpdate batch = git.getRefDatabase().newBatchUpdate();
+    batch.setAtomic(atomic);
+    batch.setAllowNonFastForwards(true);
+    batch.setRefLogMessage("fetch from " + uri, true);
+    for (TrackingRefUpdate u : refUpdates) {
+      batch.addCommand(
+          new ReceiveCommand(u.getOldObjectId(), u.getNewObjectId(), u.getLocalName()));
+    }
+
+    repLog.info("Update {} refs fetched from {}", refUpdates.size(), uri);
+    try (RevWalk rw = new RevWalk(git)) {
+      batch.execute(rw, NullProgressMonitor.INSTANCE);
+    }
+    return batch.getCommands();
+  }
+
+  /** Create the credentials when connecting to the source, rather than for every pending fetch. */
+  private CredentialsProvider getCredentialsProvider() {
+    if (credentialsProvider == null) {
+      credentialsProvider = credentialsFactory.create(config.getName());
+    }
+    return credentialsProvider;
+  }
+
+  private FetchResult fetchVia(Transport tn, List<RefSpec> fetchRefSpecs) throws IOException {
+    tn.applyConfig(config);
+    tn.setCredentialsProvider(getCredentialsProvider());
+
+    // The refspecs may list every selected ref of the source.
+    repLog.info("Fetch {} refspecs from {}", fetchRefSpecs.size(), uri);
+    repLog.debug("Fetch references {} from {}", fetchRefSpecs, uri);
+
+    return tn.fetch(progressMonitor, fetchRefSpecs);
+  }
+
+  @VisibleForTesting
+  void updateStates(
+      Collection<TrackingRefUpdate> refUpdates,
+      Map<String, RefUpdate.Result> appliedResults,
+      Collection<RefDeletionResult> deletions)
+      throws IOException {
+    Set<String> waitingRefs = getWaitingRefs();
+    Set<String> lockFailedRefs = new HashSet<>();
+    boolean anyRefFailed = false;
+    RefUpdate.Result lastRefUpdateResult = RefUpdate.Result.NO_CHANGE;
+
+    for (TrackingRefUpdate u : refUpdates) {
+      String refName = u.getRemoteName();
+      RefUpdate.Result result = appliedResults.get(refName);
+      Supplier<String> description;
+      if (result == null) {
+        result = u.getResult();
+        description = u::toString;
+      } else if (result == RefUpdate.Result.LOCK_FAILURE) {
+        lockFailedRefs.add(refName);
+        continue;
+      } else {
+        RefUpdate.Result applied = result;
+        description = () -> u.getLocalName() + " (" + refName + "): " + applied;
       }
 
-      for (ReplicationState rs : getStatesByRef(u.getRemoteName())) {
-        rs.notifyRefReplicated(
-            projectName.get(), u.getRemoteName(), uri, fetchStatus, u.getResult());
+      lastRefUpdateResult = result;
+      if (result != RefUpdate.Result.NO_CHANGE) {
+        updatedRefCount++;
+      }
+      if (!updateState(refName, result, description, waitingRefs)) {
+        anyRefFailed = true;
       }
     }
 
-    doneRefs.add(ALL_REFS);
-    for (ReplicationState rs : getStatesByRef(ALL_REFS)) {
-      rs.notifyRefReplicated(
-          projectName.get(),
-          ALL_REFS,
-          uri,
-          anyRefFailed
-              ? ReplicationState.RefFetchResult.FAILED
-              : ReplicationState.RefFetchResult.SUCCEEDED,
-          lastRefUpdateResult);
-    }
-    for (Map.Entry<String, ReplicationState> entry : stateMap.entries()) {
-      if (!doneRefs.contains(entry.getKey())) {
-        entry
-            .getValue()
-            .notifyRefReplicated(
-                projectName.get(),
-                entry.getKey(),
-                uri,
-                ReplicationState.RefFetchResult.NOT_ATTEMPTED,
-                null);
+    for (RefDeletionResult d : deletions) {
+      lastRefUpdateResult = d.getResult();
+      if (d.getResult() != RefUpdate.Result.NO_CHANGE) {
+        deletedRefCount++;
+      }
+      if (!updateState(d.getRemoteName(), d.getResult(), d::toString, waitingRefs)) {
+        anyRefFailed = true;
       }
     }
+
+    if (!lockFailedRefs.isEmpty()) {
+      retryOnlyLockFailedRefs(lockFailedRefs, waitingRefs);
+      throw new LockFailureException(uri, "cannot lock refs " + lockFailedRefs);
+    }
+
+    notifyRemainingStates(waitingRefs, anyRefFailed, lastRefUpdateResult);
+  }
+
+  /**
+   * Index the refs with states waiting for their own update, as opposed to the ones waiting for all
+   * the refs.
+   *
+   * <p>Each ref update only looks up this index, and only when not empty, and the refs left in it
+   * are the ones not attempted: the cost of the notifications depends on the number of states
+   * rather than on the number of refs updated by the fetch.
+   */
+  private Set<String> getWaitingRefs() {
+    if (stateMap.isEmpty() || (stateMap.keySet().size() == 1 && stateMap.containsKey(ALL_REFS))) {
+      return Collections.emptySet();
+    }
+    Set<String> waitingRefs = new LinkedHashSet<>(stateMap.keySet());
+    waitingRefs.remove(ALL_REFS);
+    return waitingRefs;
+  }
+
+  /**
+   * Notify the states waiting for all the refs and the states of the refs left waiting, which have
+   * not been attempted.
+   */
+  private void notifyRemainingStates(
+      Set<String> waitingRefs, boolean anyRefFailed, RefUpdate.Result lastRefUpdateResult) {
+    allRefsResult = fetchAllRefs && !anyRefFailed ? lastRefUpdateResult : null;
+    notifyStates(
+        ALL_REFS,
+        anyRefFailed
+            ? ReplicationState.RefFetchResult.FAILED
+            : ReplicationState.RefFetchResult.SUCCEEDED,
+        lastRefUpdateResult);
+    for (String refName : waitingRefs) {
+      notifyStates(refName, ReplicationState.RefFetchResult.NOT_ATTEMPTED, null);
+    }
     stateMap.clear();
   }
 
+  /**
+   * Narrow this operation to the refs that could not be updated because of a lock failure.
+   *
+   * <p>The states of the refs that have not been attempted are notified, while the states of the
+   * refs that failed and the ones waiting for all the refs are kept for the retry.
+   */
+  private void retryOnlyLockFailedRefs(Set<String> lockFailedRefs, Set<String> waitingRefs) {
+    for (String refName : waitingRefs) {
+      if (!lockFailedRefs.contains(refName)) {
+        notifyStates(refName, ReplicationState.RefFetchResult.NOT_ATTEMPTED, null);
+      }
+    }
+    stateMap
+        .keySet()
+        .removeIf(refName -> !lockFailedRefs.contains(refName) && !ALL_REFS.equals(refName));
+
+    fetchAllRefs = false;
+    fetchDeltaOnly = true;
+    delta.clear();
+    delta.addAll(lockFailedRefs);
+    deletedRefs = Collections.emptySet();
+  }
+
+  /**
+   * Notify the states of a ref with the outcome of its update.
+   *
+   * @param description description of the update, only computed for the updates that failed.
+   * @param waitingRefs refs with states still waiting for their update, the ref is removed once its
+   *     states are notified.
+   * @return true if the ref has been updated.
+   */
+  private boolean updateState(
+      String refName,
+      RefUpdate.Result result,
+      Supplier<String> description,
+      Set<String> waitingRefs)
+      throws IOException {
+    ReplicationState.RefFetchResult fetchStatus = ReplicationState.RefFetchResult.SUCCEEDED;
+
+    switch (result) {
+      case NO_CHANGE:
+      case NEW:
+      case FORCED:
+      case RENAMED:
+      case FAST_FORWARD:
+        break;
+      case NOT_ATTEMPTED:
+      case REJECTED:
+      case REJECTED_CURRENT_BRANCH:
+      case REJECTED_MISSING_OBJECT:
+        stateLog.error(
+            String.format("Failed replicate %s from %s: result %s", uri, refName, result),
+            getStatesAsArray(refName));
+        fetchStatus = ReplicationState.RefFetchResult.FAILED;
+        break;
+
+      case LOCK_FAILURE:
+        throw new LockFailureException(uri, description.get());
+      case IO_FAILURE:
+        throw new IOException(description.get());
+
+      case REJECTED_OTHER_REASON:
+        stateLog.error(
+            String.format(
+                "Failed replicate %s from %s, reason: %s", uri, refName, description.get()),
+            getStatesAsArray(refName));
+
+        fetchStatus = ReplicationState.RefFetchResult.FAILED;
+        break;
+    }
+
+    if (fetchStatus == ReplicationState.RefFetchResult.FAILED) {
+      failedRefCount++;
+    }
+    if (!waitingRefs.isEmpty() && waitingRefs.remove(refName)) {
+      notifyStates(refName, fetchStatus, result);
+    }
+    if (refResults != null) {
+      refResults.put(refName, result);
+    }
+    return fetchStatus == ReplicationState.RefFetchResult.SUCCEEDED;
+  }
+
+  /**
+   * Convert the outcome of a command of a batch ref update to the equivalent result of a single ref
+   * update.
+   *
+   * @param cmd command executed by the batch ref update.
+   * @return the equivalent ref update result.
+   */
+  private static RefUpdate.Result toRefUpdateResult(ReceiveCommand cmd) {
+    switch (cmd.getResult()) {
+      case OK:
+        return cmd.getType() == ReceiveCommand.Type.CREATE
+            ? RefUpdate.Result.NEW
+            : RefUpdate.Result.FORCED;
+      case NOT_ATTEMPTED:
+        return RefUpdate.Result.NOT_ATTEMPTED;
+      case LOCK_FAILURE:
+        return RefUpdate.Result.LOCK_FAILURE;
+      case REJECTED_CURRENT_BRANCH:
+        return RefUpdate.Result.REJECTED_CURRENT_BRANCH;
+      case REJECTED_MISSING_OBJECT:
+        return RefUpdate.Result.REJECTED_MISSING_OBJECT;
+      case REJECTED_NONFASTFORWARD:
+        return RefUpdate.Result.REJECTED;
+      case REJECTED_NOCREATE:
+      case REJECTED_NODELETE:
+      case REJECTED_OTHER_REASON:
+      default:
+        return RefUpdate.Result.REJECTED_OTHER_REASON;
+    }
+  }
+
   public static class LockFailureException extends TransportException {
     private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,473 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.ReplicationFileBasedConfig;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Partitions the fetches of the projects among the nodes sharing the same repositories, for example
+ * on NFS, so that each project is fetched by only one of them.
+ *
+ * <p>The nodes are the ones listed by {@code replication.peer}, identified by their {@code
+ * gerrit.instanceId}, and each project is fetched by the node owning it on a consistent hash ring
+ * of the nodes. With {@code replication.leaseDirectory}, a directory shared by the nodes, the ring
+ * only contains the nodes that recently wrote their heartbeat in it: the projects of a node leaving
+ * are taken over by the other nodes, and a node joining takes over its share of the projects.
+ *
+ * <p>A node also takes a lease on a project before fetching it from a source, so that two nodes
+ * never fetch it at once while their views of the ring differ. The leases are files of the lease
+ * directory or, without it, of the repository itself. A lease expires when not refreshed for {@code
+ * replication.leaseTimeout}.
+ *
+ * <p>The heartbeats and the leases are never compared with the local clock, as the clocks of the
+ * nodes and of the shared file system may differ: a node only considers them expired once it has
+ * seen them unchanged for the timeout. An expired lease is taken over by the node first creating
+ * the takeover marker of the lease, named after its unique token, so that two nodes never take over
+ * the same lease. The holder of a lease also creates this marker before releasing it.
+ */
+@Singleton
+class FetchPartitioner implements LifecycleListener {
+  static final int VIRTUAL_NODES = 128;
+  static final long DEFAULT_LEASE_TIMEOUT_MSECS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final HashFunction RING_HASH = Hashing.murmur3_32();
+  private static final HashFunction LEASE_HASH = Hashing.murmur3_128();
+
+  private final WorkQueue workQueue;
+  private final Ticker ticker;
+  private final String instanceId;
+  private final Set<String> peers;
+  private final Path leaseDirectory;
+  private final long leaseTimeout;
+  private final Set<Path> heldLeases = ConcurrentHashMap.newKeySet();
+  private final Map<Path, Observation> observations = new ConcurrentHashMap<>();
+  private volatile Ring ring;
+  private ScheduledFuture<?> heartbeat;
+
+  @Inject
+  FetchPartitioner(
+      ReplicationFileBasedConfig replicationConfig,
+      @GerritServerConfig Config gerritConfig,
+      WorkQueue workQueue) {
+    this(
+        replicationConfig.getConfig(),
+        gerritConfig.getString("gerrit", null, "instanceId"),
+        workQueue);
+  }
+
+  FetchPartitioner(Config cfg, @Nullable String instanceId, @Nullable WorkQueue workQueue) {
+    this(cfg, instanceId, workQueue, Ticker.systemTicker());
+  }
+
+  FetchPartitioner(
+      Config cfg, @Nullable String instanceId, @Nullable WorkQueue workQueue, Ticker ticker) {
+    this.workQueue = workQueue;
+    this.ticker = ticker;
+    this.instanceId = instanceId;
+
+    Set<String> nodes =
+        new TreeSet<>(Arrays.asList(cfg.getStringList("replication", null, "peer")));
+    if (!nodes.isEmpty() && instanceId == null) {
+      repLog.warn("Ignoring replication.peer, as gerrit.instanceId is not set");
+      nodes.clear();
+    } else if (!nodes.isEmpty()) {
+      nodes.add(instanceId);
+    }
+    peers = ImmutableSet.copyOf(nodes);
+    ring = new Ring(peers);
+
+    String dir = cfg.getString("replication", null, "leaseDirectory");
+    leaseDirectory = dir != null && !peers.isEmpty() ? Paths.get(dir) : null;
+    leaseTimeout =
+        ConfigUtil.getTimeUnit(
+            cfg,
+            "replication",
+            null,
+            "leaseTimeout",
+            DEFAULT_LEASE_TIMEOUT_MSECS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void start() {
+    if (isEnabled() && workQueue != null) {
+      heartbeat =
+          workQueue
+              .getDefaultQueue()
+              .scheduleAtFixedRate(
+                  this::heartbeat, 0, Math.max(1, leaseTimeout / 3), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+      heartbeat = null;
+    }
+    if (leaseDirectory != null && workQueue != null) {
+      try {
+        Files.deleteIfExists(leaseDirectory.resolve("nodes").resolve(instanceId));
+      } catch (IOException e) {
+        repLog.warn("Cannot remove the heartbeat of {} from {}", instanceId, leaseDirectory, e);
+      }
+    }
+  }
+
+  boolean isEnabled() {
+    return !peers.isEmpty();
+  }
+
+  /** @return true if this node fetches the project, always the case when not partitioning. */
+  boolean owns(Project.NameKey project) {
+    return !isEnabled() || instanceId.equals(ring.owner(project.get()));
+  }
+
+  /** @return the node fetching the project. */
+  @Nullable
+  String getOwner(Project.NameKey project) {
+    return ring.owner(project.get());
+  }
+
+  /**
+   * Refresh the leases of the running fetches of this node and, with a lease directory, write the
+   * heartbeat of this node and update the ring with the nodes that are alive.
+   */
+  void heartbeat() {
+    FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+    for (Path lease : heldLeases) {
+      try {
+        Files.setLastModifiedTime(lease, now);
+      } catch (NoSuchFileException e) {
+        // Released in the meantime.
+      } catch (IOException e) {
+        repLog.error("Cannot refresh the lease {}", lease, e);
+      }
+    }
+    pruneObservations();
+    if (leaseDirectory == null) {
+      return;
+    }
+
+    try {
+      Path nodes = leaseDirectory.resolve("nodes");
+      Files.createDirectories(nodes);
+      Files.write(nodes.resolve(instanceId), instanceId.getBytes(UTF_8));
+
+      Set<String> alive = new TreeSet<>();
+      for (String peer : peers) {
+        if (peer.equals(instanceId) || isAlive(nodes.resolve(peer))) {
+          alive.add(peer);
+        }
+      }
+      if (!alive.equals(ring.nodes)) {
+        repLog.info("Partitioning the fetches among the nodes {}", alive);
+        ring = new Ring(alive);
+      }
+    } catch (IOException e) {
+      repLog.error("Cannot write the heartbeat of {} to {}", instanceId, leaseDirectory, e);
+    }
+  }
+
+  private boolean isAlive(Path file) throws IOException {
+    try {
+      return !isExpired(file, "", Files.getLastModifiedTime(file));
+    } catch (NoSuchFileException e) {
+      observations.remove(file);
+      return false;
+    }
+  }
+
+  /**
+   * Check whether a heartbeat or a lease has not changed for the lease timeout, measured with the
+   * local clock since this node first saw it in its current state.
+   *
+   * @param file heartbeat or lease.
+   * @param content content of the file.
+   * @param modified last modification time of the file, as set by the node refreshing it.
+   * @return true if the file is expired.
+   */
+  private boolean isExpired(Path file, String content, FileTime modified) {
+    long now = ticker.read();
+    Observation o =
+        observations.compute(
+            file,
+            (p, seen) ->
+                seen != null && seen.isSame(content, modified)
+                    ? seen
+                    : new Observation(content, modified, now));
+    return now - o.seenAt >= TimeUnit.MILLISECONDS.toNanos(leaseTimeout);
+  }
+
+  /** Forget the files not seen for a while, most likely removed. */
+  private void pruneObservations() {
+    long oldest = ticker.read() - TimeUnit.MILLISECONDS.toNanos(10 * leaseTimeout);
+    observations.values().removeIf(o -> o.seenAt - oldest < 0);
+  }
+
+  /**
+   * Take the lease of the fetch of a project from a URI.
+   *
+   * @param project project to fetch.
+   * @param uri URI to fetch from.
+   * @param git local repository of the project.
+   * @return the lease, to close once the fetch is completed, or null if another node holds it.
+   */
+  @Nullable
+  Lease tryLease(Project.NameKey project, URIish uri, Repository git) throws IOException {
+    Path file = isEnabled() ? getLeaseFile(project, uri, git) : null;
+    if (file == null) {
+      return new Lease(null, null);
+    }
+
+    String token = instanceId + " " + UUID.randomUUID();
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        Files.createDirectories(file.getParent());
+        Files.write(file, token.getBytes(UTF_8), StandardOpenOption.CREATE_NEW);
+        heldLeases.add(file);
+        return new Lease(file, token);
+      } catch (FileAlreadyExistsException e) {
+        String held;
+        FileTime modified;
+        try {
+          held = readToken(file);
+          modified = Files.getLastModifiedTime(file);
+        } catch (NoSuchFileException released) {
+          continue;
+        }
+        String owner = getOwner(held);
+        // A lease of this node that is not held was left over before a restart.
+        boolean leftOver = owner.equals(instanceId) && !heldLeases.contains(file);
+        if (!leftOver && !isExpired(file, held, modified)) {
+          repLog.info("Fetch of {} from {} is leased by {}", project, uri, owner);
+          return null;
+        }
+        if (!takeOver(file, held, token)) {
+          repLog.info("Lease of {} from {} is taken over by another node", project, uri);
+          return null;
+        }
+        repLog.info("Took over the lease of {} from {} held by {}", project, uri, owner);
+        observations.remove(file);
+        heldLeases.add(file);
+        return new Lease(file, token);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Replace a lease, unless another node is taking it over or its holder is releasing it.
+   *
+   * @param file lease to replace.
+   * @param heldToken token of the lease.
+   * @param token token of the new lease.
+   * @return true if the lease has been replaced.
+   */
+  private boolean takeOver(Path file, String heldToken, String token) throws IOException {
+    Path marker = getTakeoverMarker(file, heldToken);
+    if (!createMarker(marker, token)) {
+      return false;
+    }
+    try {
+      try {
+        if (!heldToken.equals(readToken(file))) {
+          // Released, and possibly leased again, meanwhile.
+          return false;
+        }
+      } catch (NoSuchFileException e) {
+        return false;
+      }
+      // Only the creator of the marker can replace the lease, until it removes the marker.
+      Path tmp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+      Files.write(tmp, token.getBytes(UTF_8));
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } finally {
+      Files.deleteIfExists(marker);
+    }
+  }
+
+  /**
+   * Create the takeover marker of a lease.
+   *
+   * <p>A marker left over by a node that stopped while taking over or releasing the lease is
+   * removed once it has not changed for the lease timeout, so that the lease can be taken over
+   * later.
+   *
+   * @return true if the marker has been created, false if another node holds it.
+   */
+  private boolean createMarker(Path marker, String token) throws IOException {
+    try {
+      Files.write(marker, token.getBytes(UTF_8), StandardOpenOption.CREATE_NEW);
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      try {
+        if (isExpired(marker, readToken(marker), Files.getLastModifiedTime(marker))) {
+          repLog.warn("Removing the takeover marker {} left over by another node", marker);
+          Files.deleteIfExists(marker);
+          observations.remove(marker);
+        }
+      } catch (NoSuchFileException removed) {
+        // Removed by its creator meanwhile.
+      }
+      return false;
+    }
+  }
+
+  private static Path getTakeoverMarker(Path lease, String token) {
+    return lease.resolveSibling(
+        lease.getFileName() + ".takeover-" + LEASE_HASH.hashString(token, UTF_8));
+  }
+
+  private static String readToken(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), UTF_8);
+  }
+
+  private static String getOwner(String token) {
+    int sp = token.indexOf(' ');
+    return sp < 0 ? token : token.substring(0, sp);
+  }
+
+  @Nullable
+  private Path getLeaseFile(Project.NameKey project, URIish uri, Repository git) {
+    String key = LEASE_HASH.hashString(project.get() + "\n" + uri, UTF_8).toString();
+    if (leaseDirectory != null) {
+      return leaseDirectory.resolve("leases").resolve(key);
+    }
+    File dir = git.getDirectory();
+    return dir != null ? dir.toPath().resolve("pull-replication-" + key + ".lease") : null;
+  }
+
+  /** Lease of the fetch of a project, released when closed. */
+  class Lease implements AutoCloseable {
+    private final Path file;
+    private final String token;
+
+    private Lease(@Nullable Path file, @Nullable String token) {
+      this.file = file;
+      this.token = token;
+    }
+
+    @Override
+    public void close() {
+      if (file == null) {
+        return;
+      }
+      heldLeases.remove(file);
+      try {
+        Path marker = getTakeoverMarker(file, token);
+        if (!createMarker(marker, token)) {
+          // Taken over by another node after expiring.
+          return;
+        }
+        try {
+          if (token.equals(readToken(file))) {
+            Files.delete(file);
+          }
+        } finally {
+          Files.deleteIfExists(marker);
+        }
+      } catch (NoSuchFileException e) {
+        // Taken over by another node after expiring, and released.
+      } catch (IOException e) {
+        repLog.warn("Cannot release the lease {}", file, e);
+      }
+    }
+  }
+
+  /** State of a heartbeat or a lease, when this node first saw it. */
+  private static class Observation {
+    final String content;
+    final FileTime modified;
+    final long seenAt;
+
+    Observation(String content, FileTime modified, long seenAt) {
+      this.content = content;
+      this.modified = modified;
+      this.seenAt = seenAt;
+    }
+
+    boolean isSame(String otherContent, FileTime otherModified) {
+      return content.equals(otherContent) && modified.equals(otherModified);
+    }
+  }
+
+  /** Consistent hash ring of the nodes, with several points per node to balance the projects. */
+  private static class Ring {
+    final Set<String> nodes;
+    final NavigableMap<Integer, String> points = new TreeMap<>();
+
+    Ring(Set<String> nodes) {
+      this.nodes = nodes;
+      for (String node : nodes) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+          points.put(hash(node + "#" + i), node);
+        }
+      }
+    }
+
+    @Nullable
+    String owner(String key) {
+      if (points.isEmpty()) {
+        return null;
+      }
+      Map.Entry<Integer, String> point = points.ceilingEntry(hash(key));
+      return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    private static int hash(String s) {
+      return RING_HASH.hashString(s, UTF_8).asInt();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * Progress monitor of a fetch, tracking when the fetch last made some progress.
+ *
+ * <p>The monitor is updated by the thread running the fetch and read by the watchdog of the source,
+ * which can also cancel the fetch.
+ */
+class FetchProgressMonitor implements ProgressMonitor {
+  private volatile long lastProgressAt = System.nanoTime();
+  private volatile String task;
+  private volatile long completed;
+  private volatile boolean cancelled;
+  private boolean receivingObjects;
+  private long receivedObjects;
+
+  /** Restart the monitor for a new execution of the fetch. */
+  void restart() {
+    task = null;
+    completed = 0;
+    cancelled = false;
+    receivingObjects = false;
+    receivedObjects = 0;
+    progress();
+  }
+
+  @Override
+  public void start(int totalTasks) {
+    progress();
+  }
+
+  @Override
+  public void beginTask(String title, int totalWork) {
+    task = title;
+    completed = 0;
+    receivingObjects = JGitText.get().receivingObjects.equals(title);
+    progress();
+  }
+
+  @Override
+  public void update(int work) {
+    completed += work;
+    if (receivingObjects) {
+      receivedObjects += work;
+    }
+    progress();
+  }
+
+  @Override
+  public void endTask() {
+    progress();
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  void cancel() {
+    cancelled = true;
+  }
+
+  /** @return the nanoseconds elapsed since the last progress of the fetch. */
+  long getIdleNanos() {
+    return System.nanoTime() - lastProgressAt;
+  }
+
+  /** @return the objects received from the source by the fetch, read by the fetch thread. */
+  long getReceivedObjects() {
+    return receivedObjects;
+  }
+
+  private void progress() {
+    lastProgressAt = System.nanoTime();
+  }
+
+  @Override
+  public String toString() {
+    String t = task;
+    return t == null ? "not started" : t + ": " + completed;
+  }
+}
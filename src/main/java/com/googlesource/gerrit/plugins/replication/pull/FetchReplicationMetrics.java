@@ -15,6 +15,8 @@
 package com.googlesource.gerrit.plugins.replication.pull;
 
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.Histogram1;
@@ -22,6 +24,7 @@ import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.server.logging.PluginMetadata;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
 @Singleton
@@ -29,9 +32,16 @@ public class FetchReplicationMetrics {
   private final Timer1<String> executionTime;
   private final Histogram1<String> executionDelay;
   private final Histogram1<String> executionRetries;
+  private final Counter1<String> executionSlow;
+  private final Counter1<String> divergentRefs;
+  private final Histogram1<String> forkReceivedObjects;
+  private final Counter1<String> pendingOverflow;
 
   @Inject
-  FetchReplicationMetrics(@PluginName String pluginName, MetricMaker metricMaker) {
+  FetchReplicationMetrics(
+      @PluginName String pluginName,
+      MetricMaker metricMaker,
+      Provider<SourcesCollection> sourcesCollection) {
     Field<String> SOURCE_FIELD =
         Field.ofString(
                 "source",
@@ -64,6 +74,78 @@ public class FetchReplicationMetrics {
                 .setCumulative()
                 .setUnit("retries"),
             SOURCE_FIELD);
+
+    executionSlow =
+        metricMaker.newCounter(
+            "replication_latency_slow",
+            new Description(
+                    "Number of fetches from remote source slower than the slow latency threshold")
+                .setCumulative()
+                .setUnit("fetches"),
+            SOURCE_FIELD);
+
+    divergentRefs =
+        metricMaker.newCounter(
+            "consistency_divergent_refs",
+            new Description(
+                    "Number of refs found diverging from remote source by the consistency checks")
+                .setCumulative()
+                .setUnit("refs"),
+            SOURCE_FIELD);
+
+    forkReceivedObjects =
+        metricMaker.newHistogram(
+            "fork_received_objects",
+            new Description(
+                    "Number of objects received by the fetches into repositories with alternates")
+                .setCumulative()
+                .setUnit("objects"),
+            SOURCE_FIELD);
+
+    pendingOverflow =
+        metricMaker.newCounter(
+            "pending_overflow",
+            new Description(
+                    "Number of fetches scheduled from remote source when its pending fetches are full")
+                .setCumulative()
+                .setUnit("fetches"),
+            SOURCE_FIELD);
+
+    CallbackMetric1<String, Integer> pendingOverflowProjects =
+        metricMaker.newCallbackMetric(
+            "pending_overflow_projects",
+            Integer.class,
+            new Description(
+                    "Number of projects waiting for room in the pending fetches of remote source")
+                .setGauge()
+                .setUnit("projects"),
+            SOURCE_FIELD);
+    metricMaker.newTrigger(
+        pendingOverflowProjects,
+        () -> {
+          for (Source source : sourcesCollection.get().getAll()) {
+            pendingOverflowProjects.set(source.getRemoteConfigName(), source.getOverflowSize());
+          }
+          pendingOverflowProjects.prune();
+        });
+
+    CallbackMetric1<String, Integer> circuitBreakersOpen =
+        metricMaker.newCallbackMetric(
+            "circuit_breaker_open",
+            Integer.class,
+            new Description("Number of hosts of remote source with an open circuit breaker")
+                .setGauge()
+                .setUnit("hosts"),
+            SOURCE_FIELD);
+    metricMaker.newTrigger(
+        circuitBreakersOpen,
+        () -> {
+          for (Source source : sourcesCollection.get().getAll()) {
+            circuitBreakersOpen.set(
+                source.getRemoteConfigName(), source.getOpenCircuitBreakers().size());
+          }
+          circuitBreakersOpen.prune();
+        });
   }
 
   /**
@@ -87,4 +169,42 @@ public class FetchReplicationMetrics {
     executionDelay.record(name, delay);
     executionRetries.record(name, retries);
   }
+
+  /**
+   * Record a fetch from a source slower than its slow latency threshold.
+   *
+   * @param name the source name.
+   */
+  public void recordSlowFetch(String name) {
+    executionSlow.increment(name);
+  }
+
+  /**
+   * Record the refs found diverging from a source by a consistency check.
+   *
+   * @param name the source name.
+   * @param count number of divergent refs.
+   */
+  public void recordDivergentRefs(String name, long count) {
+    divergentRefs.incrementBy(name, count);
+  }
+
+  /**
+   * Record the objects received by a fetch into a repository with alternates.
+   *
+   * @param name the source name.
+   * @param objects number of objects received.
+   */
+  public void recordForkFetch(String name, long objects) {
+    forkReceivedObjects.record(name, objects);
+  }
+
+  /**
+   * Record a fetch scheduled from a source when its pending fetches are full.
+   *
+   * @param name the source name.
+   */
+  public void recordPendingOverflow(String name) {
+    pendingOverflow.increment(name);
+  }
 }
@@ -0,0 +1,65 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.ProjectEvent;
+
+public class FetchSlowEvent extends ProjectEvent {
+  static final String TYPE = "fetch-replication-slow";
+
+  final String project;
+  final String sourceNode;
+  final long elapsed;
+  final long delay;
+  final long openRepository;
+  final long fetch;
+  final long updateRefs;
+  final int fetchedRefs;
+  final int updatedRefs;
+  final int deletedRefs;
+  final int retries;
+
+  public FetchSlowEvent(
+      String project,
+      String sourceNode,
+      long elapsed,
+      long delay,
+      long openRepository,
+      long fetch,
+      long updateRefs,
+      int fetchedRefs,
+      int updatedRefs,
+      int deletedRefs,
+      int retries) {
+    super(TYPE);
+    this.project = project;
+    this.sourceNode = sourceNode;
+    this.elapsed = elapsed;
+    this.delay = delay;
+    this.openRepository = openRepository;
+    this.fetch = fetch;
+    this.updateRefs = updateRefs;
+    this.fetchedRefs = fetchedRefs;
+    this.updatedRefs = updatedRefs;
+    this.deletedRefs = deletedRefs;
+    this.retries = retries;
+  }
+
+  @Override
+  public Project.NameKey getProjectNameKey() {
+    return Project.nameKey(project);
+  }
+}
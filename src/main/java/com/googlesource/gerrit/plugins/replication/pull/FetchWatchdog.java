@@ -0,0 +1,41 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+
+/** Periodically aborts the in-flight fetches of a source that stopped making progress. */
+class FetchWatchdog implements Runnable {
+  private final Source source;
+
+  FetchWatchdog(Source source) {
+    this.source = source;
+  }
+
+  @Override
+  public void run() {
+    try {
+      source.abortStalledFetches();
+    } catch (RuntimeException e) {
+      // Keep the periodic task scheduled.
+      repLog.error("Cannot check stalled fetches from {}", source.getRemoteConfigName(), e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Watchdog of fetches from " + source.getRemoteConfigName();
+  }
+}
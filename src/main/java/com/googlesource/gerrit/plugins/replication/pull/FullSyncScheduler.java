@@ -0,0 +1,227 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic full sync of the projects of the sources, restricted to their {@code
+ * remote.NAME.fullSyncWindow} windows.
+ *
+ * <p>Rather than fetching all the projects at once, as {@link FetchAll} does, each run fetches all
+ * the refs of the next {@code remote.NAME.fullSyncProjects} projects, in the order of their names,
+ * every {@code remote.NAME.fullSyncInterval} while within a window, once the fetches of the
+ * previous run are completed. The name of the last project of a completed run is then saved in the
+ * data directory of the plugin, so that the sweep resumes from there after a restart or in the next
+ * window, and starts over once all the projects have been fetched.
+ */
+@Singleton
+class FullSyncScheduler implements LifecycleListener, Runnable {
+  static final long CHECK_INTERVAL_SECS = 60;
+
+  private final WorkQueue workQueue;
+  private final SourcesCollection sources;
+  private final ProjectCache projectCache;
+  private final ReplicationState.Factory replicationStateFactory;
+  private final DynamicItem<EventDispatcher> eventDispatcher;
+  private final Path cursorDirectory;
+  private final Map<String, Long> lastRuns = new HashMap<>();
+  private final Map<String, Run> runs = new HashMap<>();
+  private ScheduledFuture<?> task;
+
+  @Inject
+  FullSyncScheduler(
+      WorkQueue workQueue,
+      SourcesCollection sources,
+      ProjectCache projectCache,
+      ReplicationState.Factory replicationStateFactory,
+      DynamicItem<EventDispatcher> eventDispatcher,
+      @PluginData Path pluginData) {
+    this.workQueue = workQueue;
+    this.sources = sources;
+    this.projectCache = projectCache;
+    this.replicationStateFactory = replicationStateFactory;
+    this.eventDispatcher = eventDispatcher;
+    this.cursorDirectory = pluginData.resolve("full-sync");
+  }
+
+  @Override
+  public synchronized void start() {
+    task =
+        workQueue
+            .getDefaultQueue()
+            .scheduleAtFixedRate(this, CHECK_INTERVAL_SECS, CHECK_INTERVAL_SECS, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (task != null) {
+      task.cancel(false);
+      task = null;
+    }
+  }
+
+  @Override
+  public synchronized void run() {
+    ZonedDateTime now = ZonedDateTime.now();
+    for (Source source : sources.getAll()) {
+      try {
+        if (isRunning(source)) {
+          continue;
+        }
+        if (isDue(source, now)) {
+          Source.runWithoutBlocking(() -> syncNextProjects(source));
+        }
+      } catch (RuntimeException e) {
+        repLog.error("Cannot run the full sync from {}", source.getRemoteConfigName(), e);
+      }
+    }
+  }
+
+  /**
+   * Check whether the fetches of the last run from a source are still pending or running, saving
+   * the cursor of the run once they are completed.
+   */
+  private boolean isRunning(Source source) {
+    String name = source.getRemoteConfigName();
+    Run last = runs.get(name);
+    if (last == null) {
+      return false;
+    }
+    if (source.isFetchingAny(last.projects)) {
+      return true;
+    }
+    runs.remove(name);
+    writeCursor(name, last.cursor);
+    repLog.info("Full sync from {}: fetched {} projects", name, last.projects.size());
+    return false;
+  }
+
+  private boolean isDue(Source source, ZonedDateTime now) {
+    if (source.getFullSyncWindows().stream().noneMatch(w -> w.contains(now))) {
+      return false;
+    }
+    long nowMillis = now.toInstant().toEpochMilli();
+    Long lastRun = lastRuns.get(source.getRemoteConfigName());
+    if (lastRun != null
+        && nowMillis - lastRun < TimeUnit.SECONDS.toMillis(source.getFullSyncInterval())) {
+      return false;
+    }
+    lastRuns.put(source.getRemoteConfigName(), nowMillis);
+    return true;
+  }
+
+  private void syncNextProjects(Source source) {
+    String name = source.getRemoteConfigName();
+    String cursor = readCursor(name);
+    NavigableSet<Project.NameKey> projects = projectCache.all();
+    if (cursor != null) {
+      projects = projects.tailSet(Project.nameKey(cursor), false);
+    }
+
+    List<Project.NameKey> next = new ArrayList<>(source.getFullSyncProjects());
+    for (Project.NameKey project : projects) {
+      if (source.wouldFetchProject(project)) {
+        next.add(project);
+        if (next.size() == source.getFullSyncProjects()) {
+          break;
+        }
+      }
+    }
+
+    ReplicationState state =
+        replicationStateFactory.create(
+            new FetchResultProcessing.GitUpdateProcessing(eventDispatcher.get()));
+    for (Project.NameKey project : next) {
+      FetchAll.scheduleAllRefs(source, project, null, state, false, null);
+    }
+    state.markAllFetchTasksScheduled();
+
+    if (next.size() < source.getFullSyncProjects()) {
+      repLog.info("Full sync from {}: scheduled the last {} projects", name, next.size());
+      runs.put(name, new Run(next, null));
+    } else {
+      Project.NameKey last = next.get(next.size() - 1);
+      repLog.info("Full sync from {}: scheduled {} projects up to {}", name, next.size(), last);
+      runs.put(name, new Run(next, last.get()));
+    }
+  }
+
+  /** Projects fetched by a run, and cursor to save once they are all fetched. */
+  private static class Run {
+    final Set<Project.NameKey> projects;
+    final String cursor;
+
+    Run(List<Project.NameKey> projects, @Nullable String cursor) {
+      this.projects = new HashSet<>(projects);
+      this.cursor = cursor;
+    }
+  }
+
+  @Nullable
+  private String readCursor(String remoteName) {
+    try {
+      return new String(Files.readAllBytes(cursorDirectory.resolve(remoteName)), UTF_8);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      repLog.warn("Cannot read the full sync cursor of {}, starting over", remoteName, e);
+      return null;
+    }
+  }
+
+  private void writeCursor(String remoteName, @Nullable String project) {
+    Path cursor = cursorDirectory.resolve(remoteName);
+    try {
+      if (project == null) {
+        Files.deleteIfExists(cursor);
+        return;
+      }
+      Files.createDirectories(cursorDirectory);
+      Path tmp = Files.createTempFile(cursorDirectory, "cursor", ".tmp");
+      Files.write(tmp, project.getBytes(UTF_8));
+      Files.move(tmp, cursor, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      repLog.error("Cannot save the full sync cursor of {}", remoteName, e);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Daily time window, on some days of the week, during which the periodic full syncs of a source
+ * run.
+ *
+ * <p>Parsed from {@code [DAYS ]HH:MM-HH:MM}, where {@code DAYS} is a comma separated list of days
+ * or ranges of days, e.g. {@code Mon-Fri,Sun 22:00-06:00}. A window ending before it starts spans
+ * midnight, and belongs to the day it starts.
+ */
+class FullSyncWindow {
+  private final Set<DayOfWeek> days;
+  private final LocalTime start;
+  private final LocalTime end;
+
+  static FullSyncWindow parse(String window) {
+    String[] parts = window.trim().split("\\s+");
+    if (parts.length > 2) {
+      throw new IllegalArgumentException("Invalid full sync window: " + window);
+    }
+    Set<DayOfWeek> days =
+        parts.length == 2 ? parseDays(window, parts[0]) : EnumSet.allOf(DayOfWeek.class);
+    String[] times = parts[parts.length - 1].split("-");
+    if (times.length != 2) {
+      throw new IllegalArgumentException("Invalid full sync window: " + window);
+    }
+    try {
+      return new FullSyncWindow(days, LocalTime.parse(times[0]), LocalTime.parse(times[1]));
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException("Invalid full sync window: " + window, e);
+    }
+  }
+
+  private static Set<DayOfWeek> parseDays(String window, String days) {
+    Set<DayOfWeek> result = EnumSet.noneOf(DayOfWeek.class);
+    for (String range : days.split(",")) {
+      String[] bounds = range.split("-");
+      if (bounds.length > 2) {
+        throw new IllegalArgumentException("Invalid full sync window: " + window);
+      }
+      DayOfWeek from = parseDay(window, bounds[0]);
+      DayOfWeek to = bounds.length == 2 ? parseDay(window, bounds[1]) : from;
+      for (DayOfWeek day = from; ; day = day.plus(1)) {
+        result.add(day);
+        if (day == to) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static DayOfWeek parseDay(String window, String name) {
+    for (DayOfWeek day : DayOfWeek.values()) {
+      if (day.getDisplayName(TextStyle.SHORT, Locale.ENGLISH).equalsIgnoreCase(name)) {
+        return day;
+      }
+    }
+    throw new IllegalArgumentException("Invalid day " + name + " in full sync window: " + window);
+  }
+
+  private FullSyncWindow(Set<DayOfWeek> days, LocalTime start, LocalTime end) {
+    this.days = days;
+    this.start = start;
+    this.end = end;
+  }
+
+  boolean contains(ZonedDateTime when) {
+    LocalTime time = when.toLocalTime();
+    DayOfWeek day = when.getDayOfWeek();
+    if (!start.isAfter(end)) {
+      return days.contains(day) && !time.isBefore(start) && time.isBefore(end);
+    }
+    // Spans midnight: either the evening of a day of the window or the morning after.
+    return (days.contains(day) && !time.isBefore(start))
+        || (days.contains(day.minus(1)) && time.isBefore(end));
+  }
+
+  @Override
+  public String toString() {
+    return days + " " + start + "-" + end;
+  }
+}
@@ -64,16 +64,17 @@ final class ListCommand extends SshCommand {
     }
   }
 
-  private void addQueueDetails(StringBuilder out, Collection<FetchOne> values) {
-    for (FetchOne f : values) {
+  private void addQueueDetails(StringBuilder out, Collection<? extends PendingFetch> values) {
+    for (PendingFetch f : values) {
       out.append("  ").append(f.toString()).append("\n");
     }
   }
 
-  private void addQueueDetails(JsonObject obj, String key, Collection<FetchOne> values) {
+  private void addQueueDetails(
+      JsonObject obj, String key, Collection<? extends PendingFetch> values) {
     if (values.size() > 0) {
       JsonArray list = new JsonArray();
-      for (FetchOne f : values) {
+      for (PendingFetch f : values) {
         list.add(new JsonPrimitive(f.toString()));
       }
       obj.add(key, list);
@@ -92,6 +93,15 @@ final class ListCommand extends SshCommand {
         Source.QueueInfo q = s.getQueueInfo();
         addQueueDetails(obj, "InFlight", q.inFlight.values());
         addQueueDetails(obj, "Pending", q.pending.values());
+        addQueueDetails(obj, "Backfill", q.backfill.values());
+        List<CircuitBreaker> breakers = s.getOpenCircuitBreakers();
+        if (!breakers.isEmpty()) {
+          JsonArray list = new JsonArray();
+          for (CircuitBreaker b : breakers) {
+            list.add(new JsonPrimitive(b.toString()));
+          }
+          obj.add("CircuitBreakers", list);
+        }
       }
       stdout.print(obj.toString() + "\n");
     } else {
@@ -119,6 +129,17 @@ final class ListCommand extends SshCommand {
         addQueueDetails(out, q.inFlight.values());
         out.append("Pending: ").append(q.pending.size()).append("\n");
         addQueueDetails(out, q.pending.values());
+        if (!q.backfill.isEmpty()) {
+          out.append("Backfill: ").append(q.backfill.size()).append("\n");
+          addQueueDetails(out, q.backfill.values());
+        }
+        List<CircuitBreaker> breakers = s.getOpenCircuitBreakers();
+        if (!breakers.isEmpty()) {
+          out.append("Circuit Breakers: ").append(breakers.size()).append("\n");
+          for (CircuitBreaker b : breakers) {
+            out.append("  ").append(b.toString()).append("\n");
+          }
+        }
       }
       stdout.print(out.toString() + "\n");
     }
@@ -0,0 +1,158 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.ReplicationFileBasedConfig;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Creates the local repositories of the projects that are missing locally.
+ *
+ * <p>Creations are queued and executed in batches of at most {@code
+ * replication.repositoryCreationBatchSize} projects every {@code
+ * replication.repositoryCreationInterval}, so that a burst of new projects on the sources does not
+ * overload the local filesystem.
+ *
+ * <p>The creation of a project is only queued once: all the callers enqueuing it while queued get
+ * the same future, completed once the repository exists.
+ */
+@Singleton
+class LocalRepositoryCreator implements Runnable {
+  static final int DEFAULT_BATCH_SIZE = 10;
+  static final long DEFAULT_BATCH_INTERVAL_MSECS = 1000;
+
+  private final GitRepositoryManager gitManager;
+  private final ProjectCache projectCache;
+  private final WorkQueue workQueue;
+  private final int batchSize;
+  private final long batchInterval;
+  private final Map<Project.NameKey, SettableFuture<Void>> queued = new LinkedHashMap<>();
+  private boolean batchScheduled;
+
+  @Inject
+  LocalRepositoryCreator(
+      ReplicationFileBasedConfig replicationConfig,
+      GitRepositoryManager gitManager,
+      ProjectCache projectCache,
+      WorkQueue workQueue) {
+    this.gitManager = gitManager;
+    this.projectCache = projectCache;
+    this.workQueue = workQueue;
+
+    Config cfg = replicationConfig.getConfig();
+    batchSize =
+        Math.max(1, cfg.getInt("replication", "repositoryCreationBatchSize", DEFAULT_BATCH_SIZE));
+    batchInterval =
+        ConfigUtil.getTimeUnit(
+            cfg,
+            "replication",
+            null,
+            "repositoryCreationInterval",
+            DEFAULT_BATCH_INTERVAL_MSECS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queue the creation of the local repository of a project.
+   *
+   * @param project project to create.
+   * @return future completed once the repository exists, or failed if it cannot be created.
+   */
+  synchronized ListenableFuture<Void> enqueue(Project.NameKey project) {
+    SettableFuture<Void> created = queued.get(project);
+    if (created == null) {
+      created = SettableFuture.create();
+      queued.put(project, created);
+      repLog.info("Queued creation of missing local repository {}", project);
+      scheduleBatch();
+    }
+    return created;
+  }
+
+  @Override
+  public void run() {
+    List<Map.Entry<Project.NameKey, SettableFuture<Void>>> batch = new ArrayList<>(batchSize);
+    synchronized (this) {
+      Iterator<Map.Entry<Project.NameKey, SettableFuture<Void>>> it = queued.entrySet().iterator();
+      while (it.hasNext() && batch.size() < batchSize) {
+        batch.add(it.next());
+        it.remove();
+      }
+    }
+
+    for (Map.Entry<Project.NameKey, SettableFuture<Void>> e : batch) {
+      try {
+        create(e.getKey());
+        e.getValue().set(null);
+      } catch (IOException | RuntimeException ex) {
+        repLog.error("Cannot create missing local repository {}", e.getKey(), ex);
+        e.getValue().setException(ex);
+      }
+    }
+
+    synchronized (this) {
+      batchScheduled = false;
+      if (!queued.isEmpty()) {
+        scheduleBatch();
+      }
+    }
+  }
+
+  private void scheduleBatch() {
+    if (!batchScheduled) {
+      batchScheduled = true;
+      workQueue.getDefaultQueue().schedule(this, batchInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void create(Project.NameKey project) throws IOException {
+    try (Repository git = gitManager.openRepository(project)) {
+      repLog.info("Local repository {} already exists, skipping creation", project);
+      return;
+    } catch (RepositoryNotFoundException e) {
+      // Expected: the repository is missing and needs to be created.
+    }
+
+    try (Repository git = gitManager.createRepository(project)) {
+      projectCache.onCreateProject(project);
+      repLog.info("Created missing local repository {}", project);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Create missing local repositories";
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.util.Map;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Fetch of a project from the best mirror of a source, possibly hedged by a second fetch from
+ * another mirror.
+ *
+ * <p>The first of the two fetches completing successfully wins, and its outcome is replayed to the
+ * replication states of the other one, which is then cancelled or aborted.
+ *
+ * <p>Instance members are protected by the lock within Source.
+ */
+class MirrorFetch {
+
+  /** Outcome of the fetch that won. */
+  static class Outcome {
+    private final URIish uri;
+    private final Map<String, RefUpdate.Result> refResults;
+
+    Outcome(URIish uri, Map<String, RefUpdate.Result> refResults) {
+      this.uri = uri;
+      this.refResults = refResults;
+    }
+
+    /** @return the URI the refs have been fetched from. */
+    URIish getURI() {
+      return uri;
+    }
+
+    /** @return the results of the replicated refs, indexed by ref name, in replication order. */
+    Map<String, RefUpdate.Result> getRefResults() {
+      return refResults;
+    }
+  }
+
+  private final Map<URIish, String> mirrors;
+  private final URIish hedgeURI;
+  private FetchOne primary;
+  private FetchOne hedge;
+  private FetchOne winner;
+  private Outcome outcome;
+  private boolean completed;
+
+  /**
+   * @param mirrors mirror of each URI of the project, as configured in the remote {@code url}.
+   * @param hedgeURI URI to hedge the fetch with, null if the fetch is not hedged.
+   */
+  MirrorFetch(Map<URIish, String> mirrors, URIish hedgeURI) {
+    this.mirrors = mirrors;
+    this.hedgeURI = hedgeURI;
+  }
+
+  String getMirror(URIish uri) {
+    return mirrors.get(uri);
+  }
+
+  URIish getHedgeURI() {
+    return hedgeURI;
+  }
+
+  FetchOne getPrimary() {
+    return primary;
+  }
+
+  void setPrimary(FetchOne primary) {
+    this.primary = primary;
+  }
+
+  FetchOne getHedge() {
+    return hedge;
+  }
+
+  void setHedge(FetchOne hedge) {
+    this.hedge = hedge;
+  }
+
+  boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * Complete the mirror fetch.
+   *
+   * @param op fetch that completed first.
+   * @param opOutcome its outcome, null if it cannot be replayed to the other fetch.
+   */
+  void complete(FetchOne op, Outcome opOutcome) {
+    completed = true;
+    if (opOutcome != null) {
+      winner = op;
+      outcome = opOutcome;
+    }
+  }
+
+  /**
+   * Get the outcome to replay to a fetch that lost.
+   *
+   * @param op fetch to get the outcome for.
+   * @return the outcome of the other fetch, null if the fetch has not lost.
+   */
+  Outcome getOutcomeFor(FetchOne op) {
+    return winner != null && winner != op ? outcome : null;
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent latency and error statistics of the mirrors of a source.
+ *
+ * <p>Only the last {@link #MAX_SAMPLES} fetches of the last {@link #SAMPLES_MAX_AGE_MINUTES}
+ * minutes are taken into account, so that a mirror that has been failing is given another chance
+ * once its failures are old enough.
+ */
+class MirrorStats {
+  static final int MAX_SAMPLES = 64;
+  static final int MIN_SAMPLES_FOR_PERCENTILE = 10;
+  static final long SAMPLES_MAX_AGE_MINUTES = 10;
+
+  private static class Sample {
+    final long time;
+    final long latency;
+    final boolean failed;
+
+    Sample(long time, long latency, boolean failed) {
+      this.time = time;
+      this.latency = latency;
+      this.failed = failed;
+    }
+  }
+
+  private final Map<String, Deque<Sample>> samplesByMirror = new HashMap<>();
+
+  synchronized void recordSuccess(String mirror, long latencyMsecs) {
+    add(mirror, new Sample(System.nanoTime(), latencyMsecs, false));
+  }
+
+  /**
+   * Record a fetch from a mirror aborted because another mirror completed it first.
+   *
+   * <p>Its latency is at least the time elapsed until it was aborted, which is recorded as its
+   * latency: a mirror that keeps losing is then ranked by it, rather than first again as a mirror
+   * without recent fetches.
+   *
+   * @param mirror mirror of the aborted fetch.
+   * @param elapsedMsecs time elapsed from the start of the fetch until it was aborted.
+   */
+  synchronized void recordAborted(String mirror, long elapsedMsecs) {
+    add(mirror, new Sample(System.nanoTime(), elapsedMsecs, false));
+  }
+
+  synchronized void recordFailure(String mirror) {
+    add(mirror, new Sample(System.nanoTime(), 0, true));
+  }
+
+  /**
+   * Sort the mirrors from the best to the worst.
+   *
+   * <p>Mirrors without recent fetches come first, so that they get measured, followed by the others
+   * in order of median latency weighted by their error rate. Mirrors whose last fetch failed come
+   * last.
+   *
+   * @param mirrors mirrors to sort.
+   * @return the sorted mirrors.
+   */
+  synchronized List<String> rank(Collection<String> mirrors) {
+    Map<String, Double> scores = new HashMap<>();
+    Set<String> lastFailed = new HashSet<>();
+    for (String mirror : mirrors) {
+      scores.put(mirror, score(mirror));
+      Sample last = recentSamples(mirror).peekLast();
+      if (last != null && last.failed) {
+        lastFailed.add(mirror);
+      }
+    }
+    List<String> ranked = new ArrayList<>(mirrors);
+    ranked.sort(
+        Comparator.<String, Boolean>comparing(lastFailed::contains).thenComparing(scores::get));
+    return ranked;
+  }
+
+  /**
+   * Compute a percentile of the recent latencies of a mirror.
+   *
+   * @param mirror mirror to compute the percentile of.
+   * @param percentile percentile to compute, between 1 and 100.
+   * @return the percentile in milliseconds, empty if there are not enough recent successful fetches
+   *     from the mirror.
+   */
+  synchronized OptionalLong latencyPercentile(String mirror, int percentile) {
+    long[] latencies = successfulLatencies(mirror);
+    if (latencies.length < MIN_SAMPLES_FOR_PERCENTILE) {
+      return OptionalLong.empty();
+    }
+    Arrays.sort(latencies);
+    int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+    return OptionalLong.of(latencies[Math.max(0, index)]);
+  }
+
+  private double score(String mirror) {
+    Deque<Sample> samples = recentSamples(mirror);
+    if (samples.isEmpty()) {
+      return 0;
+    }
+    int failures = 0;
+    for (Sample s : samples) {
+      if (s.failed) {
+        failures++;
+      }
+    }
+    if (failures == samples.size()) {
+      return Double.MAX_VALUE;
+    }
+    long[] latencies = successfulLatencies(mirror);
+    Arrays.sort(latencies);
+    long median = Math.max(1, latencies[latencies.length / 2]);
+    double errorRate = (double) failures / samples.size();
+    return median * (1 + 4 * errorRate);
+  }
+
+  private long[] successfulLatencies(String mirror) {
+    return recentSamples(mirror).stream()
+        .filter(s -> !s.failed)
+        .mapToLong(s -> s.latency)
+        .toArray();
+  }
+
+  private Deque<Sample> recentSamples(String mirror) {
+    Deque<Sample> samples = samplesByMirror.computeIfAbsent(mirror, m -> new ArrayDeque<>());
+    long oldest = System.nanoTime() - TimeUnit.MINUTES.toNanos(SAMPLES_MAX_AGE_MINUTES);
+    while (!samples.isEmpty() && samples.peekFirst().time - oldest < 0) {
+      samples.removeFirst();
+    }
+    return samples;
+  }
+
+  private void add(String mirror, Sample sample) {
+    Deque<Sample> samples = recentSamples(mirror);
+    samples.addLast(sample);
+    if (samples.size() > MAX_SAMPLES) {
+      samples.removeFirst();
+    }
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.ProjectRunnable;
+import com.google.gerrit.server.git.WorkQueue.CanceledWhileRunning;
+import com.google.gerrit.server.ioutil.HexFormat;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Fetch of a project waiting in the queue of a source: the refs to fetch or delete, and the
+ * replication states to notify.
+ *
+ * <p>The events merge their refs and states into the pending fetch of the URI, and it is the task
+ * scheduled, listed and cancelled on the work queue. Only once due is it turned into a {@link
+ * FetchOne}, which holds what running the fetch takes, so that the source keeps no more than this
+ * record for each of the projects waiting to be fetched. A {@link FetchOne} rescheduled after a
+ * collision or a failure is pending in turn.
+ *
+ * <p>Instance members are protected by the lock within Source.
+ */
+class PendingFetch implements ProjectRunnable, CanceledWhileRunning {
+  static final String ALL_REFS = "..all..";
+  private static final Set<String> ALL_REFS_SET = Collections.singleton(ALL_REFS);
+
+  protected final Source pool;
+  protected final Project.NameKey projectName;
+  protected final URIish uri;
+  protected final Set<String> delta = Sets.newHashSetWithExpectedSize(4);
+  protected Set<String> deletedRefs = Collections.emptySet();
+  protected boolean fetchAllRefs;
+  protected boolean canceled;
+  protected final ListMultimap<String, ReplicationState> stateMap = LinkedListMultimap.create(1);
+  protected int id;
+  protected long createdAt;
+  // The fetch operation running this one, once due.
+  private volatile FetchOne running;
+
+  PendingFetch(Source pool, Project.NameKey projectName, URIish uri, int id) {
+    this.pool = pool;
+    this.projectName = projectName;
+    this.uri = uri;
+    this.id = id;
+    createdAt = System.nanoTime();
+  }
+
+  /**
+   * Take over the refs, the states and the identity of a pending fetch being turned into this
+   * operation.
+   */
+  void takeOver(PendingFetch pending) {
+    id = pending.id;
+    createdAt = pending.createdAt;
+    canceled = pending.canceled;
+    fetchAllRefs = pending.fetchAllRefs;
+    delta.addAll(pending.delta);
+    if (!pending.deletedRefs.isEmpty()) {
+      deletedRefs = new HashSet<>(pending.deletedRefs);
+    }
+    stateMap.putAll(pending.stateMap);
+    pending.running = (FetchOne) this;
+  }
+
+  @Override
+  public void run() {
+    pool.materialize(this).run();
+  }
+
+  @Override
+  public void cancel() {
+    FetchOne op = running;
+    if (op != null) {
+      op.cancel();
+      return;
+    }
+    repLog.info("Replication {} was canceled", getURI());
+    canceledByReplication();
+    pool.fetchWasCanceled(this);
+  }
+
+  @Override
+  public void setCanceledWhileRunning() {
+    FetchOne op = running;
+    if (op != null) {
+      op.setCanceledWhileRunning();
+    }
+  }
+
+  @Override
+  public Project.NameKey getProjectNameKey() {
+    return projectName;
+  }
+
+  @Override
+  public String getRemoteName() {
+    return pool.getRemoteConfigName();
+  }
+
+  @Override
+  public boolean hasCustomizedPrint() {
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + HexFormat.fromInt(id) + "] fetch " + uri;
+  }
+
+  URIish getURI() {
+    return uri;
+  }
+
+  boolean isRetrying() {
+    return false;
+  }
+
+  boolean isBackfill() {
+    return false;
+  }
+
+  boolean isHedge() {
+    return false;
+  }
+
+  MirrorFetch getMirrorFetch() {
+    return null;
+  }
+
+  void canceledByReplication() {
+    canceled = true;
+  }
+
+  boolean wasCanceled() {
+    return canceled;
+  }
+
+  void addRef(String ref) {
+    if (ALL_REFS.equals(ref)) {
+      delta.clear();
+      fetchAllRefs = true;
+      repLog.trace("Added all refs for replication from {}", uri);
+    } else if (!fetchAllRefs) {
+      delta.add(ref);
+      repLog.trace("Added ref {} for replication from {}", ref, uri);
+    }
+    deletedRefs.remove(ref);
+  }
+
+  void addDeletedRef(String ref) {
+    delta.remove(ref);
+    if (deletedRefs.isEmpty()) {
+      deletedRefs = new HashSet<>();
+    }
+    deletedRefs.add(ref);
+    repLog.trace("Added ref {} for deletion as removed from {}", ref, uri);
+  }
+
+  Set<String> getDeletedRefs() {
+    return deletedRefs;
+  }
+
+  void addDeletedRefs(Set<String> refs) {
+    for (String ref : refs) {
+      addDeletedRef(ref);
+    }
+  }
+
+  boolean isFetchAllRefs() {
+    return fetchAllRefs;
+  }
+
+  /** @return the refs to fetch, or the unmodifiable set of {@link #ALL_REFS} only. */
+  Set<String> getRefs() {
+    return fetchAllRefs ? ALL_REFS_SET : delta;
+  }
+
+  void addRefs(Set<String> refs) {
+    if (!fetchAllRefs) {
+      for (String ref : refs) {
+        addRef(ref);
+      }
+    }
+  }
+
+  void addState(String ref, ReplicationState state) {
+    stateMap.put(ref, state);
+  }
+
+  ListMultimap<String, ReplicationState> getStates() {
+    return stateMap;
+  }
+
+  ReplicationState[] getStatesAsArray() {
+    Set<ReplicationState> statesSet = new HashSet<>();
+    statesSet.addAll(stateMap.values());
+    return statesSet.toArray(new ReplicationState[statesSet.size()]);
+  }
+
+  void addStates(ListMultimap<String, ReplicationState> states) {
+    stateMap.putAll(states);
+  }
+
+  void removeStates() {
+    stateMap.clear();
+  }
+}
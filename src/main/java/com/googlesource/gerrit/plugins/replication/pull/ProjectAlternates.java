@@ -0,0 +1,94 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.entities.Project;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Projects whose object databases are alternates of a local repository, as the forks of a project
+ * sharing its objects.
+ *
+ * <p>The alternates are read from {@code objects/info/alternates}, and mapped back to the names of
+ * the projects stored in the same base directory as the repository.
+ */
+class ProjectAlternates {
+  private static final String ALTERNATES = "info/alternates";
+
+  /**
+   * @param git local repository of the project.
+   * @param project name of the project.
+   * @return the projects whose objects the repository borrows, empty if it has no alternates or is
+   *     not stored on disk.
+   */
+  static List<Project.NameKey> of(Repository git, Project.NameKey project) throws IOException {
+    File dir = git.getDirectory();
+    if (dir == null) {
+      return Collections.emptyList();
+    }
+
+    Path objects = dir.toPath().resolve(Constants.OBJECTS);
+    Path alternatesFile = objects.resolve(ALTERNATES);
+    if (!Files.exists(alternatesFile)) {
+      return Collections.emptyList();
+    }
+    List<String> alternates;
+    try {
+      alternates = Files.readAllLines(alternatesFile, UTF_8);
+    } catch (NoSuchFileException e) {
+      return Collections.emptyList();
+    }
+
+    Path basePath = dir.toPath().toAbsolutePath().normalize();
+    for (int i = project.get().split("/").length; i > 0 && basePath != null; i--) {
+      basePath = basePath.getParent();
+    }
+    if (basePath == null) {
+      return Collections.emptyList();
+    }
+
+    List<Project.NameKey> projects = new ArrayList<>(alternates.size());
+    for (String alternate : alternates) {
+      if (alternate.isEmpty() || alternate.startsWith("#")) {
+        continue;
+      }
+      Path alternateDir = objects.resolve(alternate).toAbsolutePath().normalize().getParent();
+      if (alternateDir == null || !alternateDir.startsWith(basePath)) {
+        continue;
+      }
+      String name = basePath.relativize(alternateDir).toString().replace(File.separatorChar, '/');
+      if (name.endsWith(Constants.DOT_GIT_EXT)) {
+        name = name.substring(0, name.length() - Constants.DOT_GIT_EXT.length());
+      }
+      if (!name.isEmpty()) {
+        projects.add(Project.nameKey(name));
+      }
+    }
+    return projects;
+  }
+
+  private ProjectAlternates() {}
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import com.google.gerrit.extensions.systemstatus.ServerInformation;
+import com.google.gerrit.server.util.PluginLogFile;
+import com.google.gerrit.server.util.SystemLog;
+import com.google.inject.Inject;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.PatternLayout;
+
+public class PullReplicationAuditLogFile extends PluginLogFile {
+  private final FetchAuditLog auditLog;
+
+  @Inject
+  public PullReplicationAuditLogFile(
+      SystemLog systemLog, ServerInformation serverInfo, FetchAuditLog auditLog) {
+    super(systemLog, serverInfo, FetchAuditLog.AUDIT_LOG_NAME, new PatternLayout("%m%n"));
+    this.auditLog = auditLog;
+  }
+
+  @Override
+  public void start() {
+    if (!auditLog.isEnabled()) {
+      return;
+    }
+    super.start();
+    Appender appender =
+        LogManager.getLogger(FetchAuditLog.AUDIT_LOG_NAME)
+            .getAppender(FetchAuditLog.AUDIT_LOG_NAME);
+    if (appender instanceof AsyncAppender) {
+      // Drop the records when the buffer is full rather than slowing down the fetches.
+      AsyncAppender async = (AsyncAppender) appender;
+      async.setBlocking(false);
+      async.setBufferSize(auditLog.getBufferSize());
+    }
+  }
+}
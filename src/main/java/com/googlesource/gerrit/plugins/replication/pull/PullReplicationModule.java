@@ -62,6 +62,18 @@ class PullReplicationModule extends AbstractModule {
     bind(LifecycleListener.class)
         .annotatedWith(UniqueAnnotations.create())
         .to(PullReplicationLogFile.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(PullReplicationAuditLogFile.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(FetchPartitioner.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(FullSyncScheduler.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(RepositoryMaintenance.class);
     bind(CredentialsFactory.class)
         .to(AutoReloadSecureCredentialsFactoryDecorator.class)
         .in(Scopes.SINGLETON);
@@ -92,6 +104,7 @@ class PullReplicationModule extends AbstractModule {
     EventTypes.register(FetchRefReplicatedEvent.TYPE, FetchRefReplicatedEvent.class);
     EventTypes.register(FetchRefReplicationDoneEvent.TYPE, FetchRefReplicationDoneEvent.class);
     EventTypes.register(FetchReplicationScheduledEvent.TYPE, FetchReplicationScheduledEvent.class);
+    EventTypes.register(FetchSlowEvent.TYPE, FetchSlowEvent.class);
   }
 
   private FileBasedConfig getReplicationConfig() {
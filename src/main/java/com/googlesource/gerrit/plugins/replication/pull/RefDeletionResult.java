@@ -0,0 +1,49 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import org.eclipse.jgit.lib.RefUpdate;
+
+/** Outcome of the local deletion of a ref that no longer exists on the source. */
+class RefDeletionResult {
+  private final String remoteName;
+  private final String localName;
+  private final RefUpdate.Result result;
+
+  RefDeletionResult(String remoteName, String localName, RefUpdate.Result result) {
+    this.remoteName = remoteName;
+    this.localName = localName;
+    this.result = result;
+  }
+
+  /** @return the name of the ref on the source. */
+  String getRemoteName() {
+    return remoteName;
+  }
+
+  /** @return the name of the local ref. */
+  String getLocalName() {
+    return localName;
+  }
+
+  RefUpdate.Result getResult() {
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "RefDeletionResult[" + localName + " (" + remoteName + "): " + result + "]";
+  }
+}
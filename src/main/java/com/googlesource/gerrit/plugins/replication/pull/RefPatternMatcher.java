@@ -0,0 +1,135 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Selection of the refs of a source, from the {@code remote.NAME.includeRef} and {@code
+ * remote.NAME.excludeRef} patterns.
+ *
+ * <p>A ref is selected when it matches one of the include patterns, or when there are none, and
+ * none of the exclude patterns. A pattern is either an exact ref name, a glob where {@code *}
+ * matches any sequence of characters, including {@code /}, or a regular expression starting with
+ * {@code ^}.
+ *
+ * <p>The patterns are compiled so that matching a ref does not depend on how many of them there
+ * are: the exact names are looked up in a set, and the globs by the literal prefix before their
+ * first {@code *}, for each length of those prefixes, before only matching the rest of the ref
+ * against the globs sharing that prefix. The regular expressions are combined in a single one.
+ */
+class RefPatternMatcher {
+  static final RefPatternMatcher ALL = new RefPatternMatcher(new ArrayList<>(), new ArrayList<>());
+
+  private final Patterns includes;
+  private final Patterns excludes;
+
+  RefPatternMatcher(Collection<String> includes, Collection<String> excludes) {
+    this.includes = includes.isEmpty() ? null : new Patterns(includes);
+    this.excludes = excludes.isEmpty() ? null : new Patterns(excludes);
+  }
+
+  /** @return true if all the refs are selected. */
+  boolean matchesAll() {
+    return includes == null && excludes == null;
+  }
+
+  /** @return true if the ref is selected. */
+  boolean matches(String ref) {
+    return (includes == null || includes.matches(ref))
+        && (excludes == null || !excludes.matches(ref));
+  }
+
+  private static class Patterns {
+    final Set<String> exact = new HashSet<>();
+    final Map<String, Pattern> globsByPrefix = new HashMap<>();
+    final int[] prefixLengths;
+    final Pattern regex;
+
+    Patterns(Collection<String> patterns) {
+      Map<String, List<String>> globs = new HashMap<>();
+      List<String> regexes = new ArrayList<>();
+      for (String pattern : patterns) {
+        int wildcard = pattern.indexOf('*');
+        if (pattern.startsWith("^")) {
+          regexes.add(pattern.substring(1));
+        } else if (wildcard < 0) {
+          exact.add(pattern);
+        } else {
+          globs
+              .computeIfAbsent(pattern.substring(0, wildcard), k -> new ArrayList<>())
+              .add(globToRegex(pattern.substring(wildcard)));
+        }
+      }
+
+      Set<Integer> lengths = new TreeSet<>();
+      for (Map.Entry<String, List<String>> e : globs.entrySet()) {
+        lengths.add(e.getKey().length());
+        // A null pattern matches any rest of the ref.
+        globsByPrefix.put(e.getKey(), e.getValue().contains(".*") ? null : compile(e.getValue()));
+      }
+      prefixLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+      regex = regexes.isEmpty() ? null : compile(regexes);
+    }
+
+    boolean matches(String ref) {
+      if (exact.contains(ref)) {
+        return true;
+      }
+      for (int length : prefixLengths) {
+        if (length > ref.length()) {
+          break;
+        }
+        String prefix = ref.substring(0, length);
+        if (globsByPrefix.containsKey(prefix)) {
+          Pattern rest = globsByPrefix.get(prefix);
+          if (rest == null || rest.matcher(ref).region(length, ref.length()).matches()) {
+            return true;
+          }
+        }
+      }
+      return regex != null && regex.matcher(ref).matches();
+    }
+
+    private static Pattern compile(List<String> regexes) {
+      return Pattern.compile("(?:" + String.join(")|(?:", regexes) + ")");
+    }
+
+    private static String globToRegex(String glob) {
+      StringBuilder regex = new StringBuilder();
+      int start = 0;
+      for (int wildcard = glob.indexOf('*');
+          wildcard >= 0;
+          start = wildcard + 1, wildcard = glob.indexOf('*', start)) {
+        if (wildcard > start) {
+          regex.append(Pattern.quote(glob.substring(start, wildcard)));
+        }
+        regex.append(".*");
+      }
+      if (start < glob.length()) {
+        regex.append(Pattern.quote(glob.substring(start)));
+      }
+      return regex.toString();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.replication.ReplicationFileBasedConfig;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Maintenance of the local repositories after the fetches, so that the packs and loose refs left by
+ * many small fetches do not degrade the reads.
+ *
+ * <p>The fetches and the packs received by each project since its last maintenance are counted.
+ * Once a project has received {@code replication.maintenancePackThreshold} packs, its objects are
+ * consolidated into one pack, and its refs packed, by a garbage collection; once it has been
+ * fetched {@code replication.maintenanceFetchThreshold} times, only its refs are packed. The
+ * maintenance runs on its own queue of {@code replication.maintenanceThreads} threads of the lowest
+ * priority, with at most one maintenance of a project queued at a time.
+ */
+@Singleton
+class RepositoryMaintenance implements LifecycleListener {
+  static final String QUEUE_NAME = "PullReplication-Maintenance";
+
+  private final WorkQueue workQueue;
+  private final GitRepositoryManager gitManager;
+  private final int fetchThreshold;
+  private final int packThreshold;
+  private final int threads;
+  private final Map<Project.NameKey, Counts> counts = new ConcurrentHashMap<>();
+  private final Set<Project.NameKey> queued = ConcurrentHashMap.newKeySet();
+  private volatile ScheduledExecutorService pool;
+
+  private static class Counts {
+    int fetches;
+    int packs;
+  }
+
+  @Inject
+  RepositoryMaintenance(
+      ReplicationFileBasedConfig replicationConfig,
+      WorkQueue workQueue,
+      GitRepositoryManager gitManager) {
+    this(replicationConfig.getConfig(), workQueue, gitManager);
+  }
+
+  RepositoryMaintenance(
+      Config cfg, @Nullable WorkQueue workQueue, GitRepositoryManager gitManager) {
+    this.workQueue = workQueue;
+    this.gitManager = gitManager;
+    fetchThreshold = Math.max(0, cfg.getInt("replication", "maintenanceFetchThreshold", 0));
+    packThreshold = Math.max(0, cfg.getInt("replication", "maintenancePackThreshold", 0));
+    threads = Math.max(1, cfg.getInt("replication", "maintenanceThreads", 1));
+  }
+
+  @Override
+  public void start() {
+    if (isEnabled() && workQueue != null) {
+      pool = workQueue.createQueue(threads, QUEUE_NAME, Thread.MIN_PRIORITY, false);
+    }
+  }
+
+  @Override
+  public void stop() {
+    ScheduledExecutorService p = pool;
+    if (p != null) {
+      pool = null;
+      int cnt = p.shutdownNow().size();
+      if (cnt > 0) {
+        repLog.warn("Canceled {} repository maintenance tasks", cnt);
+      }
+    }
+  }
+
+  boolean isEnabled() {
+    return fetchThreshold > 0 || packThreshold > 0;
+  }
+
+  /**
+   * Count a completed fetch into a project, and queue its maintenance once a threshold is reached.
+   *
+   * @param project project fetched.
+   * @param receivedPack true if the fetch received objects, stored in a new pack.
+   */
+  void recordFetch(Project.NameKey project, boolean receivedPack) {
+    ScheduledExecutorService p = pool;
+    if (p == null) {
+      return;
+    }
+
+    // The counts are updated and reset atomically with the entry of the
+    // project, so that no concurrent fetch is counted into removed counts.
+    Counts[] reached = new Counts[1];
+    counts.compute(
+        project,
+        (k, c) -> {
+          if (c == null) {
+            c = new Counts();
+          }
+          c.fetches++;
+          if (receivedPack) {
+            c.packs++;
+          }
+          if ((isGcDue(c) || (fetchThreshold > 0 && c.fetches >= fetchThreshold))
+              && queued.add(project)) {
+            reached[0] = c;
+            return null;
+          }
+          return c;
+        });
+    if (reached[0] != null) {
+      boolean gc = isGcDue(reached[0]);
+      p.submit(() -> maintain(project, gc));
+    }
+  }
+
+  private boolean isGcDue(Counts c) {
+    return packThreshold > 0 && c.packs >= packThreshold;
+  }
+
+  private void maintain(Project.NameKey project, boolean fullGc) {
+    long startedAt = System.nanoTime();
+    try (Repository git = gitManager.openRepository(project)) {
+      if (!(git instanceof FileRepository)) {
+        return;
+      }
+      GC gc = new GC((FileRepository) git);
+      gc.setProgressMonitor(NullProgressMonitor.INSTANCE);
+      if (fullGc) {
+        gc.gc();
+      } else {
+        gc.packRefs();
+      }
+      repLog.info(
+          "{} of {} completed in {}ms",
+          fullGc ? "Garbage collection" : "Packing of the refs",
+          project,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    } catch (IOException | ParseException | RuntimeException e) {
+      repLog.error("Cannot run the maintenance of {}", project, e);
+    } finally {
+      queued.remove(project);
+    }
+  }
+}
@@ -17,12 +17,21 @@ package com.googlesource.gerrit.plugins.replication.pull;
 import static com.googlesource.gerrit.plugins.replication.ReplicationFileBasedConfig.replaceName;
 import static com.googlesource.gerrit.plugins.replication.pull.FetchResultProcessing.resolveNodeName;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.GroupReference;
 import com.google.gerrit.entities.AccountGroup;
 import com.google.gerrit.entities.BranchNameKey;
@@ -37,6 +46,7 @@ import com.google.gerrit.server.account.GroupBackend;
 import com.google.gerrit.server.account.GroupBackends;
 import com.google.gerrit.server.account.GroupIncludeCache;
 import com.google.gerrit.server.account.ListGroupMembership;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.events.EventDispatcher;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.PerThreadRequestScope;
@@ -48,11 +58,13 @@ import com.google.gerrit.server.permissions.RefPermission;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.util.IdGenerator;
 import com.google.gerrit.server.util.RequestContext;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Provider;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.google.inject.servlet.RequestScoped;
@@ -61,18 +73,29 @@ import com.googlesource.gerrit.plugins.replication.ReplicationFilter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FilenameUtils;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
 import org.slf4j.Logger;
@@ -86,17 +109,39 @@ public class Source {
 
   private final ReplicationStateListener stateLog;
   private final Object stateLock = new Object();
-  private final Map<URIish, FetchOne> pending = new HashMap<>();
+  // Fetches waiting to run, only turned into fetch operations once due.
+  private final Map<URIish, PendingFetch> pending = new HashMap<>();
   private final Map<URIish, FetchOne> inFlight = new HashMap<>();
+  private final Map<URIish, FetchOne> backfill = new HashMap<>();
+  // Fetches waiting for room in pending, indexed by URI.
+  private final Map<URIish, Overflow> overflow = new LinkedHashMap<>();
+  // Last successful fetch of all the refs of each URI, in the order of completion.
+  private final Map<URIish, FreshFetch> freshFetches = new LinkedHashMap<>();
+  // States waiting for a fetch of all the refs, either in flight or retrying it.
+  private final ListMultimap<PendingFetch, ReplicationState> joiners = ArrayListMultimap.create();
+  // Creations of the missing repositories of the fetches, until these are finished.
+  private final Map<FetchOne, ListenableFuture<Void>> repositoryCreations = new HashMap<>();
   private final FetchOne.Factory opFactory;
+  private final IdGenerator idGenerator;
   private final GitRepositoryManager gitManager;
   private final PermissionBackend permissionBackend;
   private final Provider<CurrentUser> userProvider;
   private final ProjectCache projectCache;
   private volatile ScheduledExecutorService pool;
+  private volatile ScheduledExecutorService backfillPool;
+  private volatile VirtualThreadDispatcher dispatcher;
+  private volatile ScheduledFuture<?> watchdog;
   private final PerThreadRequestScope.Scoper threadScoper;
   private final SourceConfiguration config;
   private final DynamicItem<EventDispatcher> eventDispatcher;
+  private final LocalRepositoryCreator repositoryCreator;
+  private final String instanceId;
+  private final FetchPartitioner partitioner;
+  private final FetchReplicationMetrics metrics;
+  private final MirrorStats mirrorStats = new MirrorStats();
+  private final Map<String, CircuitBreaker> circuitBreakers = new HashMap<>();
+  // Set while a task of the default work queue schedules fetches, see runWithoutBlocking().
+  private static final ThreadLocal<Boolean> withoutBlocking = ThreadLocal.withInitial(() -> false);
 
   protected enum RetryReason {
     TRANSPORT_ERROR,
@@ -104,13 +149,45 @@ public class Source {
     REPOSITORY_MISSING
   }
 
+  /** Successful fetch of all the refs of a URI. */
+  private static class FreshFetch {
+    final long fetchedAt;
+    final RefUpdate.Result result;
+
+    FreshFetch(long fetchedAt, RefUpdate.Result result) {
+      this.fetchedAt = fetchedAt;
+      this.result = result;
+    }
+  }
+
+  /**
+   * Fetch of a project that overflowed pending: its refs are collapsed into all the refs of the
+   * project, except for the deletions, which do not require any fetch, and the states of the
+   * callers are kept to be notified by the fetch once scheduled.
+   */
+  private static class Overflow {
+    final Project.NameKey project;
+    final Set<String> deletedRefs = new HashSet<>();
+    final ListMultimap<String, ReplicationState> states = LinkedListMultimap.create();
+    boolean fetchAllRefs;
+
+    Overflow(Project.NameKey project) {
+      this.project = project;
+    }
+  }
+
   public static class QueueInfo {
-    public final Map<URIish, FetchOne> pending;
+    public final Map<URIish, PendingFetch> pending;
     public final Map<URIish, FetchOne> inFlight;
+    public final Map<URIish, FetchOne> backfill;
 
-    public QueueInfo(Map<URIish, FetchOne> pending, Map<URIish, FetchOne> inFlight) {
+    public QueueInfo(
+        Map<URIish, PendingFetch> pending,
+        Map<URIish, FetchOne> inFlight,
+        Map<URIish, FetchOne> backfill) {
       this.pending = ImmutableMap.copyOf(pending);
       this.inFlight = ImmutableMap.copyOf(inFlight);
+      this.backfill = ImmutableMap.copyOf(backfill);
     }
   }
 
@@ -126,9 +203,17 @@ public class Source {
       GroupBackend groupBackend,
       ReplicationStateListeners stateLog,
       GroupIncludeCache groupIncludeCache,
-      DynamicItem<EventDispatcher> eventDispatcher) {
+      DynamicItem<EventDispatcher> eventDispatcher,
+      LocalRepositoryCreator repositoryCreator,
+      @GerritServerConfig Config gerritConfig,
+      FetchPartitioner partitioner,
+      FetchReplicationMetrics metrics) {
     config = cfg;
     this.eventDispatcher = eventDispatcher;
+    this.repositoryCreator = repositoryCreator;
+    instanceId = gerritConfig.getString("gerrit", null, "instanceId");
+    this.partitioner = partitioner;
+    this.metrics = metrics;
     gitManager = gitRepositoryManager;
     this.permissionBackend = permissionBackend;
     this.userProvider = userProvider;
@@ -165,7 +250,9 @@ public class Source {
                 install(new FactoryModuleBuilder().build(FetchOne.Factory.class));
               }
 
+              // Shared by the fetch operations, rather than allocated for each pending one.
               @Provides
+              @Singleton
               public PerThreadRequestScope.Scoper provideScoper(
                   final PerThreadRequestScope.Propagator propagator) {
                 final RequestContext requestContext =
@@ -185,6 +272,7 @@ public class Source {
             });
 
     opFactory = child.getInstance(FetchOne.Factory.class);
+    idGenerator = child.getInstance(IdGenerator.class);
     threadScoper = child.getInstance(PerThreadRequestScope.Scoper.class);
   }
 
@@ -201,23 +289,93 @@ public class Source {
     }
   }
 
+  /** @return the factory of the fetch operations of this source. */
+  @VisibleForTesting
+  FetchOne.Factory getOpFactory() {
+    return opFactory;
+  }
+
   public QueueInfo getQueueInfo() {
     synchronized (stateLock) {
-      return new QueueInfo(pending, inFlight);
+      return new QueueInfo(pending, inFlight, backfill);
+    }
+  }
+
+  /**
+   * Check whether a fetch of any of some projects is waiting to run or running.
+   *
+   * @param projects projects to look for.
+   * @return true if a fetch of any of the projects is pending, in flight, or waiting for room in
+   *     the pending fetches.
+   */
+  boolean isFetchingAny(Set<Project.NameKey> projects) {
+    synchronized (stateLock) {
+      for (Map<URIish, ? extends PendingFetch> ops : Arrays.asList(pending, inFlight, backfill)) {
+        for (PendingFetch op : ops.values()) {
+          if (projects.contains(op.getProjectNameKey())) {
+            return true;
+          }
+        }
+      }
+      for (Overflow o : overflow.values()) {
+        if (projects.contains(o.project)) {
+          return true;
+        }
+      }
+      return false;
     }
   }
 
   public void start(WorkQueue workQueue) {
     String poolName = "ReplicateFrom-" + config.getRemoteConfig().getName();
-    pool = workQueue.createQueue(config.getPoolThreads(), poolName);
+    if (config.useVirtualThreads()) {
+      dispatcher = VirtualThreadDispatcher.create(poolName, config.getMaxConcurrentFetches());
+      if (dispatcher == null) {
+        repLog.warn(
+            "Virtual threads are not supported by this JVM, {} falls back to {} threads",
+            poolName,
+            config.getPoolThreads());
+      }
+    }
+    if (dispatcher != null) {
+      // The queue only waits for the fetches to be due, they run on virtual threads.
+      pool = workQueue.createQueue(1, poolName);
+    } else {
+      pool = workQueue.createQueue(config.getPoolThreads(), poolName);
+    }
+    if (isInitialFetchStaged()) {
+      backfillPool = workQueue.createQueue(config.getBackfillThreads(), poolName + "-backfill");
+    }
+    long stallTimeout = config.getFetchStallTimeout();
+    if (stallTimeout > 0) {
+      // The watchdog runs on the default queue, so that it keeps running
+      // even when all the threads of the source are stalled.
+      long period = Math.max(1, Math.min(60, stallTimeout / 4));
+      watchdog =
+          workQueue
+              .getDefaultQueue()
+              .scheduleAtFixedRate(new FetchWatchdog(this), period, period, TimeUnit.SECONDS);
+    }
   }
 
   public int shutdown() {
+    if (watchdog != null) {
+      watchdog.cancel(false);
+      watchdog = null;
+    }
     int cnt = 0;
     if (pool != null) {
       cnt = pool.shutdownNow().size();
       pool = null;
     }
+    if (dispatcher != null) {
+      cnt += dispatcher.shutdown();
+      dispatcher = null;
+    }
+    if (backfillPool != null) {
+      cnt += backfillPool.shutdownNow().size();
+      backfillPool = null;
+    }
     return cnt;
   }
 
@@ -257,6 +415,10 @@ public class Source {
                     return false;
                   }
                   if (projectState == null) {
+                    if (config.createMissingRepositories()) {
+                      // The permissions are fetched from the source along with the project.
+                      return true;
+                    }
                     throw new NoSuchProjectException(project);
                   }
                   if (!projectState.statePermitsRead()) {
@@ -304,6 +466,9 @@ public class Source {
                     return false;
                   }
                   if (projectState == null) {
+                    if (config.createMissingRepositories()) {
+                      return true;
+                    }
                     throw new NoSuchProjectException(project);
                   }
                   return shouldReplicate(projectState, userProvider.get());
@@ -325,13 +490,172 @@ public class Source {
 
   void schedule(
       Project.NameKey project, String ref, URIish uri, ReplicationState state, boolean now) {
-    repLog.info("scheduling replication {}:{} => {}", uri, ref, project);
-    if (!shouldReplicate(project, ref, state)) {
+    schedule(project, ref, uri, state, now, null);
+  }
+
+  /**
+   * Schedule the replication of a ref updated on a node of a multi-primary setup.
+   *
+   * @param origin instance id of the node where the ref has been updated, null if unknown. Nothing
+   *     is scheduled when it is the id of this instance, as the update is already here.
+   */
+  void schedule(
+      Project.NameKey project,
+      String ref,
+      URIish uri,
+      ReplicationState state,
+      boolean now,
+      @Nullable String origin) {
+    if (isSkipped(project, ref, origin)) {
       return;
     }
+    schedule(project, ref, uri, state, now, false, null);
+  }
+
+  /**
+   * Schedule the replication of a project from the best of the mirrors configured as URLs of the
+   * source.
+   *
+   * <p>The mirrors are ranked by their recent latencies and errors. When hedging is enabled, a
+   * second fetch from the next best mirror is started if the first one has not completed within the
+   * configured percentile of the recent latencies of its mirror.
+   *
+   * @param project project to replicate.
+   * @param ref ref to replicate.
+   * @param urlMatch filter of the mirrors to consider.
+   * @param state replication state notified of the replication.
+   * @param now true to start the replication without delay.
+   * @param origin instance id of the node where the ref has been updated, null if unknown.
+   */
+  void scheduleFromMirrors(
+      Project.NameKey project,
+      String ref,
+      String urlMatch,
+      ReplicationState state,
+      boolean now,
+      @Nullable String origin) {
+    if (isSkipped(project, ref, origin)) {
+      return;
+    }
+    Map<URIish, String> mirrors = new LinkedHashMap<>();
+    Map<String, URIish> uriByMirror = new HashMap<>();
+    for (URIish mirrorUri : config.getRemoteConfig().getURIs()) {
+      if (matches(mirrorUri, urlMatch)) {
+        URIish uri = getURI(mirrorUri, project);
+        if (uri != null) {
+          mirrors.put(uri, mirrorUri.toString());
+          uriByMirror.put(mirrorUri.toString(), uri);
+        }
+      }
+    }
+    if (mirrors.isEmpty()) {
+      return;
+    }
+
+    List<URIish> ranked = new ArrayList<>(mirrors.size());
+    for (String mirror : mirrorStats.rank(mirrors.values())) {
+      ranked.add(uriByMirror.get(mirror));
+    }
+    URIish uri = ranked.get(0);
+    synchronized (stateLock) {
+      // Join the replication already pending from any of the mirrors.
+      for (URIish u : ranked) {
+        if (pending.containsKey(u)) {
+          uri = u;
+          break;
+        }
+      }
+    }
+
+    URIish hedgeURI = null;
+    OptionalLong hedgeThreshold = OptionalLong.empty();
+    if (config.getHedgeFetchPercentile() > 0) {
+      for (URIish u : ranked) {
+        if (!u.equals(uri)) {
+          hedgeURI = u;
+          hedgeThreshold =
+              mirrorStats.latencyPercentile(mirrors.get(uri), config.getHedgeFetchPercentile());
+          break;
+        }
+      }
+    }
+
+    MirrorFetch mirrorFetch =
+        new MirrorFetch(mirrors, hedgeThreshold.isPresent() ? hedgeURI : null);
+    PendingFetch e = schedule(project, ref, uri, state, now, false, mirrorFetch);
+    if (e != null && e.getMirrorFetch() == mirrorFetch && mirrorFetch.getHedgeURI() != null) {
+      long hedgeDelay =
+          TimeUnit.SECONDS.toMillis(now ? 0 : config.getDelay()) + hedgeThreshold.getAsLong();
+      synchronized (stateLock) {
+        FetchOne hedge = opFactory.create(project, mirrorFetch.getHedgeURI());
+        hedge.setMirrorFetch(mirrorFetch);
+        hedge.setHedge();
+        mirrorFetch.setHedge(hedge);
+        submit(hedge, hedgeDelay, TimeUnit.MILLISECONDS);
+        repLog.info("scheduled {} => {} to run after {}ms", hedge, project, hedgeDelay);
+      }
+    }
+  }
+
+  /**
+   * Schedule the local deletion of a ref that has been removed from the source.
+   *
+   * <p>The deletion does not require any fetch from the source, unless other refs are scheduled for
+   * replication from the same URI.
+   *
+   * @param project project of the ref.
+   * @param ref name of the deleted ref on the source.
+   * @param uri URI of the source.
+   * @param state replication state notified of the deletion.
+   */
+  void scheduleDeletion(Project.NameKey project, String ref, URIish uri, ReplicationState state) {
+    scheduleDeletion(project, ref, uri, state, false, null);
+  }
+
+  /**
+   * Schedule the local deletion of a ref removed from the source on a node of a multi-primary
+   * setup.
+   *
+   * @param origin instance id of the node where the ref has been deleted, null if unknown. Nothing
+   *     is scheduled when it is the id of this instance, as the ref is already deleted here.
+   */
+  void scheduleDeletion(
+      Project.NameKey project,
+      String ref,
+      URIish uri,
+      ReplicationState state,
+      boolean now,
+      @Nullable String origin) {
+    if (isSkipped(project, ref, origin)) {
+      return;
+    }
+    schedule(project, ref, uri, state, now, true, null);
+  }
+
+  private PendingFetch schedule(
+      Project.NameKey project,
+      String ref,
+      URIish uri,
+      ReplicationState state,
+      boolean now,
+      boolean deleted,
+      MirrorFetch mirrorFetch) {
+    repLog.info(
+        "scheduling {} {}:{} => {}", deleted ? "deletion" : "replication", uri, ref, project);
+    if (!FetchOne.ALL_REFS.equals(ref) && !config.getRefPatternMatcher().matches(ref)) {
+      repLog.info(
+          "Skipping replication of {}:{} from {}, excluded by its ref patterns",
+          project,
+          ref,
+          config.getRemoteConfig().getName());
+      return null;
+    }
+    if (!shouldReplicate(project, ref, state)) {
+      return null;
+    }
 
     if (!config.replicatePermissions()) {
-      FetchOne e;
+      PendingFetch e;
       synchronized (stateLock) {
         e = pending.get(uri);
       }
@@ -342,45 +666,513 @@ public class Source {
             if (head != null
                 && head.isSymbolic()
                 && RefNames.REFS_CONFIG.equals(head.getLeaf().getName())) {
-              return;
+              return null;
             }
           } catch (IOException err) {
             stateLog.error(String.format("cannot check type of project %s", project), err, state);
-            return;
+            return null;
+          }
+        } catch (RepositoryNotFoundException err) {
+          if (!config.createMissingRepositories()) {
+            stateLog.error(String.format("source project %s not available", project), err, state);
+            return null;
           }
         } catch (IOException err) {
           stateLog.error(String.format("source project %s not available", project), err, state);
-          return;
+          return null;
         }
       }
     }
 
     synchronized (stateLock) {
-      FetchOne e = pending.get(uri);
+      if (!FetchOne.ALL_REFS.equals(ref)) {
+        // The source has newer refs than the last fetch of all of them.
+        freshFetches.remove(uri);
+      }
+      PendingFetch e = pending.get(uri);
+      if (e == null && mirrorFetch == null && !deleted) {
+        FetchOne running = inFlight.get(uri);
+        if (running != null && running.subscribe(ref, state)) {
+          state.increaseFetchTaskCount(project.get(), ref);
+          repLog.info("{}:{} => {} subscribed to the in-flight {}", uri, ref, project, running);
+          return running;
+        }
+      }
+      if (e == null && isPendingFull()) {
+        e = awaitPendingRoom(project, uri);
+        if (e == null && isPendingFull()) {
+          collapse(project, ref, uri, state, deleted);
+          return null;
+        }
+      }
       if (e == null) {
-        e = opFactory.create(project, uri);
-        addRef(e, ref);
+        if (mirrorFetch != null) {
+          FetchOne primary = opFactory.create(project, uri);
+          primary.setMirrorFetch(mirrorFetch);
+          mirrorFetch.setPrimary(primary);
+          e = primary;
+        } else {
+          e = newPendingFetch(project, uri);
+        }
+        Overflow o = overflow.remove(uri);
+        if (o != null) {
+          // Also fetch the refs of the project that overflowed before.
+          addOverflow(e, o);
+        }
+        addRef(e, ref, deleted);
         e.addState(ref, state);
-        pool.schedule(e, now ? 0 : config.getDelay(), TimeUnit.SECONDS);
+        scheduleOrPark(e, now ? 0 : config.getDelay(), TimeUnit.SECONDS);
         pending.put(uri, e);
-      } else if (!e.getRefs().contains(ref)) {
-        addRef(e, ref);
+      } else {
+        if (!(deleted ? e.getDeletedRefs() : e.getRefs()).contains(ref)) {
+          addRef(e, ref, deleted);
+        }
+        if (e.getStates().containsEntry(ref, state)) {
+          // Already counted, and notified once.
+          return e;
+        }
         e.addState(ref, state);
       }
       state.increaseFetchTaskCount(project.get(), ref);
       repLog.info("scheduled {}:{} => {} to run after {}s", e, ref, project, config.getDelay());
+      return e;
     }
   }
 
-  void fetchWasCanceled(FetchOne fetchOp) {
+  /**
+   * Answer the replication of all the refs of a project with the fetch of all of them completed
+   * within the freshness TTL of the source, or with the one in flight, rather than queuing another
+   * fetch.
+   *
+   * @param project project to replicate.
+   * @param uri URI of the project on the source.
+   * @param state replication state notified of the outcome of the reused fetch.
+   * @param origin instance id of the node where the project has been updated, if known.
+   * @return true if the fetch has been reused, false if the refs still need to be scheduled.
+   */
+  boolean reuseFreshFetch(
+      Project.NameKey project, URIish uri, ReplicationState state, @Nullable String origin) {
+    long ttl = config.getFetchFreshnessTtl();
+    if (ttl <= 0 || (origin != null && origin.equals(instanceId))) {
+      // The updates originated from this instance are skipped when scheduled.
+      return false;
+    }
+
+    RefUpdate.Result result;
+    synchronized (stateLock) {
+      FreshFetch fresh = freshFetches.get(uri);
+      if (fresh != null && System.nanoTime() - fresh.fetchedAt < TimeUnit.SECONDS.toNanos(ttl)) {
+        result = fresh.result;
+      } else {
+        FetchOne op = inFlight.get(uri);
+        if (op == null || op.getMirrorFetch() != null || !op.isFetchAllRefs()) {
+          return false;
+        }
+        joiners.put(op, state);
+        state.increaseFetchTaskCount(project.get(), FetchOne.ALL_REFS);
+        repLog.info("{}:{} => {} joined the in-flight {}", uri, FetchOne.ALL_REFS, project, op);
+        return true;
+      }
+      state.increaseFetchTaskCount(project.get(), FetchOne.ALL_REFS);
+    }
+    repLog.info(
+        "{}:{} => {} fetched less than {}s ago, reusing its result",
+        uri,
+        FetchOne.ALL_REFS,
+        project,
+        ttl);
+    state.notifyRefReplicated(
+        project.get(), FetchOne.ALL_REFS, uri, ReplicationState.RefFetchResult.SUCCEEDED, result);
+    return true;
+  }
+
+  private void recordFreshFetch(URIish uri, RefUpdate.Result result) {
+    long now = System.nanoTime();
+    long ttlNanos = TimeUnit.SECONDS.toNanos(config.getFetchFreshnessTtl());
+    freshFetches.remove(uri);
+    freshFetches.put(uri, new FreshFetch(now, result));
+    // The eldest fetches are the first to expire.
+    Iterator<FreshFetch> it = freshFetches.values().iterator();
+    while (it.hasNext() && now - it.next().fetchedAt >= ttlNanos) {
+      it.remove();
+    }
+  }
+
+  /**
+   * Run a task of the default work queue, so that the fetches it schedules are collapsed instead of
+   * waiting for room in pending when the pending fetches are full.
+   *
+   * <p>The default work queue also runs the watchdog, which makes room in pending by aborting the
+   * stalled fetches: its threads must never wait for it.
+   *
+   * @param task task scheduling fetches.
+   */
+  static void runWithoutBlocking(Runnable task) {
+    boolean blocking = !withoutBlocking.get();
+    withoutBlocking.set(true);
+    try {
+      task.run();
+    } finally {
+      if (blocking) {
+        withoutBlocking.remove();
+      }
+    }
+  }
+
+  private boolean isPendingFull() {
+    return config.getMaxPendingFetches() > 0 && pending.size() >= config.getMaxPendingFetches();
+  }
+
+  /**
+   * Wait until there is room in pending for a new fetch, when the source applies back-pressure to
+   * the callers scheduling fetches on overflow, for at most {@code
+   * remote.NAME.pendingOverflowTimeout}.
+   *
+   * @return the fetch pending from the URI in the meantime, if any.
+   */
+  @Nullable
+  private PendingFetch awaitPendingRoom(Project.NameKey project, URIish uri) {
+    if (config.getPendingOverflow() != SourceConfiguration.PendingOverflow.BLOCK
+        || withoutBlocking.get()) {
+      return null;
+    }
+    metrics.recordPendingOverflow(getRemoteConfigName());
+    repLog.info("Pending fetches from {} are full, waiting to schedule {}", uri, project);
+    long deadline =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getPendingOverflowTimeout());
+    while (isPendingFull() && !pending.containsKey(uri)) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        repLog.warn(
+            "No room in the pending fetches from {} after {}ms, collapsing the fetch of {}",
+            uri,
+            config.getPendingOverflowTimeout(),
+            project);
+        break;
+      }
+      try {
+        stateLock.wait(remaining);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return pending.get(uri);
+  }
+
+  /**
+   * Record a fetch to schedule once there is room in pending, with the state of the caller.
+   *
+   * <p>The refs are collapsed into all the refs of the project, while the deleted refs are kept
+   * apart: they are deleted by the fetch once scheduled, without requiring all the refs if no other
+   * ref overflowed.
+   */
+  private void collapse(
+      Project.NameKey project, String ref, URIish uri, ReplicationState state, boolean deleted) {
+    metrics.recordPendingOverflow(getRemoteConfigName());
+    Overflow o = overflow.get(uri);
+    if (o == null) {
+      o = new Overflow(project);
+      overflow.put(uri, o);
+      repLog.info(
+          "Pending fetches from {} are full, {}:{} will be replicated once there is room",
+          uri,
+          project,
+          ref);
+    }
+    if (deleted) {
+      o.deletedRefs.add(ref);
+    } else {
+      o.fetchAllRefs = true;
+      o.deletedRefs.remove(ref);
+    }
+    if (!o.states.containsEntry(ref, state)) {
+      o.states.put(ref, state);
+      state.increaseFetchTaskCount(project.get(), ref);
+    }
+  }
+
+  /** Add the refs and the states of a fetch that overflowed to a fetch operation. */
+  private void addOverflow(PendingFetch e, Overflow o) {
+    if (o.fetchAllRefs) {
+      addRef(e, FetchOne.ALL_REFS, false);
+    }
+    for (String ref : o.deletedRefs) {
+      addRef(e, ref, true);
+    }
+    e.addStates(o.states);
+  }
+
+  /**
+   * Remove a fetch operation from pending, and make room for the fetches that overflowed and for
+   * the callers waiting for it.
+   *
+   * @return true if the operation was pending.
+   */
+  private boolean removePending(URIish uri, PendingFetch op) {
+    if (!pending.remove(uri, op)) {
+      return false;
+    }
+    if (config.getMaxPendingFetches() > 0) {
+      drainOverflow();
+      stateLock.notifyAll();
+    }
+    return true;
+  }
+
+  /** Move the fetches that overflowed to pending, as long as there is room for them. */
+  private void drainOverflow() {
+    Iterator<Map.Entry<URIish, Overflow>> it = overflow.entrySet().iterator();
+    while (it.hasNext() && !isPendingFull()) {
+      Map.Entry<URIish, Overflow> entry = it.next();
+      it.remove();
+      URIish uri = entry.getKey();
+      Overflow o = entry.getValue();
+      PendingFetch e = pending.get(uri);
+      if (e == null) {
+        e = newPendingFetch(o.project, uri);
+        scheduleOrPark(e, config.getDelay(), TimeUnit.SECONDS);
+        pending.put(uri, e);
+      }
+      addOverflow(e, o);
+      repLog.info("scheduled {} => {} after overflow", e, o.project);
+    }
+  }
+
+  /** @return the number of projects waiting for room in pending. */
+  int getOverflowSize() {
+    synchronized (stateLock) {
+      return overflow.size();
+    }
+  }
+
+  /**
+   * Check whether the replication of a ref is left to another instance, logging why it is skipped.
+   */
+  private boolean isSkipped(Project.NameKey project, String ref, @Nullable String origin) {
+    return isOwnUpdate(project, ref, origin) || !isOwnedProject(project, ref);
+  }
+
+  /**
+   * Check whether a ref update originated from this instance, in which case fetching it back from a
+   * peer would only replay it and could collide with the local updates of the ref.
+   */
+  private boolean isOwnUpdate(Project.NameKey project, String ref, @Nullable String origin) {
+    if (origin == null || !origin.equals(instanceId)) {
+      return false;
+    }
+    repLog.info(
+        "Skipping replication of {}:{} from {}, originated from this instance",
+        project,
+        ref,
+        config.getRemoteConfig().getName());
+    return true;
+  }
+
+  /**
+   * Check whether this node fetches the project, when the fetches are partitioned among the nodes
+   * sharing the repositories.
+   */
+  private boolean isOwnedProject(Project.NameKey project, String ref) {
+    if (partitioner.owns(project)) {
+      return true;
+    }
+    repLog.info(
+        "Skipping replication of {}:{} from {}, fetched by {}",
+        project,
+        ref,
+        config.getRemoteConfig().getName(),
+        partitioner.getOwner(project));
+    return false;
+  }
+
+  /**
+   * Take the lease of a fetch, so that no other node sharing the repositories runs it at once.
+   *
+   * @return the lease, to close once the fetch is completed, or null if another node holds it.
+   */
+  @Nullable
+  FetchPartitioner.Lease tryLease(FetchOne fetchOp, Repository git) throws IOException {
+    return partitioner.tryLease(fetchOp.getProjectNameKey(), fetchOp.getURI(), git);
+  }
+
+  void fetchWasCanceled(PendingFetch fetchOp) {
     synchronized (stateLock) {
       URIish uri = fetchOp.getURI();
-      pending.remove(uri);
+      if (fetchOp.isBackfill()) {
+        backfill.remove(uri, fetchOp);
+      } else {
+        removePending(uri, fetchOp);
+        unpark(fetchOp);
+      }
+      failJoiners(fetchOp);
+    }
+  }
+
+  /**
+   * Schedule the background fetch of all the refs after a staged initial fetch.
+   *
+   * <p>The backfill runs on its own thread pool so that it does not starve the incremental fetches
+   * of the source. The states waiting for the whole repository are notified only once the backfill
+   * is completed, as well as the states of the refs not updated by the initial fetch.
+   *
+   * @param project project to backfill.
+   * @param uri URI to fetch from.
+   * @param states states waiting for all the refs of the project, or for the refs not updated yet.
+   */
+  void scheduleBackfill(
+      Project.NameKey project, URIish uri, ListMultimap<String, ReplicationState> states) {
+    synchronized (stateLock) {
+      FetchOne e = backfill.get(uri);
+      if (e == null) {
+        e = opFactory.create(project, uri);
+        e.setBackfill();
+        e.addRef(FetchOne.ALL_REFS);
+        backfillPool.schedule(e, 0, TimeUnit.SECONDS);
+        backfill.put(uri, e);
+      }
+      e.addStates(states);
+      repLog.info("scheduled backfill {} => {}", e, project);
     }
   }
 
-  private void addRef(FetchOne e, String ref) {
-    e.addRef(ref);
+  private void rescheduleBackfill(FetchOne fetchOp, RetryReason reason) {
+    URIish uri = fetchOp.getURI();
+    FetchOne pendingFetchOp = backfill.get(uri);
+    if (pendingFetchOp != null) {
+      // Another backfill of the same URI is already queued: it is going to
+      // fetch all the refs anyway and only needs to take over the states.
+      pendingFetchOp.addStates(fetchOp.getStates());
+      fetchOp.removeStates();
+      moveJoiners(fetchOp, pendingFetchOp);
+      return;
+    }
+
+    backfill.put(uri, fetchOp);
+    if (reason == RetryReason.COLLISION) {
+      backfillPool.schedule(fetchOp, config.getRescheduleDelay(), TimeUnit.SECONDS);
+    } else if (fetchOp.setToRetry()) {
+      backfillPool.schedule(fetchOp, config.getRetryDelay(), TimeUnit.MINUTES);
+    } else {
+      fetchOp.canceledByReplication();
+      backfill.remove(uri);
+      stateLog.error(
+          "Backfill from " + uri + " cancelled after maximum number of retries",
+          fetchOp.getStatesAsArray());
+      failJoiners(fetchOp);
+    }
+  }
+
+  /**
+   * Queue the creation of the missing local repository of a fetch operation.
+   *
+   * <p>The fetch operation stays pending, without being counted as a retry, and is scheduled as
+   * soon as the repository has been created and the operation has finished its current run. It is
+   * only retried after {@code retryDelay} when the repository cannot be created, or is still
+   * missing once created. When there is no room left in pending, its refs and states are recorded
+   * as overflow instead, and fetched by a new operation once there is room.
+   *
+   * @param fetchOp the fetch operation that could not find its local repository.
+   * @return true if the creation has been queued, false if the source does not create missing
+   *     repositories.
+   */
+  boolean createMissingRepository(FetchOne fetchOp) {
+    if (!config.createMissingRepositories() || fetchOp.isHedge()) {
+      return false;
+    }
+    if (!fetchOp.setWaitingForRepository()) {
+      reschedule(fetchOp, RetryReason.REPOSITORY_MISSING);
+      return true;
+    }
+
+    URIish uri = fetchOp.getURI();
+    ListenableFuture<Void> creation = repositoryCreator.enqueue(fetchOp.getProjectNameKey());
+    synchronized (stateLock) {
+      PendingFetch pendingFetchOp = pending.get(uri);
+      if (pendingFetchOp != null) {
+        // It would not find the repository either.
+        pendingFetchOp.canceledByReplication();
+        unpark(pendingFetchOp);
+        fetchOp.addRefs(pendingFetchOp.getRefs());
+        fetchOp.addDeletedRefs(pendingFetchOp.getDeletedRefs());
+        fetchOp.addStates(pendingFetchOp.getStates());
+        pendingFetchOp.removeStates();
+        moveJoiners(pendingFetchOp, fetchOp);
+      } else if (isPendingFull()) {
+        fetchOp.canceledByReplication();
+        overflow(fetchOp);
+        return true;
+      }
+      pending.put(uri, fetchOp);
+      // Only scheduled once finished, so that it never runs while still in flight.
+      repositoryCreations.put(fetchOp, creation);
+    }
+    return true;
+  }
+
+  /** Schedule a fetch operation pending for the creation of its repository, once created. */
+  private void scheduleOnceCreated(FetchOne fetchOp, ListenableFuture<Void> creation) {
+    URIish uri = fetchOp.getURI();
+    Futures.addCallback(
+        creation,
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            synchronized (stateLock) {
+              if (pending.get(uri) == fetchOp) {
+                scheduleOrPark(fetchOp, 0, TimeUnit.SECONDS);
+              }
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            synchronized (stateLock) {
+              if (pending.remove(uri, fetchOp)) {
+                reschedule(fetchOp, RetryReason.REPOSITORY_MISSING);
+              }
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Record the refs and the states of a fetch operation, which cannot stay pending, to fetch them
+   * once there is room in pending.
+   */
+  private void overflow(FetchOne fetchOp) {
+    metrics.recordPendingOverflow(getRemoteConfigName());
+    URIish uri = fetchOp.getURI();
+    Overflow o = overflow.get(uri);
+    if (o == null) {
+      o = new Overflow(fetchOp.getProjectNameKey());
+      overflow.put(uri, o);
+    }
+    if (!fetchOp.getRefs().isEmpty()) {
+      o.fetchAllRefs = true;
+    }
+    o.deletedRefs.addAll(fetchOp.getDeletedRefs());
+    o.states.putAll(fetchOp.getStates());
+    fetchOp.removeStates();
+    // The fetch of all the refs completes the replication of the states waiting for it.
+    o.states.putAll(FetchOne.ALL_REFS, joiners.removeAll(fetchOp));
+    repLog.info(
+        "Pending fetches from {} are full, {} will be replicated once there is room",
+        uri,
+        fetchOp.getProjectNameKey());
+  }
+
+  boolean isCreateMissingRepositories() {
+    return config.createMissingRepositories();
+  }
+
+  private void addRef(PendingFetch e, String ref, boolean deleted) {
+    if (deleted) {
+      e.addDeletedRef(ref);
+    } else {
+      e.addRef(ref);
+    }
     postReplicationScheduledEvent(e, ref);
   }
 
@@ -407,8 +1199,18 @@ public class Source {
    */
   void reschedule(FetchOne fetchOp, RetryReason reason) {
     synchronized (stateLock) {
+      if (fetchOp.isHedge()) {
+        // The primary fetch is retried instead, if needed.
+        repLog.info("Hedge fetch {} is not retried", fetchOp);
+        return;
+      }
+      if (fetchOp.isBackfill()) {
+        rescheduleBackfill(fetchOp, reason);
+        return;
+      }
+
       URIish uri = fetchOp.getURI();
-      FetchOne pendingFetchOp = pending.get(uri);
+      PendingFetch pendingFetchOp = pending.get(uri);
 
       if (pendingFetchOp != null) {
         // There is one FetchOp instance already pending to same URI.
@@ -426,8 +1228,10 @@ public class Source {
           // here, find out replication to its URI is already pending
           // for retry (blocking).
           pendingFetchOp.addRefs(fetchOp.getRefs());
+          pendingFetchOp.addDeletedRefs(fetchOp.getDeletedRefs());
           pendingFetchOp.addStates(fetchOp.getStates());
           fetchOp.removeStates();
+          moveJoiners(fetchOp, pendingFetchOp);
 
         } else {
           // The one pending is one that is NOT retrying, it was just
@@ -443,10 +1247,13 @@ public class Source {
           // pending list and it will not execute its run implementation.
           pendingFetchOp.canceledByReplication();
           pending.remove(uri);
+          unpark(pendingFetchOp);
 
           fetchOp.addRefs(pendingFetchOp.getRefs());
+          fetchOp.addDeletedRefs(pendingFetchOp.getDeletedRefs());
           fetchOp.addStates(pendingFetchOp.getStates());
           pendingFetchOp.removeStates();
+          moveJoiners(pendingFetchOp, fetchOp);
         }
       }
 
@@ -454,7 +1261,7 @@ public class Source {
         pending.put(uri, fetchOp);
         switch (reason) {
           case COLLISION:
-            pool.schedule(fetchOp, config.getRescheduleDelay(), TimeUnit.SECONDS);
+            scheduleOrPark(fetchOp, config.getRescheduleDelay(), TimeUnit.SECONDS);
             break;
           case TRANSPORT_ERROR:
           case REPOSITORY_MISSING:
@@ -466,13 +1273,14 @@ public class Source {
             postReplicationFailedEvent(fetchOp, trackingRefUpdate);
             if (fetchOp.setToRetry()) {
               postReplicationScheduledEvent(fetchOp);
-              pool.schedule(fetchOp, config.getRetryDelay(), TimeUnit.MINUTES);
+              scheduleOrPark(fetchOp, config.getRetryDelay(), TimeUnit.MINUTES);
             } else {
               fetchOp.canceledByReplication();
-              pending.remove(uri);
+              removePending(uri, fetchOp);
               stateLog.error(
                   "Fetch from " + fetchOp.getURI() + " cancelled after maximum number of retries",
                   fetchOp.getStatesAsArray());
+              failJoiners(fetchOp);
             }
             break;
         }
@@ -480,12 +1288,100 @@ public class Source {
     }
   }
 
+  /**
+   * Defer a fetch into a fork until the fetches of the projects it borrows the objects from are
+   * completed, so that it only receives the objects that the fork does not share with them.
+   *
+   * @param fetchOp fetch into a fork.
+   * @param parents projects whose object databases are alternates of the fork.
+   * @return true if the fetch has been rescheduled.
+   */
+  boolean deferAfterParents(FetchOne fetchOp, List<Project.NameKey> parents) {
+    if (!config.fetchForksAfterParents() || parents.isEmpty() || fetchOp.isHedge()) {
+      return false;
+    }
+    synchronized (stateLock) {
+      for (Project.NameKey parent : parents) {
+        for (URIish uri : getURIs(parent, null)) {
+          if (pending.containsKey(uri) || inFlight.containsKey(uri) || backfill.containsKey(uri)) {
+            if (fetchOp.getDeferrals() >= config.getMaxForkDeferrals()) {
+              // A busy parent is almost always pending again: the fork would never be fetched.
+              repLog.info(
+                  "Replicating from {} without waiting anymore for the replication of {} after {}"
+                      + " deferrals",
+                  fetchOp.getURI(),
+                  uri,
+                  fetchOp.getDeferrals());
+              return false;
+            }
+            repLog.info(
+                "Rescheduling replication from {} after the replication of {} it shares objects with",
+                fetchOp.getURI(),
+                uri);
+            fetchOp.recordDeferral();
+            reschedule(fetchOp, RetryReason.COLLISION);
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private PendingFetch newPendingFetch(Project.NameKey project, URIish uri) {
+    return new PendingFetch(this, project, uri, idGenerator.next());
+  }
+
+  /**
+   * Turn a pending fetch that is due into the fetch operation running it.
+   *
+   * <p>The fetch operation replaces the pending fetch wherever the source refers to it, so that it
+   * is run, merged into and cancelled as the pending fetch would have been.
+   *
+   * @param e pending fetch that is due, returned as is when already a fetch operation.
+   * @return the fetch operation to run.
+   */
+  FetchOne materialize(PendingFetch e) {
+    if (e instanceof FetchOne) {
+      return (FetchOne) e;
+    }
+    FetchOne op = opFactory.create(e.getProjectNameKey(), e.getURI());
+    synchronized (stateLock) {
+      op.takeOver(e);
+      e.removeStates();
+      URIish uri = e.getURI();
+      if (pending.get(uri) == e) {
+        pending.put(uri, op);
+      }
+      moveJoiners(e, op);
+      CircuitBreaker breaker = getCircuitBreaker(uri);
+      if (breaker != null) {
+        breaker.replaceProbe(e, op);
+      }
+    }
+    return op;
+  }
+
+  /** @return true if the fetch is waiting to run, for example after a collision. */
+  boolean isPending(FetchOne op) {
+    synchronized (stateLock) {
+      return pending.get(op.getURI()) == op || backfill.get(op.getURI()) == op;
+    }
+  }
+
   boolean requestRunway(FetchOne op) {
     synchronized (stateLock) {
       if (op.wasCanceled()) {
         return false;
       }
-      pending.remove(op.getURI());
+      if (op.isHedge()) {
+        return requestHedgeRunway(op);
+      }
+      if (op.isBackfill()) {
+        backfill.remove(op.getURI());
+      } else if (pending.containsKey(op.getURI())) {
+        removePending(op.getURI(), pending.get(op.getURI()));
+      }
       if (inFlight.containsKey(op.getURI())) {
         return false;
       }
@@ -494,9 +1390,345 @@ public class Source {
     return true;
   }
 
+  /**
+   * Start a hedge fetch, taking the refs to fetch from its primary fetch.
+   *
+   * <p>A hedge fetch is never rescheduled: it is dropped when its mirror fetch is already
+   * completed, when the primary fetch also deletes refs, which a hedge fetch cannot replay, or when
+   * colliding with an in-flight fetch.
+   */
+  private boolean requestHedgeRunway(FetchOne hedge) {
+    MirrorFetch mirrorFetch = hedge.getMirrorFetch();
+    FetchOne primary = mirrorFetch.getPrimary();
+    if (mirrorFetch.isCompleted()
+        || !primary.getDeletedRefs().isEmpty()
+        || inFlight.containsKey(hedge.getURI())) {
+      hedge.canceledByReplication();
+      return false;
+    }
+    hedge.addRefs(primary.getRefs());
+    inFlight.put(hedge.getURI(), hedge);
+    repLog.info("Hedging {} with {}", primary, hedge);
+    return true;
+  }
+
+  /**
+   * Complete the mirror fetch of a successful fetch operation, if not completed already.
+   *
+   * <p>The other fetch of the mirror fetch is cancelled, or aborted if running. When the hedge
+   * fetch wins, its outcome is replayed to the replication states of the primary fetch.
+   *
+   * @param op successful fetch operation.
+   * @param latencyMsecs duration of the fetch.
+   * @param outcome outcome of the fetch.
+   */
+  void completeMirrorFetch(FetchOne op, long latencyMsecs, MirrorFetch.Outcome outcome) {
+    MirrorFetch mirrorFetch = op.getMirrorFetch();
+    mirrorStats.recordSuccess(mirrorFetch.getMirror(op.getURI()), latencyMsecs);
+    synchronized (stateLock) {
+      if (mirrorFetch.isCompleted()) {
+        return;
+      }
+      FetchOne primary = mirrorFetch.getPrimary();
+      FetchOne hedge = mirrorFetch.getHedge();
+      if (op == primary) {
+        mirrorFetch.complete(op, outcome);
+        if (hedge != null) {
+          hedge.canceledByReplication();
+          hedge.abort();
+        }
+        return;
+      }
+
+      // Refs added to the primary fetch after the hedge fetch started have
+      // not been fetched: the primary fetch needs to run anyway.
+      boolean replayable =
+          op.getRefs().containsAll(primary.getRefs()) && primary.getDeletedRefs().isEmpty();
+      mirrorFetch.complete(op, replayable ? outcome : null);
+      if (!replayable) {
+        return;
+      }
+      URIish primaryUri = primary.getURI();
+      if (removePending(primaryUri, primary)) {
+        primary.canceledByReplication();
+        primary.replayMirrorFetch(outcome);
+      } else if (inFlight.get(primaryUri) == primary) {
+        primary.abort();
+      }
+    }
+  }
+
+  /**
+   * Get the outcome of the mirror fetch that a fetch operation has lost.
+   *
+   * @param op fetch operation.
+   * @return the outcome to replay to the replication states of the fetch operation, null if it has
+   *     not lost its mirror fetch.
+   */
+  MirrorFetch.Outcome getMirrorFetchOutcome(FetchOne op) {
+    synchronized (stateLock) {
+      return op.getMirrorFetch().getOutcomeFor(op);
+    }
+  }
+
+  void recordMirrorAborted(FetchOne op, long elapsedMsecs) {
+    mirrorStats.recordAborted(op.getMirrorFetch().getMirror(op.getURI()), elapsedMsecs);
+  }
+
+  void recordMirrorFailure(FetchOne op) {
+    mirrorStats.recordFailure(op.getMirrorFetch().getMirror(op.getURI()));
+  }
+
   void notifyFinished(FetchOne op) {
+    URIish uri = op.getURI();
+    RefUpdate.Result result = op.getAllRefsResult();
+    List<ReplicationState> joined;
+    ListenableFuture<Void> creation;
+    synchronized (stateLock) {
+      boolean finished = inFlight.remove(uri, op);
+      creation = repositoryCreations.remove(op);
+      CircuitBreaker breaker = getCircuitBreaker(uri);
+      if (breaker != null && breaker.releaseProbe(op)) {
+        // The probe did not reach the source: try with another one.
+        probeCircuitBreaker(breaker);
+      }
+      if (result != null && config.getFetchFreshnessTtl() > 0) {
+        recordFreshFetch(uri, result);
+      }
+      if (finished) {
+        resubscribe(op, op.closeSubscriptions());
+      }
+      PendingFetch next = null;
+      if (result == null && joiners.containsKey(op)) {
+        // Not all the refs have been fetched: the next fetch of all of them completes the
+        // replication, if any, including this one when retried.
+        next = backfill.containsKey(uri) ? backfill.get(uri) : pending.get(uri);
+        if (next != null
+            && (!next.isFetchAllRefs() || next.getMirrorFetch() != null || next.wasCanceled())) {
+          next = null;
+        }
+      }
+      if (next != null) {
+        moveJoiners(op, next);
+        joined = Collections.emptyList();
+      } else {
+        joined = joiners.removeAll(op);
+      }
+    }
+    notifyJoiners(op, joined, result);
+    if (creation != null) {
+      scheduleOnceCreated(op, creation);
+    }
+  }
+
+  /** Move the states waiting for a fetch of all the refs to the fetch replacing it. */
+  private void moveJoiners(PendingFetch from, PendingFetch to) {
+    if (from != to && joiners.containsKey(from)) {
+      joiners.putAll(to, joiners.removeAll(from));
+    }
+  }
+
+  /** Notify the states waiting for a fetch of all the refs that it is not going to complete. */
+  private void failJoiners(PendingFetch op) {
+    notifyJoiners(op, joiners.removeAll(op), null);
+  }
+
+  private static void notifyJoiners(
+      PendingFetch op, List<ReplicationState> joined, @Nullable RefUpdate.Result result) {
+    for (ReplicationState state : joined) {
+      state.notifyRefReplicated(
+          op.getProjectNameKey().get(),
+          FetchOne.ALL_REFS,
+          op.getURI(),
+          result != null
+              ? ReplicationState.RefFetchResult.SUCCEEDED
+              : ReplicationState.RefFetchResult.FAILED,
+          result != null ? result : RefUpdate.Result.REJECTED_OTHER_REASON);
+    }
+  }
+
+  /**
+   * Move the states subscribed to a finished fetch operation, which never read the refs of the
+   * source, to the pending fetch of its URI.
+   */
+  private void resubscribe(FetchOne op, ListMultimap<String, ReplicationState> states) {
+    if (states.isEmpty()) {
+      return;
+    }
+    URIish uri = op.getURI();
+    PendingFetch e = pending.get(uri);
+    if (e == null) {
+      e = newPendingFetch(op.getProjectNameKey(), uri);
+      scheduleOrPark(e, config.getDelay(), TimeUnit.SECONDS);
+      pending.put(uri, e);
+    }
+    for (String ref : states.keySet()) {
+      addRef(e, ref, false);
+    }
+    for (Map.Entry<String, ReplicationState> entry : states.entries()) {
+      e.addState(entry.getKey(), entry.getValue());
+    }
+    repLog.info("Subscriptions to {} moved to {}", op, e);
+  }
+
+  /**
+   * Get the circuit breaker of the host of a URI.
+   *
+   * <p>Breakers only exist for the hosts that failed since their last successful fetch: a host
+   * without a breaker is healthy and its fetches are never parked.
+   *
+   * @return the circuit breaker of the host, or null if it has not failed.
+   */
+  private CircuitBreaker getCircuitBreaker(URIish uri) {
+    return circuitBreakers.get(circuitBreakerHost(uri));
+  }
+
+  /**
+   * @return the host a URI fetches from, the same for all the local repositories of the source so
+   *     that they share one circuit breaker.
+   */
+  @VisibleForTesting
+  static String circuitBreakerHost(URIish uri) {
+    return uri.isRemote() ? resolveNodeName(uri) : "localhost";
+  }
+
+  /** Schedule a fetch operation, unless the circuit breaker of its host requires to park it. */
+  private void scheduleOrPark(PendingFetch op, long delay, TimeUnit unit) {
+    CircuitBreaker breaker = getCircuitBreaker(op.getURI());
+    if (breaker != null && !breaker.allowRequest(op)) {
+      breaker.park(op);
+      repLog.info("{} parked as the circuit breaker of {} is open", op, breaker.getHost());
+      return;
+    }
+    submit(op, delay, unit);
+  }
+
+  /** Submit a fetch operation to the work queue, to run on a virtual thread if enabled. */
+  private void submit(PendingFetch op, long delay, TimeUnit unit) {
+    VirtualThreadDispatcher d = dispatcher;
+    pool.schedule(d != null ? d.wrap(op) : op, delay, unit);
+  }
+
+  private void unpark(PendingFetch op) {
+    CircuitBreaker breaker = getCircuitBreaker(op.getURI());
+    if (breaker != null) {
+      breaker.unpark(op);
+    }
+  }
+
+  /**
+   * Record the transport failure of a fetch operation, opening the circuit breaker of its host
+   * after too many consecutive failures.
+   *
+   * @param op failed fetch operation.
+   */
+  void recordTransportFailure(FetchOne op) {
+    synchronized (stateLock) {
+      int threshold = config.getCircuitBreakerThreshold();
+      if (threshold <= 0) {
+        return;
+      }
+      CircuitBreaker breaker =
+          circuitBreakers.computeIfAbsent(
+              circuitBreakerHost(op.getURI()), host -> new CircuitBreaker(this, host, threshold));
+      if (breaker.recordFailure(op)) {
+        long probeInterval = config.getCircuitBreakerProbeInterval();
+        repLog.warn(
+            "Circuit breaker of {} opened, fetches from it are parked for {}s",
+            breaker.getHost(),
+            probeInterval);
+        pool.schedule(breaker, probeInterval, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Record the successful fetch of an operation, closing the circuit breaker of its host and
+   * releasing the fetches parked meanwhile.
+   *
+   * @param op successful fetch operation.
+   */
+  void recordTransportSuccess(FetchOne op) {
+    synchronized (stateLock) {
+      CircuitBreaker breaker = getCircuitBreaker(op.getURI());
+      if (breaker == null) {
+        return;
+      }
+      List<PendingFetch> released = breaker.recordSuccess();
+      circuitBreakers.remove(breaker.getHost());
+      if (!released.isEmpty()) {
+        repLog.info(
+            "Circuit breaker of {} closed, releasing {} parked fetches",
+            breaker.getHost(),
+            released.size());
+      }
+      for (PendingFetch parked : released) {
+        submit(parked, 0, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  void probeCircuitBreaker(CircuitBreaker breaker) {
+    synchronized (stateLock) {
+      if (breaker.getState() == CircuitBreaker.State.CLOSED) {
+        return;
+      }
+      PendingFetch probe = breaker.halfOpen();
+      repLog.info(
+          "Circuit breaker of {} half-open, probing with {}",
+          breaker.getHost(),
+          probe != null ? probe : "the next fetch");
+      if (probe != null) {
+        submit(probe, 0, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  Set<String> getCircuitBreakerHosts() {
     synchronized (stateLock) {
-      inFlight.remove(op.getURI());
+      return ImmutableSet.copyOf(circuitBreakers.keySet());
+    }
+  }
+
+  /** @return the circuit breakers of the hosts of this source that are not closed. */
+  List<CircuitBreaker> getOpenCircuitBreakers() {
+    synchronized (stateLock) {
+      List<CircuitBreaker> open = new ArrayList<>();
+      for (CircuitBreaker breaker : circuitBreakers.values()) {
+        if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+          open.add(breaker);
+        }
+      }
+      return open;
+    }
+  }
+
+  /**
+   * Abort the in-flight fetches that did not make any progress within the stall timeout.
+   *
+   * <p>The connection of a stalled fetch is closed, so that the fetch fails with a transport error.
+   * The thread running it then releases its runway and reschedules it, as after any transport
+   * error: its refs and states are never moved while it is still running.
+   */
+  void abortStalledFetches() {
+    long stallTimeout = config.getFetchStallTimeout();
+    long stallTimeoutNanos = TimeUnit.SECONDS.toNanos(stallTimeout);
+    List<FetchOne> stalled = new ArrayList<>();
+    synchronized (stateLock) {
+      for (FetchOne op : inFlight.values()) {
+        if (op.isStalled(stallTimeoutNanos)) {
+          repLog.warn(
+              "Fetch {} made no progress for more than {}s ({}), aborting it",
+              op,
+              stallTimeout,
+              op.getProgress());
+          stalled.add(op);
+        }
+      }
+    }
+    for (FetchOne op : stalled) {
+      op.abort();
     }
   }
 
@@ -522,23 +1754,8 @@ public class Source {
     List<URIish> r = Lists.newArrayListWithCapacity(config.getRemoteConfig().getURIs().size());
     for (URIish uri : config.getRemoteConfig().getURIs()) {
       if (matches(uri, urlMatch)) {
-        String name = project.get();
-        if (needsUrlEncoding(uri)) {
-          name = encode(name);
-        }
-        String remoteNameStyle = config.getRemoteNameStyle();
-        if (remoteNameStyle.equals("dash")) {
-          name = name.replace("/", "-");
-        } else if (remoteNameStyle.equals("underscore")) {
-          name = name.replace("/", "_");
-        } else if (remoteNameStyle.equals("basenameOnly")) {
-          name = FilenameUtils.getBaseName(name);
-        } else if (!remoteNameStyle.equals("slash")) {
-          repLog.debug("Unknown remoteNameStyle: {}, falling back to slash", remoteNameStyle);
-        }
-        String replacedPath = replaceName(uri.getPath(), name, isSingleProjectMatch());
-        if (replacedPath != null) {
-          uri = uri.setPath(replacedPath);
+        uri = getURI(uri, project);
+        if (uri != null) {
           r.add(uri);
         }
       }
@@ -546,6 +1763,25 @@ public class Source {
     return r;
   }
 
+  private URIish getURI(URIish uri, Project.NameKey project) {
+    String name = project.get();
+    if (needsUrlEncoding(uri)) {
+      name = encode(name);
+    }
+    String remoteNameStyle = config.getRemoteNameStyle();
+    if (remoteNameStyle.equals("dash")) {
+      name = name.replace("/", "-");
+    } else if (remoteNameStyle.equals("underscore")) {
+      name = name.replace("/", "_");
+    } else if (remoteNameStyle.equals("basenameOnly")) {
+      name = FilenameUtils.getBaseName(name);
+    } else if (!remoteNameStyle.equals("slash")) {
+      repLog.debug("Unknown remoteNameStyle: {}, falling back to slash", remoteNameStyle);
+    }
+    String replacedPath = replaceName(uri.getPath(), name, isSingleProjectMatch());
+    return replacedPath != null ? uri.setPath(replacedPath) : null;
+  }
+
   static boolean needsUrlEncoding(URIish uri) {
     return "http".equalsIgnoreCase(uri.getScheme())
         || "https".equalsIgnoreCase(uri.getScheme())
@@ -581,10 +1817,61 @@ public class Source {
     return config.getProjects();
   }
 
+  boolean isMirrorGroup() {
+    return config.isMirrorGroup();
+  }
+
+  boolean isPruneEnabled() {
+    return config.isPrune();
+  }
+
+  boolean isAtomicRefUpdates() {
+    return config.isAtomicRefUpdates();
+  }
+
+  boolean isInitialFetchStaged() {
+    return !config.getInitialFetchRefSpecs().isEmpty();
+  }
+
+  ImmutableList<FullSyncWindow> getFullSyncWindows() {
+    return config.getFullSyncWindows();
+  }
+
+  long getFullSyncInterval() {
+    return config.getFullSyncInterval();
+  }
+
+  int getFullSyncProjects() {
+    return config.getFullSyncProjects();
+  }
+
+  RefPatternMatcher getRefPatternMatcher() {
+    return config.getRefPatternMatcher();
+  }
+
+  ImmutableList<RefSpec> getInitialFetchRefSpecs() {
+    return config.getInitialFetchRefSpecs();
+  }
+
+  /** @return the duration in seconds above which a fetch is reported as slow, 0 if disabled. */
+  int getSlowLatencyThreshold() {
+    return config.getSlowLatencyThreshold();
+  }
+
+  void postSlowFetchEvent(FetchSlowEvent event) {
+    if (config.isSlowLatencyEvents()) {
+      eventDispatcher.get().postEvent(event.getProjectNameKey(), event);
+    }
+  }
+
   int getLockErrorMaxRetries() {
     return config.getLockErrorMaxRetries();
   }
 
+  RemoteConfig getRemoteConfig() {
+    return config.getRemoteConfig();
+  }
+
   String getRemoteConfigName() {
     return config.getRemoteConfig().getName();
   }
@@ -600,11 +1887,11 @@ public class Source {
     return uri.toString().contains(urlMatch);
   }
 
-  private void postReplicationScheduledEvent(FetchOne fetchOp) {
+  private void postReplicationScheduledEvent(PendingFetch fetchOp) {
     postReplicationScheduledEvent(fetchOp, null);
   }
 
-  private void postReplicationScheduledEvent(FetchOne fetchOp, String inputRef) {
+  private void postReplicationScheduledEvent(PendingFetch fetchOp, String inputRef) {
     Set<String> refs = inputRef == null ? fetchOp.getRefs() : ImmutableSet.of(inputRef);
     Project.NameKey project = fetchOp.getProjectNameKey();
     String targetNode = resolveNodeName(fetchOp.getURI());
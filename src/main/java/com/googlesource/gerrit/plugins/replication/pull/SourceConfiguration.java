@@ -18,14 +18,21 @@ import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.googlesource.gerrit.plugins.replication.RemoteConfiguration;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 
 public class SourceConfiguration implements RemoteConfiguration {
   static final int DEFAULT_REPLICATION_DELAY = 15;
   static final int DEFAULT_RESCHEDULE_DELAY = 3;
   static final int DEFAULT_SLOW_LATENCY_THRESHOLD_SECS = 900;
+  static final long DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_SECS = 60;
+  static final long DEFAULT_FULL_SYNC_INTERVAL_SECS = 600;
+  static final int DEFAULT_FULL_SYNC_PROJECTS = 100;
+  static final int DEFAULT_MAX_FORK_DEFERRALS = 20;
+  static final long DEFAULT_PENDING_OVERFLOW_TIMEOUT_MS = 60_000;
 
   private final int delay;
   private final int rescheduleDelay;
@@ -33,8 +40,13 @@ public class SourceConfiguration implements RemoteConfiguration {
   private final int lockErrorMaxRetries;
   private final ImmutableList<String> adminUrls;
   private final int poolThreads;
+  private final boolean virtualThreads;
+  private final int maxConcurrentFetches;
   private final boolean replicatePermissions;
   private final boolean replicateHiddenProjects;
+  private final boolean createMissingRepositories;
+  private final boolean prune;
+  private final boolean atomicRefUpdates;
   private final String remoteNameStyle;
   private final ImmutableList<String> urls;
   private final ImmutableList<String> projects;
@@ -42,6 +54,25 @@ public class SourceConfiguration implements RemoteConfiguration {
   private final RemoteConfig remoteConfig;
   private final int maxRetries;
   private int slowLatencyThreshold;
+  private final boolean slowLatencyEvents;
+  private final long fetchStallTimeout;
+  private final int circuitBreakerThreshold;
+  private final long circuitBreakerProbeInterval;
+  private final ImmutableList<RefSpec> initialFetchRefSpecs;
+  private final RefPatternMatcher refPatternMatcher;
+  private final ImmutableList<FullSyncWindow> fullSyncWindows;
+  private final long fullSyncInterval;
+  private final int fullSyncProjects;
+  private final boolean fetchForksAfterParents;
+  private final int maxForkDeferrals;
+  private final int maxPendingFetches;
+  private final PendingOverflow pendingOverflow;
+  private final long pendingOverflowTimeout;
+  private final long fetchFreshnessTtl;
+
+  private final int backfillThreads;
+  private final boolean mirrorGroup;
+  private final int hedgeFetchPercentile;
 
   public SourceConfiguration(RemoteConfig remoteConfig, Config cfg) {
     this.remoteConfig = remoteConfig;
@@ -54,11 +85,17 @@ public class SourceConfiguration implements RemoteConfiguration {
     adminUrls = ImmutableList.copyOf(cfg.getStringList("remote", name, "adminUrl"));
     retryDelay = Math.max(0, getInt(remoteConfig, cfg, "replicationretry", 1));
     poolThreads = Math.max(0, getInt(remoteConfig, cfg, "threads", 1));
+    virtualThreads = cfg.getBoolean("remote", name, "virtualThreads", false);
+    maxConcurrentFetches =
+        Math.max(1, getInt(remoteConfig, cfg, "maxConcurrentFetches", poolThreads));
     authGroupNames = ImmutableList.copyOf(cfg.getStringList("remote", name, "authGroup"));
     lockErrorMaxRetries = cfg.getInt("replication", "lockErrorMaxRetries", 0);
 
     replicatePermissions = cfg.getBoolean("remote", name, "replicatePermissions", true);
     replicateHiddenProjects = cfg.getBoolean("remote", name, "replicateHiddenProjects", false);
+    createMissingRepositories = cfg.getBoolean("remote", name, "createMissingRepositories", false);
+    prune = cfg.getBoolean("remote", name, "prune", false);
+    atomicRefUpdates = cfg.getBoolean("remote", name, "atomicRefUpdates", false);
     remoteNameStyle =
         MoreObjects.firstNonNull(cfg.getString("remote", name, "remoteNameStyle"), "slash");
     maxRetries =
@@ -73,6 +110,77 @@ public class SourceConfiguration implements RemoteConfiguration {
                 "slowLatencyThreshold",
                 DEFAULT_SLOW_LATENCY_THRESHOLD_SECS,
                 TimeUnit.SECONDS);
+    slowLatencyEvents = cfg.getBoolean("remote", name, "slowLatencyEvents", false);
+    fetchStallTimeout =
+        Math.max(
+            0,
+            ConfigUtil.getTimeUnit(cfg, "remote", name, "fetchStallTimeout", 0, TimeUnit.SECONDS));
+    circuitBreakerThreshold = Math.max(0, getInt(remoteConfig, cfg, "circuitBreakerThreshold", 0));
+    circuitBreakerProbeInterval =
+        Math.max(
+            1,
+            ConfigUtil.getTimeUnit(
+                cfg,
+                "remote",
+                name,
+                "circuitBreakerProbeInterval",
+                DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_SECS,
+                TimeUnit.SECONDS));
+
+    ImmutableList.Builder<RefSpec> initialSpecs = ImmutableList.builder();
+    for (String spec : cfg.getStringList("remote", name, "initialFetchRefSpec")) {
+      initialSpecs.add(new RefSpec(spec));
+    }
+    initialFetchRefSpecs = initialSpecs.build();
+    refPatternMatcher =
+        new RefPatternMatcher(
+            Arrays.asList(cfg.getStringList("remote", name, "includeRef")),
+            Arrays.asList(cfg.getStringList("remote", name, "excludeRef")));
+
+    ImmutableList.Builder<FullSyncWindow> windows = ImmutableList.builder();
+    for (String window : cfg.getStringList("remote", name, "fullSyncWindow")) {
+      windows.add(FullSyncWindow.parse(window));
+    }
+    fullSyncWindows = windows.build();
+    fullSyncInterval =
+        Math.max(
+            1,
+            ConfigUtil.getTimeUnit(
+                cfg,
+                "remote",
+                name,
+                "fullSyncInterval",
+                DEFAULT_FULL_SYNC_INTERVAL_SECS,
+                TimeUnit.SECONDS));
+    fetchForksAfterParents = cfg.getBoolean("remote", name, "fetchForksAfterParents", false);
+    maxForkDeferrals =
+        Math.max(0, cfg.getInt("remote", name, "maxForkDeferrals", DEFAULT_MAX_FORK_DEFERRALS));
+    maxPendingFetches = Math.max(0, cfg.getInt("remote", name, "maxPendingFetches", 0));
+    pendingOverflow = cfg.getEnum("remote", name, "pendingOverflow", PendingOverflow.COLLAPSE);
+    pendingOverflowTimeout =
+        Math.max(
+            0,
+            ConfigUtil.getTimeUnit(
+                cfg,
+                "remote",
+                name,
+                "pendingOverflowTimeout",
+                DEFAULT_PENDING_OVERFLOW_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS));
+    fetchFreshnessTtl =
+        Math.max(
+            0,
+            ConfigUtil.getTimeUnit(cfg, "remote", name, "fetchFreshnessTtl", 0, TimeUnit.SECONDS));
+    fullSyncProjects =
+        Math.max(1, cfg.getInt("remote", name, "fullSyncProjects", DEFAULT_FULL_SYNC_PROJECTS));
+    backfillThreads = Math.max(1, getInt(remoteConfig, cfg, "backfillThreads", 1));
+
+    mirrorGroup = cfg.getBoolean("remote", name, "mirrorGroup", false);
+    hedgeFetchPercentile = cfg.getInt("remote", name, "hedgeFetchPercentile", 0);
+    if (hedgeFetchPercentile < 0 || hedgeFetchPercentile > 100) {
+      throw new IllegalArgumentException(
+          "hedgeFetchPercentile must be between 0 and 100: " + hedgeFetchPercentile);
+    }
   }
 
   @Override
@@ -94,6 +202,16 @@ public class SourceConfiguration implements RemoteConfiguration {
     return poolThreads;
   }
 
+  /** @return true if the fetches should run on virtual threads, when the JVM supports them. */
+  public boolean useVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /** @return the maximum number of fetches running concurrently on virtual threads. */
+  public int getMaxConcurrentFetches() {
+    return maxConcurrentFetches;
+  }
+
   public int getLockErrorMaxRetries() {
     return lockErrorMaxRetries;
   }
@@ -132,6 +250,18 @@ public class SourceConfiguration implements RemoteConfiguration {
     return replicateHiddenProjects;
   }
 
+  public boolean isPrune() {
+    return prune;
+  }
+
+  public boolean isAtomicRefUpdates() {
+    return atomicRefUpdates;
+  }
+
+  public boolean createMissingRepositories() {
+    return createMissingRepositories;
+  }
+
   @Override
   public RemoteConfig getRemoteConfig() {
     return remoteConfig;
@@ -142,6 +272,73 @@ public class SourceConfiguration implements RemoteConfiguration {
     return maxRetries;
   }
 
+  /**
+   * Refspecs used for the first fetch into an empty local repository.
+   *
+   * @return the initial fetch refspecs, empty if staged initial fetches are disabled.
+   */
+  public ImmutableList<RefSpec> getInitialFetchRefSpecs() {
+    return initialFetchRefSpecs;
+  }
+
+  /** @return the selection of the refs to replicate, among the ones matching the refspecs. */
+  RefPatternMatcher getRefPatternMatcher() {
+    return refPatternMatcher;
+  }
+
+  /** @return the windows of the periodic full syncs, empty if they are disabled. */
+  ImmutableList<FullSyncWindow> getFullSyncWindows() {
+    return fullSyncWindows;
+  }
+
+  public long getFullSyncInterval() {
+    return fullSyncInterval;
+  }
+
+  public int getFullSyncProjects() {
+    return fullSyncProjects;
+  }
+
+  public boolean fetchForksAfterParents() {
+    return fetchForksAfterParents;
+  }
+
+  /** @return the maximum number of times a fetch into a fork waits for its parents. */
+  public int getMaxForkDeferrals() {
+    return maxForkDeferrals;
+  }
+
+  /** @return the maximum number of pending fetches, 0 if unbounded. */
+  public int getMaxPendingFetches() {
+    return maxPendingFetches;
+  }
+
+  public PendingOverflow getPendingOverflow() {
+    return pendingOverflow;
+  }
+
+  /** @return the milliseconds a caller waits for room in the pending fetches, when blocked. */
+  public long getPendingOverflowTimeout() {
+    return pendingOverflowTimeout;
+  }
+
+  /** @return the seconds during which a fetch of all the refs is reused, 0 if disabled. */
+  public long getFetchFreshnessTtl() {
+    return fetchFreshnessTtl;
+  }
+
+  public int getBackfillThreads() {
+    return backfillThreads;
+  }
+
+  public boolean isMirrorGroup() {
+    return mirrorGroup;
+  }
+
+  public int getHedgeFetchPercentile() {
+    return hedgeFetchPercentile;
+  }
+
   private static int getInt(RemoteConfig rc, Config cfg, String name, int defValue) {
     return cfg.getInt("remote", rc.getName(), name, defValue);
   }
@@ -150,4 +347,30 @@ public class SourceConfiguration implements RemoteConfiguration {
   public int getSlowLatencyThreshold() {
     return slowLatencyThreshold;
   }
+
+  public boolean isSlowLatencyEvents() {
+    return slowLatencyEvents;
+  }
+
+  /** @return the seconds after which a fetch not making progress is aborted, 0 if disabled. */
+  public long getFetchStallTimeout() {
+    return fetchStallTimeout;
+  }
+
+  /** @return the consecutive transport failures opening the circuit breaker, 0 if disabled. */
+  public int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  public long getCircuitBreakerProbeInterval() {
+    return circuitBreakerProbeInterval;
+  }
+
+  /** What to do with a new fetch when the source has the maximum number of pending fetches. */
+  public enum PendingOverflow {
+    /** Fetch all the refs of the project once there is room for it. */
+    COLLAPSE,
+    /** Wait until there is room for it. */
+    BLOCK
+  }
 }
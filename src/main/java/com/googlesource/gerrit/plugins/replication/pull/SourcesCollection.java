@@ -141,7 +141,14 @@ public class SourcesCollection implements ReplicationSources, ReplicationConfigV
             String.format("You must specify a valid refSpec for this remote"));
       }
 
-      SourceConfiguration sourceConfig = new SourceConfiguration(c, newConfig.getConfig());
+      SourceConfiguration sourceConfig;
+      try {
+        sourceConfig = new SourceConfiguration(c, newConfig.getConfig());
+      } catch (IllegalArgumentException e) {
+        throw new ConfigInvalidException(
+            String.format("remote %s has invalid configuration: %s", c.getName(), e.getMessage()),
+            e);
+      }
 
       if (!sourceConfig.isSingleProjectMatch()) {
         for (URIish u : c.getURIs()) {
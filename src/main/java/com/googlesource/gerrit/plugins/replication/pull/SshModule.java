@@ -21,5 +21,6 @@ class SshModule extends PluginCommandModule {
   protected void configureCommands() {
     command(StartFetchCommand.class);
     command(ListCommand.class);
+    command(CheckCommand.class);
   }
 }
@@ -14,7 +14,9 @@
 
 package com.googlesource.gerrit.plugins.replication.pull;
 
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.sshd.CommandMetaData;
 import com.google.gerrit.sshd.SshCommand;
 import com.google.inject.Inject;
@@ -25,6 +27,7 @@ import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Repository;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
@@ -47,6 +50,21 @@ public final class StartFetchCommand extends SshCommand {
   @Option(name = "--now", usage = "start replication without waiting for replicationDelay")
   private boolean now;
 
+  @Option(name = "--force", usage = "fetch even the projects fetched within fetchFreshnessTtl")
+  private boolean force;
+
+  @Option(
+      name = "--origin",
+      metaVar = "INSTANCE_ID",
+      usage = "instance id of the node where the projects have been updated")
+  private String origin;
+
+  @Option(
+      name = "--delete-ref",
+      metaVar = "REF",
+      usage = "delete the ref locally instead of fetching the projects, can be repeated")
+  private List<String> deletedRefs = new ArrayList<>();
+
   @Argument(index = 0, multiValued = true, metaVar = "PATTERN", usage = "project name pattern")
   private List<String> projectPatterns = new ArrayList<>(2);
 
@@ -54,11 +72,18 @@ public final class StartFetchCommand extends SshCommand {
 
   @Inject private ReplicationState.Factory fetchReplicationStateFactory;
 
+  @Inject private ProjectCache projectCache;
+
   @Override
   protected void run() throws Failure {
     if (all && projectPatterns.size() > 0) {
       throw new UnloggedFailure(1, "error: cannot combine --all and PROJECT");
     }
+    for (String ref : deletedRefs) {
+      if (!Repository.isValidRefName(ref)) {
+        throw new UnloggedFailure(1, "error: invalid ref name " + ref);
+      }
+    }
 
     ReplicationState state =
         fetchReplicationStateFactory.create(new FetchResultProcessing.CommandProcessing(this));
@@ -72,7 +97,14 @@ public final class StartFetchCommand extends SshCommand {
       projectFilter = new ReplicationFilter(projectPatterns);
     }
 
-    future = fetchFactory.create(urlMatch, projectFilter, state, now).schedule(0, TimeUnit.SECONDS);
+    future =
+        fetchFactory
+            .create(urlMatch, projectFilter, state, now)
+            .includeMissingProjects(missingProjects())
+            .originatedFrom(origin)
+            .reuseFreshFetches(!force)
+            .deleteRefs(deletedRefs)
+            .schedule(0, TimeUnit.SECONDS);
 
     if (wait) {
       if (future != null) {
@@ -100,6 +132,20 @@ public final class StartFetchCommand extends SshCommand {
     }
   }
 
+  private List<Project.NameKey> missingProjects() {
+    List<Project.NameKey> missing = new ArrayList<>();
+    for (String pattern : projectPatterns) {
+      if (pattern.startsWith("^") || pattern.endsWith("*")) {
+        continue;
+      }
+      Project.NameKey project = Project.nameKey(pattern);
+      if (projectCache.get(project) == null) {
+        missing.add(project);
+      }
+    }
+    return missing;
+  }
+
   public void writeStdOutSync(String message) {
     if (wait) {
       synchronized (stdout) {
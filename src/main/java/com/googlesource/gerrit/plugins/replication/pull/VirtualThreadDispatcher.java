@@ -0,0 +1,192 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.googlesource.gerrit.plugins.replication.pull.PullReplicationLogger.repLog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.ProjectRunnable;
+import com.google.gerrit.server.git.WorkQueue.CanceledWhileRunning;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the fetch operations of a source on virtual threads.
+ *
+ * <p>The fetch operations are still scheduled on the work queue of the source, which only hands
+ * them over to a new virtual thread when they are due. The number of fetch operations running
+ * concurrently is bounded by a semaphore, the virtual threads waiting for a permit do not hold any
+ * platform thread.
+ *
+ * <p>Virtual threads are looked up by reflection, so that the plugin still runs on JVMs that do not
+ * support them.
+ */
+class VirtualThreadDispatcher {
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final Set<PendingFetch> running = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param executor executor running each fetch operation on a thread of its own.
+   * @param maxConcurrentFetches maximum number of fetch operations running concurrently.
+   */
+  @VisibleForTesting
+  VirtualThreadDispatcher(ExecutorService executor, int maxConcurrentFetches) {
+    this.executor = executor;
+    this.permits = new Semaphore(maxConcurrentFetches, true);
+  }
+
+  /**
+   * Create a dispatcher running the fetch operations on virtual threads.
+   *
+   * @param threadNamePrefix prefix of the names of the virtual threads.
+   * @param maxConcurrentFetches maximum number of fetch operations running concurrently.
+   * @return the dispatcher, null if the JVM does not support virtual threads.
+   */
+  static VirtualThreadDispatcher create(String threadNamePrefix, int maxConcurrentFetches) {
+    try {
+      // Look the methods up on the public builder interface, as its
+      // implementations are not accessible.
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass
+              .getMethod("name", String.class, long.class)
+              .invoke(builder, threadNamePrefix + "-", 1L);
+      ThreadFactory threadFactory =
+          (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      ExecutorService executor =
+          (ExecutorService)
+              Executors.class
+                  .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                  .invoke(null, threadFactory);
+      return new VirtualThreadDispatcher(executor, maxConcurrentFetches);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      repLog.debug("Virtual threads are not available", e);
+      return null;
+    }
+  }
+
+  /**
+   * Wrap a fetch operation so that, once due on the work queue, it runs on a virtual thread.
+   *
+   * @param op fetch operation to wrap.
+   * @return the task to schedule on the work queue.
+   */
+  ProjectRunnable wrap(PendingFetch op) {
+    return new Dispatch(op);
+  }
+
+  /**
+   * Stop running fetch operations, interrupting the running ones.
+   *
+   * @return the number of fetch operations that were running or waiting for a permit.
+   */
+  int shutdown() {
+    int cnt = running.size();
+    for (PendingFetch op : running) {
+      op.setCanceledWhileRunning();
+    }
+    executor.shutdownNow();
+    return cnt;
+  }
+
+  private void execute(PendingFetch op) {
+    running.add(op);
+    try {
+      executor.execute(() -> runWithPermit(op));
+    } catch (RejectedExecutionException e) {
+      running.remove(op);
+      repLog.warn("Cannot run {}, the source is shutting down", op);
+      op.cancel();
+    }
+  }
+
+  private void runWithPermit(PendingFetch op) {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      // The source is shutting down: the fetch is not going to run, it must
+      // not be left pending.
+      running.remove(op);
+      op.cancel();
+      Thread.currentThread().interrupt();
+      return;
+    }
+    try {
+      op.run();
+    } finally {
+      permits.release();
+      running.remove(op);
+    }
+  }
+
+  /**
+   * Task of the work queue handing a fetch operation over to a virtual thread.
+   *
+   * <p>It exposes the fetch operation to the work queue, so that it is listed and can be cancelled
+   * as any other task while pending. Once handed over, the fetch operation is no longer part of the
+   * work queue: while waiting for a permit or running, it is only listed by the list command of the
+   * plugin, as pending or in flight.
+   */
+  private class Dispatch implements ProjectRunnable, CanceledWhileRunning {
+    private final PendingFetch op;
+
+    Dispatch(PendingFetch op) {
+      this.op = op;
+    }
+
+    @Override
+    public void run() {
+      execute(op);
+    }
+
+    @Override
+    public void cancel() {
+      op.cancel();
+    }
+
+    @Override
+    public void setCanceledWhileRunning() {
+      op.setCanceledWhileRunning();
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return op.getProjectNameKey();
+    }
+
+    @Override
+    public String getRemoteName() {
+      return op.getRemoteName();
+    }
+
+    @Override
+    public boolean hasCustomizedPrint() {
+      return op.hasCustomizedPrint();
+    }
+
+    @Override
+    public String toString() {
+      return op.toString();
+    }
+  }
+}
@@ -0,0 +1,287 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.File;
+import java.util.List;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CircuitBreakerTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File localDir;
+  private ObjectId master;
+  private URIish uri;
+  private URIish missingUri;
+  private TestSource test;
+
+  @Before
+  public void setUp() throws Exception {
+    File sourceDir = new File(tempFolder.getRoot(), "source/" + PROJECT.get() + Constants.DOT_GIT);
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+      master = commit(source, null);
+      setRef(source, MASTER, master);
+    }
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+    }
+    uri = new URIish("file://" + sourceDir.getAbsolutePath());
+    missingUri =
+        new URIish(
+            "file://" + tempFolder.getRoot().getAbsolutePath() + "/missing/" + PROJECT.get());
+
+    Config cfg =
+        TestSource.config(
+            "file://" + tempFolder.getRoot().getAbsolutePath() + "/source/${name}.git");
+    cfg.setInt("remote", TestSource.REMOTE_NAME, "circuitBreakerThreshold", 2);
+    cfg.setString("remote", TestSource.REMOTE_NAME, "circuitBreakerProbeInterval", "10s");
+    GitRepositoryManager gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation ->
+                new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build());
+    test = new TestSource(cfg, gitManager, mock(LocalRepositoryCreator.class));
+  }
+
+  @Test
+  public void shouldOpenAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(null, "host", 2);
+    FetchOne op = mock(FetchOne.class);
+
+    assertThat(breaker.recordFailure(op)).isFalse();
+    breaker.recordSuccess();
+    assertThat(breaker.recordFailure(op)).isFalse();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(breaker.allowRequest(op)).isTrue();
+
+    assertThat(breaker.recordFailure(op)).isTrue();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(breaker.allowRequest(op)).isFalse();
+  }
+
+  @Test
+  public void shouldLetOneProbeThroughWhenHalfOpen() {
+    CircuitBreaker breaker = openBreaker();
+    FetchOne parked = mock(FetchOne.class);
+    FetchOne other = mock(FetchOne.class);
+    breaker.park(parked);
+
+    assertThat(breaker.halfOpen()).isSameInstanceAs(parked);
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(breaker.allowRequest(parked)).isTrue();
+    assertThat(breaker.allowRequest(other)).isFalse();
+  }
+
+  @Test
+  public void shouldTakeNextFetchAsProbeWhenNoneIsParked() {
+    CircuitBreaker breaker = openBreaker();
+    FetchOne probe = mock(FetchOne.class);
+    FetchOne other = mock(FetchOne.class);
+
+    assertThat(breaker.halfOpen()).isNull();
+    assertThat(breaker.allowRequest(probe)).isTrue();
+    assertThat(breaker.allowRequest(other)).isFalse();
+
+    assertThat(breaker.releaseProbe(other)).isFalse();
+    assertThat(breaker.releaseProbe(probe)).isTrue();
+    assertThat(breaker.allowRequest(other)).isTrue();
+  }
+
+  @Test
+  public void shouldReopenWhenProbeFails() {
+    CircuitBreaker breaker = openBreaker();
+    FetchOne probe = mock(FetchOne.class);
+    breaker.park(probe);
+    breaker.halfOpen();
+
+    assertThat(breaker.recordFailure(probe)).isTrue();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(breaker.allowRequest(probe)).isFalse();
+  }
+
+  @Test
+  public void shouldReleaseParkedFetchesWhenClosing() {
+    CircuitBreaker breaker = openBreaker();
+    FetchOne probe = mock(FetchOne.class);
+    FetchOne parked = mock(FetchOne.class);
+    breaker.park(probe);
+    breaker.park(parked);
+    breaker.halfOpen();
+
+    List<PendingFetch> released = breaker.recordSuccess();
+
+    assertThat(released).containsExactly(parked);
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(breaker.recordSuccess()).isEmpty();
+  }
+
+  @Test
+  public void shouldParkFetchesUntilProbeSucceeds() throws Exception {
+    test.source.recordTransportFailure(test.opFactory.create(PROJECT, uri));
+    test.source.recordTransportFailure(test.opFactory.create(PROJECT, uri));
+    CircuitBreaker breaker = getOnlyOpenBreaker();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    List<TestSource.ScheduledTask> tasks = test.pool.getTasks();
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).command).isSameInstanceAs(breaker);
+    assertThat(tasks.get(0).delayMillis).isEqualTo(10_000);
+
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    PendingFetch parked = test.source.getQueueInfo().pending.get(uri);
+    assertThat(test.pool.getTasks()).hasSize(1);
+
+    test.pool.runTasks();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    tasks = test.pool.getTasks();
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).command).isSameInstanceAs(parked);
+
+    test.pool.runTasks();
+    assertThat(test.errors).isEmpty();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(test.source.getOpenCircuitBreakers()).isEmpty();
+    try (Repository local = openLocal()) {
+      assertThat(local.exactRef(MASTER).getObjectId()).isEqualTo(master);
+    }
+  }
+
+  @Test
+  public void shouldNotCloseWhenProbeLosesItsMirrorFetch() throws Exception {
+    FetchOne loser = test.opFactory.create(PROJECT, missingUri);
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    ReplicationState state = new ReplicationState(processing);
+    loser.addRef(MASTER);
+    loser.addState(MASTER, state);
+    MirrorFetch mirrorFetch = new MirrorFetch(ImmutableMap.of(missingUri, "a", uri, "b"), null);
+    mirrorFetch.setPrimary(loser);
+    mirrorFetch.complete(
+        test.opFactory.create(PROJECT, uri),
+        new MirrorFetch.Outcome(uri, ImmutableMap.of(MASTER, RefUpdate.Result.FAST_FORWARD)));
+    loser.setMirrorFetch(mirrorFetch);
+
+    test.source.recordTransportFailure(loser);
+    test.source.recordTransportFailure(loser);
+    CircuitBreaker breaker = getOnlyOpenBreaker();
+    test.source.probeCircuitBreaker(breaker);
+    assertThat(breaker.allowRequest(loser)).isTrue();
+
+    loser.run();
+
+    // The outcome of the other mirror is replayed, without the source of the probe being reached.
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(MASTER),
+            eq(missingUri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.FAST_FORWARD));
+    assertThat(test.source.getOpenCircuitBreakers()).containsExactly(breaker);
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+  }
+
+  @Test
+  public void shouldKeyBreakersByHost() throws Exception {
+    assertThat(Source.circuitBreakerHost(new URIish("ssh://host:29418/a/b.git")))
+        .isEqualTo("host:29418");
+    assertThat(Source.circuitBreakerHost(new URIish("https://host/a/b.git"))).isEqualTo("host");
+    assertThat(Source.circuitBreakerHost(uri)).isEqualTo("localhost");
+    assertThat(Source.circuitBreakerHost(missingUri)).isEqualTo("localhost");
+  }
+
+  @Test
+  public void shouldNotCreateBreakerWithoutTransportFailure() throws Exception {
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+
+    assertThat(test.errors).isEmpty();
+    assertThat(test.source.getCircuitBreakerHosts()).isEmpty();
+  }
+
+  @Test
+  public void shouldShareBreakerOfLocalRepositories() {
+    test.source.recordTransportFailure(test.opFactory.create(PROJECT, uri));
+    test.source.recordTransportFailure(test.opFactory.create(Project.nameKey("other"), missingUri));
+
+    assertThat(test.source.getCircuitBreakerHosts()).containsExactly("localhost");
+    assertThat(getOnlyOpenBreaker().getHost()).isEqualTo("localhost");
+  }
+
+  @Test
+  public void shouldRemoveBreakerOnceClosed() throws Exception {
+    test.source.recordTransportFailure(test.opFactory.create(PROJECT, uri));
+    assertThat(test.source.getCircuitBreakerHosts()).containsExactly("localhost");
+    assertThat(test.source.getOpenCircuitBreakers()).isEmpty();
+
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+    assertThat(test.source.getCircuitBreakerHosts()).isEmpty();
+
+    // The failures before the successful fetch are not counted any more.
+    test.source.recordTransportFailure(test.opFactory.create(PROJECT, uri));
+    assertThat(test.source.getOpenCircuitBreakers()).isEmpty();
+    test.source.recordTransportFailure(test.opFactory.create(PROJECT, uri));
+    CircuitBreaker breaker = getOnlyOpenBreaker();
+    test.source.recordTransportSuccess(test.opFactory.create(PROJECT, uri));
+
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(test.source.getCircuitBreakerHosts()).isEmpty();
+  }
+
+  private static CircuitBreaker openBreaker() {
+    CircuitBreaker breaker = new CircuitBreaker(null, "host", 1);
+    breaker.recordFailure(mock(FetchOne.class));
+    return breaker;
+  }
+
+  private CircuitBreaker getOnlyOpenBreaker() {
+    List<CircuitBreaker> breakers = test.source.getOpenCircuitBreakers();
+    assertThat(breakers).hasSize(1);
+    return breakers.get(0);
+  }
+
+  private Repository openLocal() throws Exception {
+    return new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build();
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
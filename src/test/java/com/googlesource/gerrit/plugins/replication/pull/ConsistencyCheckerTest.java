@@ -0,0 +1,215 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.File;
+import java.util.Arrays;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConsistencyCheckerTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final ObjectId A = ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final ObjectId B = ObjectId.fromString("9876543210987654321098765432109876543210");
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File sourceDir;
+  private File localDir;
+  private URIish uri;
+  private GitRepositoryManager gitManager;
+  private FetchReplicationMetrics metrics;
+
+  @Before
+  public void setUp() throws Exception {
+    sourceDir = new File(tempFolder.getRoot(), "source/" + PROJECT.get() + Constants.DOT_GIT);
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+    }
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+    }
+    uri = new URIish("file://" + sourceDir.getAbsolutePath());
+    gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation ->
+                new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build());
+    metrics = mock(FetchReplicationMetrics.class);
+  }
+
+  @Test
+  public void shouldMergeSortedRefs() {
+    ConsistencyChecker.Report report = new ConsistencyChecker.Report(null, PROJECT, uri);
+
+    ConsistencyChecker.merge(
+        ImmutableList.of(
+                remote("refs/heads/a", A),
+                remote("refs/heads/b", A),
+                remote("refs/heads/d", A),
+                remote("refs/heads/f", A))
+            .iterator(),
+        ImmutableList.of(
+                local("refs/heads/b", A),
+                local("refs/heads/c", A),
+                local("refs/heads/d", B),
+                local("refs/heads/e", A))
+            .iterator(),
+        ref -> ref.getName().equals("refs/heads/e") ? null : "source/" + ref.getName(),
+        report);
+
+    assertThat(report.missing).containsExactly("source/refs/heads/a", "source/refs/heads/f");
+    assertThat(report.different).containsExactly("source/refs/heads/d");
+    assertThat(report.stale).containsExactly("source/refs/heads/c");
+    assertThat(report.checkedRefs).isEqualTo(6);
+  }
+
+  @Test
+  public void shouldMergeWhenOneSideIsEmpty() {
+    ConsistencyChecker.Report report = new ConsistencyChecker.Report(null, PROJECT, uri);
+
+    ConsistencyChecker.merge(
+        ImmutableList.<ConsistencyChecker.RemoteRef>of().iterator(),
+        ImmutableList.of(local("refs/heads/a", A), local("refs/heads/b", A)).iterator(),
+        Ref::getName,
+        report);
+
+    assertThat(report.missing).isEmpty();
+    assertThat(report.stale).containsExactly("refs/heads/a", "refs/heads/b").inOrder();
+    assertThat(report.isConsistent()).isFalse();
+  }
+
+  @Test
+  public void shouldReportDivergentRefs() throws Exception {
+    ObjectId master;
+    try (Repository source = openSource()) {
+      master = commit(source, null);
+      setRef(source, "refs/heads/master", master);
+      setRef(source, "refs/heads/feature", commit(source, master));
+      setRef(source, "refs/heads/stable", master);
+    }
+    try (Repository local = openLocal()) {
+      // Commits created within the same second are identical without a parent.
+      ObjectId other = commit(local, commit(local, null));
+      setRef(local, "refs/heads/master", other);
+      setRef(local, "refs/heads/old", other);
+    }
+    ConsistencyChecker checker = newChecker();
+    TestSource test = newSource(TestSource.config(uri.toString()));
+
+    ConsistencyChecker.Report report = checker.check(test.source, PROJECT, uri);
+
+    assertThat(report.missing).containsExactly("refs/heads/feature", "refs/heads/stable");
+    assertThat(report.different).containsExactly("refs/heads/master");
+    assertThat(report.stale).containsExactly("refs/heads/old");
+    verify(metrics).recordDivergentRefs(TestSource.REMOTE_NAME, 4);
+  }
+
+  @Test
+  public void shouldOnlyCountNewDivergentRefsWhenCheckedAgain() throws Exception {
+    try (Repository source = openSource()) {
+      ObjectId master = commit(source, null);
+      setRef(source, "refs/heads/master", master);
+      setRef(source, "refs/heads/feature", master);
+    }
+    ConsistencyChecker checker = newChecker();
+    TestSource test = newSource(TestSource.config(uri.toString()));
+
+    checker.check(test.source, PROJECT, uri);
+    checker.check(test.source, PROJECT, uri);
+    try (Repository source = openSource()) {
+      setRef(source, "refs/heads/stable", source.resolve("refs/heads/master"));
+    }
+    checker.check(test.source, PROJECT, uri);
+
+    verify(metrics).recordDivergentRefs(TestSource.REMOTE_NAME, 2);
+    verify(metrics).recordDivergentRefs(TestSource.REMOTE_NAME, 0);
+    verify(metrics).recordDivergentRefs(TestSource.REMOTE_NAME, 1);
+  }
+
+  @Test
+  public void shouldSortAdvertisedRefsWhenRefSpecsChangeTheirOrder() throws Exception {
+    ObjectId master;
+    try (Repository source = openSource()) {
+      master = commit(source, null);
+      setRef(source, "refs/heads/master", master);
+      setRef(source, "refs/tags/v1", master);
+    }
+    try (Repository local = openLocal()) {
+      setRef(local, "refs/x/master", commit(local, commit(local, null)));
+      setRef(local, "refs/a/v1", master);
+    }
+    Config cfg = TestSource.config(uri.toString());
+    cfg.setStringList(
+        "remote",
+        TestSource.REMOTE_NAME,
+        "fetch",
+        Arrays.asList("+refs/heads/*:refs/x/*", "+refs/tags/*:refs/a/*"));
+    ConsistencyChecker checker = newChecker();
+    TestSource test = newSource(cfg);
+
+    ConsistencyChecker.Report report = checker.check(test.source, PROJECT, uri);
+
+    assertThat(report.missing).isEmpty();
+    assertThat(report.stale).isEmpty();
+    assertThat(report.different).containsExactly("refs/heads/master");
+    assertThat(report.checkedRefs).isEqualTo(2);
+  }
+
+  private ConsistencyChecker newChecker() {
+    return new ConsistencyChecker(gitManager, remoteName -> null, metrics);
+  }
+
+  private TestSource newSource(Config cfg) throws Exception {
+    return new TestSource(cfg, gitManager, mock(LocalRepositoryCreator.class));
+  }
+
+  private Repository openSource() throws Exception {
+    return new FileRepositoryBuilder().setGitDir(sourceDir).setMustExist(true).build();
+  }
+
+  private Repository openLocal() throws Exception {
+    return new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build();
+  }
+
+  private static ConsistencyChecker.RemoteRef remote(String localName, ObjectId id) {
+    return new ConsistencyChecker.RemoteRef("source/" + localName, localName, id);
+  }
+
+  private static Ref local(String name, ObjectId id) {
+    return new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, name, id);
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.googlesource.gerrit.plugins.replication.ReplicationFilter;
+import java.io.File;
+import java.io.IOException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FetchAllTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+  private static final String FEATURE = Constants.R_HEADS + "feature";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File localDir;
+  private URIish uri;
+  private TestSource test;
+  private ProjectCache projectCache;
+  private SourcesCollection sources;
+
+  @Before
+  public void setUp() throws Exception {
+    File sourceDir = new File(tempFolder.getRoot(), "source/" + PROJECT.get() + Constants.DOT_GIT);
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+      setRef(source, MASTER, commit(source, null));
+    }
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+      ObjectId tip = commit(local, null);
+      setRef(local, MASTER, tip);
+      setRef(local, FEATURE, tip);
+    }
+    uri = new URIish("file://" + sourceDir.getAbsolutePath());
+
+    GitRepositoryManager gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT)).thenAnswer(invocation -> openLocal());
+    test =
+        new TestSource(
+            TestSource.config(
+                "file://" + tempFolder.getRoot().getAbsolutePath() + "/source/${name}.git"),
+            gitManager,
+            mock(LocalRepositoryCreator.class));
+    projectCache = mock(ProjectCache.class);
+    when(projectCache.all()).thenReturn(ImmutableSortedSet.of(PROJECT));
+    sources = mock(SourcesCollection.class);
+    when(sources.getAll()).thenReturn(ImmutableList.of(test.source));
+  }
+
+  @Test
+  public void shouldFetchAllRefsOfProjects() throws Exception {
+    newFetchAll(newState()).run();
+
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+    assertThat(op.getRefs()).containsExactly(FetchOne.ALL_REFS);
+    assertThat(op.getDeletedRefs()).isEmpty();
+  }
+
+  @Test
+  public void shouldOnlyDeleteRefsWhenRequested() throws Exception {
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+
+    newFetchAll(new ReplicationState(processing)).deleteRefs(ImmutableList.of(FEATURE)).run();
+
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+    assertThat(op.getRefs()).isEmpty();
+    assertThat(op.getDeletedRefs()).containsExactly(FEATURE);
+
+    test.pool.runTasks();
+
+    assertThat(test.errors).isEmpty();
+    assertThat(localRef(FEATURE)).isNull();
+    assertThat(localRef(MASTER)).isNotNull();
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FEATURE),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.FORCED));
+  }
+
+  private FetchAll newFetchAll(ReplicationState state) {
+    return new FetchAll(
+        mock(WorkQueue.class),
+        projectCache,
+        new ReplicationStateListeners(new DynamicSet<>()),
+        sources,
+        null,
+        ReplicationFilter.all(),
+        state,
+        true);
+  }
+
+  private Repository openLocal() throws IOException {
+    return new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build();
+  }
+
+  private ObjectId localRef(String name) throws IOException {
+    try (Repository local = openLocal()) {
+      return local.exactRef(name) != null ? local.exactRef(name).getObjectId() : null;
+    }
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.util.List;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+public class FetchAuditLogTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File localDir;
+  private URIish uri;
+  private URIish missingUri;
+  private Config cfg;
+  private GitRepositoryManager gitManager;
+
+  @Before
+  public void setUp() throws Exception {
+    File sourceDir = new File(tempFolder.getRoot(), "source/" + PROJECT.get() + Constants.DOT_GIT);
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+      setRef(source, MASTER, commit(source, null));
+    }
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+    }
+    uri = new URIish("file://" + sourceDir.getAbsolutePath());
+    missingUri =
+        new URIish(
+            "file://" + tempFolder.getRoot().getAbsolutePath() + "/missing/" + PROJECT.get());
+    cfg =
+        TestSource.config(
+            "file://" + tempFolder.getRoot().getAbsolutePath() + "/source/${name}.git");
+    cfg.setBoolean("replication", null, "auditLog", true);
+
+    gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation ->
+                new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build());
+  }
+
+  @Test
+  public void shouldRecordSucceededFetch() throws Exception {
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+
+    JsonObject record = onlyRecord(test);
+    assertThat(record.get("id").getAsString()).isNotEmpty();
+    assertThat(record.get("timestamp").getAsString()).isNotEmpty();
+    assertThat(record.get("type").getAsString()).isEqualTo("fetch");
+    assertThat(record.get("source").getAsString()).isEqualTo(TestSource.REMOTE_NAME);
+    assertThat(record.get("project").getAsString()).isEqualTo(PROJECT.get());
+    assertThat(record.get("uri").getAsString()).isEqualTo(uri.toString());
+    assertThat(record.get("status").getAsString()).isEqualTo("succeeded");
+    assertThat(record.getAsJsonArray("refs").get(0).getAsString()).isEqualTo(MASTER);
+    assertThat(record.getAsJsonArray("deleted_refs").size()).isEqualTo(0);
+    assertThat(record.has("alternates")).isFalse();
+    assertThat(record.get("fetched_refs").getAsInt()).isEqualTo(1);
+    assertThat(record.get("updated_refs").getAsInt()).isEqualTo(1);
+    assertThat(record.get("removed_refs").getAsInt()).isEqualTo(0);
+    assertThat(record.get("failed_refs").getAsInt()).isEqualTo(0);
+    assertThat(record.get("received_objects").getAsLong()).isGreaterThan(0L);
+    assertThat(record.get("retries").getAsInt()).isEqualTo(0);
+    long elapsed = record.get("elapsed").getAsLong();
+    assertThat(record.get("open_repository").getAsLong()).isAtMost(elapsed);
+    assertThat(record.get("fetch").getAsLong()).isAtMost(elapsed);
+    assertThat(record.get("update_refs").getAsLong()).isAtMost(elapsed);
+    assertThat(record.get("delay").getAsLong()).isAtLeast(0L);
+  }
+
+  @Test
+  public void shouldRecordFailedFetch() throws Exception {
+    TestSource test = newSource();
+    test.opFactory.create(PROJECT, missingUri).run();
+
+    JsonObject record = onlyRecord(test);
+    assertThat(record.get("uri").getAsString()).isEqualTo(missingUri.toString());
+    assertThat(record.get("status").getAsString()).isEqualTo("failed");
+  }
+
+  @Test
+  public void shouldRecordFetchReplayedFromOtherMirror() throws Exception {
+    TestSource test = newSource();
+    FetchOne loser = test.opFactory.create(PROJECT, missingUri);
+    loser.addRef(MASTER);
+    loser.addState(MASTER, newState());
+    MirrorFetch mirrorFetch = new MirrorFetch(ImmutableMap.of(missingUri, "a", uri, "b"), null);
+    mirrorFetch.setPrimary(loser);
+    mirrorFetch.complete(
+        test.opFactory.create(PROJECT, uri),
+        new MirrorFetch.Outcome(uri, ImmutableMap.of(MASTER, RefUpdate.Result.FAST_FORWARD)));
+    loser.setMirrorFetch(mirrorFetch);
+
+    loser.run();
+
+    assertThat(onlyRecord(test).get("status").getAsString()).isEqualTo("replayed");
+  }
+
+  @Test
+  public void shouldNotRecordWhenDisabled() throws Exception {
+    cfg.setBoolean("replication", null, "auditLog", false);
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+
+    verify(test.auditLog, never()).toJson(any());
+  }
+
+  private TestSource newSource() throws Exception {
+    return new TestSource(cfg, gitManager, mock(LocalRepositoryCreator.class));
+  }
+
+  private static JsonObject onlyRecord(TestSource test) {
+    ArgumentCaptor<FetchAuditLog.Record> records =
+        ArgumentCaptor.forClass(FetchAuditLog.Record.class);
+    verify(test.auditLog).log(records.capture());
+    List<FetchAuditLog.Record> all = records.getAllValues();
+    assertThat(all).hasSize(1);
+    return new JsonParser().parse(test.auditLog.toJson(all.get(0))).getAsJsonObject();
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
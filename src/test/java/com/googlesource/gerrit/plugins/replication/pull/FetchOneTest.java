@@ -0,0 +1,651 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FetchOneTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+  private static final String FEATURE = Constants.R_HEADS + "feature";
+  private static final Project.NameKey FORK = Project.nameKey("someProject-fork");
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File sourceDir;
+  private File localDir;
+  private URIish uri;
+  private Config cfg;
+  private GitRepositoryManager gitManager;
+  private ObjectId forkTip;
+
+  @Before
+  public void setUp() throws Exception {
+    sourceDir = new File(tempFolder.getRoot(), "source/" + PROJECT.get() + Constants.DOT_GIT);
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+      ObjectId tip = commit(source, null);
+      setRef(source, MASTER, tip);
+      setRef(source, FEATURE, commit(source, tip));
+    }
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+    }
+    uri = new URIish("file://" + sourceDir.getAbsolutePath());
+    cfg =
+        TestSource.config(
+            "file://" + tempFolder.getRoot().getAbsolutePath() + "/source/${name}.git");
+
+    gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT)).thenAnswer(invocation -> openLocal());
+  }
+
+  @Test
+  public void shouldDeleteRefDeletedOnSource() throws Exception {
+    TestSource test = newSource();
+    fetchAllRefs(test);
+    deleteRef(FEATURE);
+
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.scheduleDeletion(PROJECT, FEATURE, uri, new ReplicationState(processing));
+    test.pool.runTasks();
+
+    assertThat(localRef(FEATURE)).isNull();
+    assertThat(localRef(MASTER)).isNotNull();
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FEATURE),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.FORCED));
+  }
+
+  @Test
+  public void shouldNotifyDeletionOfMissingLocalRefAsNoChange() throws Exception {
+    TestSource test = newSource();
+
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.scheduleDeletion(PROJECT, FEATURE, uri, new ReplicationState(processing));
+    test.pool.runTasks();
+
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FEATURE),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.NO_CHANGE));
+  }
+
+  @Test
+  public void shouldPruneStaleRefsWhenFetchingAllRefs() throws Exception {
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "prune", true);
+    TestSource test = newSource();
+    fetchAllRefs(test);
+    try (Repository local = openLocal()) {
+      setRef(local, RefNames.REFS_CONFIG, local.exactRef(MASTER).getObjectId());
+    }
+    deleteRef(FEATURE);
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(FEATURE)).isNull();
+    assertThat(localRef(MASTER)).isNotNull();
+    assertThat(localRef(RefNames.REFS_CONFIG)).isNotNull();
+  }
+
+  @Test
+  public void shouldKeepStaleRefsWithoutPrune() throws Exception {
+    TestSource test = newSource();
+    fetchAllRefs(test);
+    deleteRef(FEATURE);
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(FEATURE)).isNotNull();
+  }
+
+  @Test
+  public void shouldApplyFetchedRefsWithOneAtomicBatch() throws Exception {
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "atomicRefUpdates", true);
+    TestSource test = newSource();
+
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, MASTER, uri, new ReplicationState(processing));
+    test.source.schedule(PROJECT, FEATURE, uri, new ReplicationState(processing));
+    test.pool.runTasks();
+
+    assertNoErrors(test);
+    assertThat(localRef(MASTER)).isEqualTo(sourceRef(MASTER));
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(MASTER),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.NEW));
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FEATURE),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.NEW));
+  }
+
+  @Test
+  public void shouldRetryOnlyLockFailedRefs() throws Exception {
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "atomicRefUpdates", true);
+    cfg.setInt("replication", null, "lockErrorMaxRetries", 1);
+    TestSource test = newSource();
+    fetchAllRefs(test);
+    updateRef(MASTER);
+    updateRef(FEATURE);
+    File lock = new File(localDir, FEATURE + ".lock");
+    assertThat(lock.createNewFile()).isTrue();
+
+    FetchResultProcessing masterProcessing = mock(FetchResultProcessing.class);
+    FetchResultProcessing featureProcessing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, MASTER, uri, new ReplicationState(masterProcessing));
+    test.source.schedule(PROJECT, FEATURE, uri, new ReplicationState(featureProcessing));
+    test.pool.runTasks();
+
+    assertThat(localRef(MASTER)).isEqualTo(sourceRef(MASTER));
+    assertThat(localRef(FEATURE)).isNotEqualTo(sourceRef(FEATURE));
+    verify(masterProcessing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(MASTER),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.FAST_FORWARD));
+    verifyNoMoreInteractions(featureProcessing);
+    PendingFetch retry = test.source.getQueueInfo().pending.get(uri);
+    assertThat(retry.getRefs()).containsExactly(FEATURE);
+
+    assertThat(lock.delete()).isTrue();
+    updateRef(MASTER);
+    test.pool.runTasks();
+
+    assertNoErrors(test);
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+    // Only the ref that failed to be locked is fetched again.
+    assertThat(localRef(MASTER)).isNotEqualTo(sourceRef(MASTER));
+    verify(featureProcessing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FEATURE),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            eq(RefUpdate.Result.FAST_FORWARD));
+    verifyNoMoreInteractions(masterProcessing);
+  }
+
+  @Test
+  public void shouldOnlyFetchRefsNotExcluded() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "excludeRef", FEATURE);
+    TestSource test = newSource();
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(MASTER)).isEqualTo(sourceRef(MASTER));
+    assertThat(localRef(FEATURE)).isNull();
+  }
+
+  @Test
+  public void shouldOnlyFetchIncludedRefs() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "includeRef", "refs/heads/f*");
+    TestSource test = newSource();
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(MASTER)).isNull();
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+  }
+
+  @Test
+  public void shouldNotFetchWhenNoAdvertisedRefIsSelected() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "includeRef", "refs/heads/missing");
+    TestSource test = newSource();
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(MASTER)).isNull();
+    assertThat(localRef(FEATURE)).isNull();
+    assertThat(test.source.getQueueInfo().pending).isEmpty();
+    assertThat(test.pool.getTasks()).isEmpty();
+  }
+
+  @Test
+  public void shouldFetchRefDeletedAfterBeingAdvertised() throws Exception {
+    ObjectId feature = sourceRef(FEATURE);
+    try (Repository local = openLocal();
+        AdvertisedRefsTransport tn =
+            new AdvertisedRefsTransport(local, Transport.open(local, uri))) {
+      assertThat(tn.getAdvertisedRefs()).containsKey(FEATURE);
+      deleteRef(FEATURE);
+
+      FetchResult res =
+          tn.fetch(NullProgressMonitor.INSTANCE, ImmutableList.of(new RefSpec(FEATURE)));
+
+      assertThat(res.getAdvertisedRef(FEATURE).getObjectId()).isEqualTo(feature);
+      assertThat(local.getObjectDatabase().has(feature)).isTrue();
+    }
+  }
+
+  @Test
+  public void shouldDeferForkUntilParentIsFetched() throws Exception {
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "fetchForksAfterParents", true);
+    File forkDir = createFork();
+    TestSource test = newSource();
+    URIish forkUri = new URIish(uri.toString().replace(PROJECT.get(), FORK.get()));
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.source.schedule(FORK, MASTER, forkUri, newState());
+    List<TestSource.ScheduledTask> tasks = test.pool.takeTasks();
+    FetchOne fork = test.dueFetch(forkUri);
+
+    fork.run();
+
+    assertThat(fork.getDeferrals()).isEqualTo(1);
+    assertThat(test.source.getQueueInfo().pending.get(forkUri)).isSameInstanceAs(fork);
+    assertThat(Iterables.getOnlyElement(test.pool.getTasks()).delayMillis).isEqualTo(3_000);
+    assertThat(localRef(forkDir, MASTER)).isNull();
+
+    tasks.get(0).command.run();
+    test.pool.runTasks();
+
+    assertNoErrors(test);
+    assertThat(localRef(forkDir, MASTER)).isEqualTo(forkTip);
+    assertThat(fork.getDeferrals()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldFetchForkAfterMaxDeferrals() throws Exception {
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "fetchForksAfterParents", true);
+    cfg.setInt("remote", TestSource.REMOTE_NAME, "maxForkDeferrals", 2);
+    File forkDir = createFork();
+    TestSource test = newSource();
+    URIish forkUri = new URIish(uri.toString().replace(PROJECT.get(), FORK.get()));
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.source.schedule(FORK, MASTER, forkUri, newState());
+    test.pool.takeTasks();
+    FetchOne fork = test.dueFetch(forkUri);
+
+    // The parent stays pending.
+    fork.run();
+    fork.run();
+    assertThat(fork.getDeferrals()).isEqualTo(2);
+    assertThat(localRef(forkDir, MASTER)).isNull();
+    fork.run();
+
+    assertNoErrors(test);
+    assertThat(fork.getDeferrals()).isEqualTo(2);
+    assertThat(localRef(forkDir, MASTER)).isEqualTo(forkTip);
+    assertThat(test.source.getQueueInfo().pending.get(forkUri)).isNull();
+  }
+
+  @Test
+  public void shouldStageInitialFetchOfEmptyRepository() throws Exception {
+    cfg.setString(
+        "remote", TestSource.REMOTE_NAME, "initialFetchRefSpec", "+" + MASTER + ":" + MASTER);
+    TestSource test = newSource();
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(MASTER)).isEqualTo(sourceRef(MASTER));
+    assertThat(localRef(FEATURE)).isNull();
+    // The backfill runs on its own pool.
+    assertThat(test.pool.getTasks()).isEmpty();
+    FetchOne backfill = test.source.getQueueInfo().backfill.get(uri);
+    assertThat(backfill.isBackfill()).isTrue();
+    assertThat(backfill.getRefs()).containsExactly(FetchOne.ALL_REFS);
+    assertThat(test.backfillPool.getTasks()).hasSize(1);
+
+    test.backfillPool.runTasks();
+
+    assertNoErrors(test);
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+    assertThat(test.source.getQueueInfo().backfill).isEmpty();
+    assertThat(test.backfillPool.getTasks()).isEmpty();
+  }
+
+  @Test
+  public void shouldNotStageFetchOfNonEmptyRepository() throws Exception {
+    cfg.setString(
+        "remote", TestSource.REMOTE_NAME, "initialFetchRefSpec", "+" + MASTER + ":" + MASTER);
+    TestSource test = newSource();
+    fetchAllRefs(test);
+    test.backfillPool.runTasks();
+    updateRef(FEATURE);
+
+    fetchAllRefs(test);
+
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+    assertThat(test.backfillPool.getTasks()).isEmpty();
+  }
+
+  @Test
+  public void shouldHandStatesOfStagedFetchOverToBackfill() throws Exception {
+    cfg.setString(
+        "remote", TestSource.REMOTE_NAME, "initialFetchRefSpec", "+" + MASTER + ":" + MASTER);
+    TestSource test = newSource();
+    FetchResultProcessing allProcessing = mock(FetchResultProcessing.class);
+    FetchResultProcessing masterProcessing = mock(FetchResultProcessing.class);
+    FetchResultProcessing featureProcessing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, FetchOne.ALL_REFS, uri, new ReplicationState(allProcessing));
+    test.source.schedule(PROJECT, MASTER, uri, new ReplicationState(masterProcessing));
+    test.source.schedule(PROJECT, FEATURE, uri, new ReplicationState(featureProcessing));
+
+    test.pool.runTasks();
+
+    verifySucceeded(masterProcessing, MASTER, RefUpdate.Result.NEW);
+    verifyNoMoreInteractions(allProcessing, featureProcessing);
+    FetchOne backfill = test.source.getQueueInfo().backfill.get(uri);
+    assertThat(backfill.getStates().keySet()).containsExactly(FetchOne.ALL_REFS, FEATURE);
+
+    test.backfillPool.runTasks();
+
+    assertNoErrors(test);
+    verifySucceeded(featureProcessing, FEATURE, RefUpdate.Result.NEW);
+    verify(allProcessing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FetchOne.ALL_REFS),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            any(RefUpdate.Result.class));
+    verifyNoMoreInteractions(masterProcessing);
+  }
+
+  @Test
+  public void shouldRescheduleBackfillCollidingWithFetchOnBackfillPool() throws Exception {
+    cfg.setString(
+        "remote", TestSource.REMOTE_NAME, "initialFetchRefSpec", "+" + MASTER + ":" + MASTER);
+    TestSource test = newSource();
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, FetchOne.ALL_REFS, uri, new ReplicationState(processing));
+    test.pool.runTasks();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    FetchOne fetch = test.dueFetch(uri);
+    assertThat(test.source.requestRunway(fetch)).isTrue();
+    FetchOne backfill = test.source.getQueueInfo().backfill.get(uri);
+
+    test.backfillPool.runTasks();
+
+    assertThat(test.source.getQueueInfo().backfill.get(uri)).isSameInstanceAs(backfill);
+    assertThat(Iterables.getOnlyElement(test.backfillPool.getTasks()).delayMillis).isEqualTo(3_000);
+    assertThat(localRef(FEATURE)).isNull();
+    verifyNoMoreInteractions(processing);
+
+    test.source.notifyFinished(fetch);
+    test.backfillPool.runTasks();
+
+    assertNoErrors(test);
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+    verifySucceeded(processing, FetchOne.ALL_REFS, null);
+  }
+
+  @Test
+  public void shouldMergeRetriedBackfillIntoQueuedBackfill() throws Exception {
+    cfg.setString(
+        "remote", TestSource.REMOTE_NAME, "initialFetchRefSpec", "+" + MASTER + ":" + MASTER);
+    TestSource test = newSource();
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, FetchOne.ALL_REFS, uri, new ReplicationState(processing));
+    test.pool.runTasks();
+    FetchOne backfill = test.source.getQueueInfo().backfill.get(uri);
+    test.backfillPool.takeTasks();
+    // The backfill starts, and another initial fetch queues a new backfill meanwhile.
+    assertThat(test.source.requestRunway(backfill)).isTrue();
+    FetchResultProcessing otherProcessing = mock(FetchResultProcessing.class);
+    ListMultimap<String, ReplicationState> otherStates = LinkedListMultimap.create();
+    otherStates.put(FetchOne.ALL_REFS, new ReplicationState(otherProcessing));
+    test.source.scheduleBackfill(PROJECT, uri, otherStates);
+    FetchOne queued = test.source.getQueueInfo().backfill.get(uri);
+    assertThat(queued).isNotSameInstanceAs(backfill);
+
+    test.source.reschedule(backfill, Source.RetryReason.TRANSPORT_ERROR);
+    test.source.notifyFinished(backfill);
+
+    assertThat(test.source.getQueueInfo().backfill.get(uri)).isSameInstanceAs(queued);
+    assertThat(backfill.getStates().isEmpty()).isTrue();
+    assertThat(queued.getStates().get(FetchOne.ALL_REFS)).hasSize(2);
+    assertThat(test.backfillPool.getTasks()).hasSize(1);
+
+    test.backfillPool.runTasks();
+
+    assertNoErrors(test);
+    assertThat(localRef(FEATURE)).isEqualTo(sourceRef(FEATURE));
+    verifySucceeded(processing, FetchOne.ALL_REFS, null);
+    verifySucceeded(otherProcessing, FetchOne.ALL_REFS, null);
+  }
+
+  @Test
+  public void shouldReportFetchSlowerThanThreshold() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "slowLatencyThreshold", "1s");
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "slowLatencyEvents", true);
+    TestSource test = newSource();
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(1_100);
+              return openLocal();
+            });
+
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+
+    assertNoErrors(test);
+    verify(test.metrics).recordSlowFetch(TestSource.REMOTE_NAME);
+    assertThat(Iterables.getOnlyElement(test.warnings))
+        .contains("above the slow latency threshold of 1000ms");
+    verify(test.eventDispatcher).postEvent(eq(PROJECT), isA(FetchSlowEvent.class));
+  }
+
+  @Test
+  public void shouldNotReportFetchFasterThanThreshold() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "slowLatencyThreshold", "1s");
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "slowLatencyEvents", true);
+    TestSource test = newSource();
+
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+
+    assertNoErrors(test);
+    verify(test.metrics, never()).recordSlowFetch(any());
+    assertThat(test.warnings).isEmpty();
+    verify(test.eventDispatcher, never()).postEvent(any(Project.NameKey.class), any());
+  }
+
+  @Test
+  public void shouldOnlyPostSlowFetchEventsWhenEnabled() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "slowLatencyThreshold", "1s");
+    TestSource test = newSource();
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(1_100);
+              return openLocal();
+            });
+
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.pool.runTasks();
+
+    verify(test.metrics).recordSlowFetch(TestSource.REMOTE_NAME);
+    assertThat(test.warnings).hasSize(1);
+    verify(test.eventDispatcher, never()).postEvent(any(Project.NameKey.class), any());
+  }
+
+  @Test
+  public void shouldDescribeRefDeletionResult() {
+    RefDeletionResult result =
+        new RefDeletionResult(FEATURE, "refs/remotes/origin/feature", RefUpdate.Result.FORCED);
+
+    assertThat(result.getRemoteName()).isEqualTo(FEATURE);
+    assertThat(result.getLocalName()).isEqualTo("refs/remotes/origin/feature");
+    assertThat(result.getResult()).isEqualTo(RefUpdate.Result.FORCED);
+    assertThat(result.toString())
+        .isEqualTo("RefDeletionResult[refs/remotes/origin/feature (" + FEATURE + "): FORCED]");
+  }
+
+  /**
+   * Create the fork of the project on the source, and locally with the objects of the project as
+   * alternates.
+   *
+   * @return the local repository of the fork.
+   */
+  private File createFork() throws Exception {
+    File sourceForkDir = new File(tempFolder.getRoot(), "source/" + FORK.get() + Constants.DOT_GIT);
+    try (Repository sourceFork = FileRepositoryBuilder.create(sourceForkDir)) {
+      sourceFork.create(true);
+    }
+    try (Repository sourceFork = openRepository(sourceForkDir)) {
+      forkTip = commit(sourceFork, commit(sourceFork, null));
+      setRef(sourceFork, MASTER, forkTip);
+    }
+
+    File forkDir = new File(tempFolder.getRoot(), "local/" + FORK.get() + Constants.DOT_GIT);
+    try (Repository fork = FileRepositoryBuilder.create(forkDir)) {
+      fork.create(true);
+    }
+    Files.write(
+        forkDir.toPath().resolve("objects/info/alternates"),
+        ("../../" + PROJECT.get() + Constants.DOT_GIT + "/objects\n").getBytes(UTF_8));
+    when(gitManager.openRepository(FORK)).thenAnswer(invocation -> openRepository(forkDir));
+    return forkDir;
+  }
+
+  private static Repository openRepository(File dir) throws IOException {
+    return new FileRepositoryBuilder().setGitDir(dir).setMustExist(true).build();
+  }
+
+  private ObjectId localRef(File dir, String name) throws IOException {
+    try (Repository git = openRepository(dir)) {
+      return git.exactRef(name) != null ? git.exactRef(name).getObjectId() : null;
+    }
+  }
+
+  /**
+   * Verify that the replication of a ref has succeeded.
+   *
+   * @param result expected result of the ref update, null for any result.
+   */
+  private void verifySucceeded(
+      FetchResultProcessing processing, String ref, RefUpdate.Result result) {
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(ref),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            result != null ? eq(result) : any(RefUpdate.Result.class));
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+
+  private TestSource newSource() throws Exception {
+    return new TestSource(cfg, gitManager, mock(LocalRepositoryCreator.class));
+  }
+
+  private void fetchAllRefs(TestSource test) {
+    test.source.schedule(
+        PROJECT, FetchOne.ALL_REFS, uri, new ReplicationState(mock(FetchResultProcessing.class)));
+    test.pool.runTasks();
+    assertNoErrors(test);
+  }
+
+  private static void assertNoErrors(TestSource test) {
+    for (Throwable error : test.errors) {
+      throw new AssertionError("replication error", error);
+    }
+  }
+
+  private Repository openLocal() throws IOException {
+    return new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build();
+  }
+
+  private ObjectId localRef(String name) throws IOException {
+    try (Repository local = openLocal()) {
+      return local.exactRef(name) != null ? local.exactRef(name).getObjectId() : null;
+    }
+  }
+
+  private ObjectId sourceRef(String name) throws IOException {
+    try (Repository source = openSource()) {
+      return source.exactRef(name).getObjectId();
+    }
+  }
+
+  private void updateRef(String name) throws IOException {
+    try (Repository source = openSource()) {
+      setRef(source, name, commit(source, source.exactRef(name).getObjectId()));
+    }
+  }
+
+  private Repository openSource() throws IOException {
+    return new FileRepositoryBuilder().setGitDir(sourceDir).setMustExist(true).build();
+  }
+
+  private void deleteRef(String name) throws IOException {
+    try (Repository source = openSource()) {
+      RefUpdate u = source.updateRef(name);
+      u.setForceUpdate(true);
+      assertThat(u.delete()).isEqualTo(RefUpdate.Result.FORCED);
+    }
+  }
+}
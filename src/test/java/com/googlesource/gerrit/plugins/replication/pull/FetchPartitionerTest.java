@@ -0,0 +1,311 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.WorkQueue;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FetchPartitionerTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final long TIMEOUT_SECS = 60;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return nanos.get();
+        }
+      };
+
+  private URIish uri;
+  private Repository git;
+  private File leaseDirectory;
+
+  @Before
+  public void setUp() throws Exception {
+    uri = new URIish("git://source/someProject.git");
+    git = mock(Repository.class);
+    when(git.getDirectory()).thenReturn(tempFolder.newFolder("someProject.git"));
+    leaseDirectory = tempFolder.newFolder("leases");
+  }
+
+  @Test
+  public void shouldFetchEveryProjectWithoutPeers() throws Exception {
+    FetchPartitioner partitioner = new FetchPartitioner(new Config(), "a", null, ticker);
+
+    assertThat(partitioner.isEnabled()).isFalse();
+    assertThat(partitioner.owns(PROJECT)).isTrue();
+    try (FetchPartitioner.Lease lease = partitioner.tryLease(PROJECT, uri, git)) {
+      assertThat(lease).isNotNull();
+    }
+    assertThat(git.getDirectory().list()).isEmpty();
+  }
+
+  @Test
+  public void shouldIgnorePeersWithoutInstanceId() {
+    Config cfg = new Config();
+    cfg.setStringList("replication", null, "peer", Arrays.asList("b"));
+
+    FetchPartitioner partitioner = new FetchPartitioner(cfg, null, null, ticker);
+
+    assertThat(partitioner.isEnabled()).isFalse();
+    assertThat(partitioner.owns(PROJECT)).isTrue();
+  }
+
+  @Test
+  public void shouldGiveEveryProjectToOneNode() {
+    Map<String, FetchPartitioner> nodes = new HashMap<>();
+    for (String id : Arrays.asList("a", "b", "c")) {
+      nodes.put(id, newPartitioner(id, false, "a", "b", "c"));
+    }
+
+    Map<String, Integer> owned = new HashMap<>();
+    for (int i = 0; i < 300; i++) {
+      Project.NameKey project = Project.nameKey("project" + i);
+      String owner = nodes.get("a").getOwner(project);
+      for (Map.Entry<String, FetchPartitioner> node : nodes.entrySet()) {
+        assertThat(node.getValue().getOwner(project)).isEqualTo(owner);
+        assertThat(node.getValue().owns(project)).isEqualTo(node.getKey().equals(owner));
+      }
+      owned.merge(owner, 1, Integer::sum);
+    }
+
+    assertThat(owned.keySet()).containsExactly("a", "b", "c");
+    for (int count : owned.values()) {
+      assertThat(count).isAtLeast(50);
+    }
+  }
+
+  @Test
+  public void shouldOnlyMoveProjectsOfNodeLeaving() throws Exception {
+    FetchPartitioner a = newPartitioner("a", true, "b", "c");
+    FetchPartitioner b = newPartitioner("b", true, "a", "c");
+    FetchPartitioner c = newPartitioner("c", true, "a", "b");
+    c.heartbeat();
+    b.heartbeat();
+    a.heartbeat();
+    b.heartbeat();
+    Map<Project.NameKey, String> owners = new HashMap<>();
+    for (int i = 0; i < 300; i++) {
+      Project.NameKey project = Project.nameKey("project" + i);
+      owners.put(project, a.getOwner(project));
+    }
+    assertThat(owners.values()).contains("c");
+
+    // Only a and b keep writing their heartbeat.
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS));
+    Thread.sleep(10);
+    a.heartbeat();
+    b.heartbeat();
+
+    for (Map.Entry<Project.NameKey, String> e : owners.entrySet()) {
+      String owner = a.getOwner(e.getKey());
+      assertThat(owner).isEqualTo(b.getOwner(e.getKey()));
+      if (e.getValue().equals("c")) {
+        assertThat(owner).isAnyOf("a", "b");
+      } else {
+        assertThat(owner).isEqualTo(e.getValue());
+      }
+    }
+  }
+
+  @Test
+  public void shouldNotLeaseFetchLeasedByAnotherNode() throws Exception {
+    FetchPartitioner a = newPartitioner("a", true, "b");
+    FetchPartitioner b = newPartitioner("b", true, "a");
+
+    FetchPartitioner.Lease lease = a.tryLease(PROJECT, uri, git);
+    assertThat(lease).isNotNull();
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+
+    lease.close();
+    assertThat(leaseFiles()).isEmpty();
+    try (FetchPartitioner.Lease other = b.tryLease(PROJECT, uri, git)) {
+      assertThat(other).isNotNull();
+    }
+  }
+
+  @Test
+  public void shouldTakeOverLeaseSeenUnchangedForTimeout() throws Exception {
+    FetchPartitioner a = newPartitioner("a", true, "b");
+    FetchPartitioner b = newPartitioner("b", true, "a");
+    FetchPartitioner.Lease expired = a.tryLease(PROJECT, uri, git);
+
+    // Expiry is measured from the first time the lease is seen, whatever its modification time.
+    Path file = onlyLeaseFile();
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS) - 1);
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    nanos.incrementAndGet();
+
+    FetchPartitioner.Lease lease = b.tryLease(PROJECT, uri, git);
+    assertThat(lease).isNotNull();
+    assertThat(readOwner(file)).isEqualTo("b");
+
+    // The previous holder does not release the lease it lost.
+    expired.close();
+    assertThat(readOwner(file)).isEqualTo("b");
+    assertThat(a.tryLease(PROJECT, uri, git)).isNull();
+    lease.close();
+    assertThat(leaseFiles()).isEmpty();
+  }
+
+  @Test
+  public void shouldNotTakeOverRefreshedLease() throws Exception {
+    FetchPartitioner a = newPartitioner("a", true, "b");
+    FetchPartitioner b = newPartitioner("b", true, "a");
+    assertThat(a.tryLease(PROJECT, uri, git)).isNotNull();
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS / 2));
+    Thread.sleep(10);
+    a.heartbeat();
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS / 2));
+
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    assertThat(readOwner(onlyLeaseFile())).isEqualTo("a");
+  }
+
+  @Test
+  public void shouldRefreshLeasesWithoutLeaseDirectory() throws Exception {
+    FetchPartitioner a = newPartitioner("a", false, "b");
+    FetchPartitioner b = newPartitioner("b", false, "a");
+    TestSource.ManualExecutor defaultQueue = new TestSource.ManualExecutor();
+    WorkQueue workQueue = mock(WorkQueue.class);
+    when(workQueue.getDefaultQueue()).thenReturn(defaultQueue);
+    FetchPartitioner started = new FetchPartitioner(config("a", false, "b"), "a", workQueue);
+    started.start();
+    assertThat(defaultQueue.getTasks()).hasSize(1);
+    started.stop();
+
+    assertThat(a.tryLease(PROJECT, uri, git)).isNotNull();
+    assertThat(git.getDirectory().list()).hasLength(1);
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS / 2));
+    Thread.sleep(10);
+    a.heartbeat();
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS / 2));
+
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+  }
+
+  @Test
+  public void shouldNotTakeOverLeaseBeingTakenOver() throws Exception {
+    FetchPartitioner a = newPartitioner("a", true, "b", "c");
+    FetchPartitioner b = newPartitioner("b", true, "a", "c");
+    assertThat(a.tryLease(PROJECT, uri, git)).isNotNull();
+    Path file = onlyLeaseFile();
+    String token = new String(Files.readAllBytes(file), UTF_8);
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS));
+
+    // Node c is taking the expired lease over.
+    Path marker = takeoverMarker(file, token);
+    Files.write(marker, "c".getBytes(UTF_8));
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    assertThat(Files.readAllBytes(file)).isEqualTo(token.getBytes(UTF_8));
+
+    // Until the marker is left over for the timeout, and removed.
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(TIMEOUT_SECS));
+    assertThat(b.tryLease(PROJECT, uri, git)).isNull();
+    assertThat(Files.exists(marker)).isFalse();
+    assertThat(b.tryLease(PROJECT, uri, git)).isNotNull();
+    assertThat(readOwner(file)).isEqualTo("b");
+  }
+
+  @Test
+  public void shouldTakeOverOwnLeaseLeftOverBeforeRestart() throws Exception {
+    FetchPartitioner a = newPartitioner("a", true, "b");
+    assertThat(a.tryLease(PROJECT, uri, git)).isNotNull();
+    assertThat(a.tryLease(PROJECT, uri, git)).isNull();
+
+    FetchPartitioner restarted = newPartitioner("a", true, "b");
+    try (FetchPartitioner.Lease lease = restarted.tryLease(PROJECT, uri, git)) {
+      assertThat(lease).isNotNull();
+    }
+    assertThat(leaseFiles()).isEmpty();
+  }
+
+  private FetchPartitioner newPartitioner(String instanceId, boolean shared, String... peers) {
+    return new FetchPartitioner(config(instanceId, shared, peers), instanceId, null, ticker);
+  }
+
+  private Config config(String instanceId, boolean shared, String... peers) {
+    Config cfg = new Config();
+    cfg.setStringList("replication", null, "peer", Arrays.asList(peers));
+    cfg.setString("replication", null, "leaseTimeout", TIMEOUT_SECS + "s");
+    if (shared) {
+      cfg.setString("replication", null, "leaseDirectory", leaseDirectory.getAbsolutePath());
+    }
+    return cfg;
+  }
+
+  private List<Path> leaseFiles() throws Exception {
+    Path leases = leaseDirectory.toPath().resolve("leases");
+    if (!Files.exists(leases)) {
+      return Collections.emptyList();
+    }
+    try (Stream<Path> files = Files.list(leases)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  private Path onlyLeaseFile() throws Exception {
+    List<Path> files = leaseFiles();
+    assertThat(files).hasSize(1);
+    return files.get(0);
+  }
+
+  private static String readOwner(Path file) throws Exception {
+    return new String(Files.readAllBytes(file), UTF_8).split(" ")[0];
+  }
+
+  private static Path takeoverMarker(Path lease, String token) {
+    return lease.resolveSibling(
+        lease.getFileName() + ".takeover-" + Hashing.murmur3_128().hashString(token, UTF_8));
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.RefEvent;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.File;
+import java.io.IOException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+public class FetchSubscriptionTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File localDir;
+  private URIish uri;
+  private TestSource test;
+  // Run when the fetch in flight opens the local repository, before reading the source refs.
+  private Runnable whileInFlight;
+  private boolean failInFlight;
+
+  @Before
+  public void setUp() throws Exception {
+    File sourceDir = new File(tempFolder.getRoot(), "source/" + PROJECT.get() + Constants.DOT_GIT);
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository source = FileRepositoryBuilder.create(sourceDir)) {
+      source.create(true);
+      setRef(source, MASTER, commit(source, null));
+    }
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+    }
+    uri = new URIish("file://" + sourceDir.getAbsolutePath());
+
+    GitRepositoryManager gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT)).thenAnswer(invocation -> openLocal());
+    test =
+        new TestSource(
+            TestSource.config(
+                "file://" + tempFolder.getRoot().getAbsolutePath() + "/source/${name}.git"),
+            gitManager,
+            mock(LocalRepositoryCreator.class));
+  }
+
+  @Test
+  public void shouldNotifyStateSubscribedToFetchInFlight() throws Exception {
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    whileInFlight =
+        () -> {
+          test.source.schedule(PROJECT, MASTER, uri, new ReplicationState(processing));
+          assertThat(test.source.getQueueInfo().pending).isEmpty();
+        };
+
+    test.pool.runTasks();
+
+    assertThat(whileInFlight).isNull();
+    assertThat(test.source.getQueueInfo().pending).isEmpty();
+    verifySucceeded(processing);
+    assertThat(test.errors).isEmpty();
+  }
+
+  @Test
+  public void shouldScheduleFetchForStatesSubscribedToFailedFetch() throws Exception {
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    whileInFlight =
+        () -> test.source.schedule(PROJECT, MASTER, uri, new ReplicationState(processing));
+    failInFlight = true;
+
+    test.pool.runTasks();
+
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+    assertThat(op.getRefs()).containsExactly(MASTER);
+    assertThat(scheduledEvents()).isEqualTo(2);
+
+    test.pool.runTasks();
+
+    verifySucceeded(processing);
+  }
+
+  private Repository openLocal() throws IOException {
+    Runnable hook = whileInFlight;
+    if (hook != null) {
+      whileInFlight = null;
+      hook.run();
+      if (failInFlight) {
+        throw new IOException("local repository not available");
+      }
+    }
+    return new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build();
+  }
+
+  private long scheduledEvents() throws Exception {
+    ArgumentCaptor<RefEvent> events = ArgumentCaptor.forClass(RefEvent.class);
+    verify(test.eventDispatcher, atLeastOnce())
+        .postEvent(eq(BranchNameKey.create(PROJECT, MASTER)), events.capture());
+    return events.getAllValues().stream()
+        .filter(e -> e instanceof FetchReplicationScheduledEvent)
+        .count();
+  }
+
+  private void verifySucceeded(FetchResultProcessing processing) {
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(MASTER),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.SUCCEEDED),
+            any(RefUpdate.Result.class));
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
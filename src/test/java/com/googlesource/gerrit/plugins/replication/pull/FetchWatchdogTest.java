@@ -0,0 +1,168 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FetchWatchdogTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private ServerSocket silentSource;
+  private final List<Socket> connections = new ArrayList<>();
+  private Thread acceptor;
+  private URIish uri;
+  private TestSource test;
+
+  @Before
+  public void setUp() throws Exception {
+    File localDir = new File(tempFolder.getRoot(), PROJECT.get() + Constants.DOT_GIT);
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+    }
+    GitRepositoryManager gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation ->
+                new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build());
+
+    // Source accepting the connections of the fetches, and never answering them.
+    silentSource = new ServerSocket(0);
+    acceptor = new Thread(this::acceptConnections);
+    acceptor.start();
+
+    String url = "git://localhost:" + silentSource.getLocalPort() + "/${name}.git";
+    uri = new URIish("git://localhost:" + silentSource.getLocalPort() + "/someProject.git");
+    Config cfg = TestSource.config(url);
+    cfg.setString("remote", TestSource.REMOTE_NAME, "fetchStallTimeout", "1s");
+    test = new TestSource(cfg, gitManager, mock(LocalRepositoryCreator.class));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    silentSource.close();
+    acceptor.join();
+    closeConnections();
+  }
+
+  @Test
+  public void shouldRescheduleStalledFetchOnceItReturns() throws Exception {
+    ReplicationState state = new ReplicationState(mock(FetchResultProcessing.class));
+    test.source.schedule(PROJECT, MASTER, uri, state);
+    List<TestSource.ScheduledTask> tasks = test.pool.takeTasks();
+    assertThat(tasks).hasSize(1);
+    FetchOne op = test.source.materialize((PendingFetch) tasks.get(0).command);
+    Thread fetch = new Thread(op);
+    fetch.start();
+    waitUntilStalled(op);
+
+    test.source.abortStalledFetches();
+
+    // The stalled fetch keeps its runway and its states until it returns.
+    Source.QueueInfo queue = test.source.getQueueInfo();
+    assertThat(queue.inFlight.get(uri)).isSameInstanceAs(op);
+    assertThat(queue.pending).isEmpty();
+    assertThat(op.getStates().values()).containsExactly(state);
+    assertThat(test.pool.getTasks()).isEmpty();
+
+    // The connection cannot be closed while reading the advertised refs: the source fails it.
+    answerConnections("zzzz");
+    fetch.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(fetch.isAlive()).isFalse();
+
+    queue = test.source.getQueueInfo();
+    assertThat(queue.inFlight).isEmpty();
+    assertThat(queue.pending.get(uri)).isSameInstanceAs(op);
+    assertThat(op.isRetrying()).isTrue();
+    assertThat(op.getStates().values()).containsExactly(state);
+    tasks = test.pool.getTasks();
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).command).isSameInstanceAs(op);
+    assertThat(tasks.get(0).delayMillis).isEqualTo(60_000);
+  }
+
+  private void waitUntilConnected(FetchOne op) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!op.isStalled(0)) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private void waitUntilStalled(FetchOne op) throws InterruptedException {
+    waitUntilConnected(op);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!op.isStalled(TimeUnit.SECONDS.toNanos(1))) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(100);
+    }
+  }
+
+  private void acceptConnections() {
+    try {
+      while (true) {
+        Socket connection = silentSource.accept();
+        synchronized (connections) {
+          connections.add(connection);
+        }
+      }
+    } catch (IOException e) {
+      // Closed by the test.
+    }
+  }
+
+  private void answerConnections(String answer) throws IOException {
+    synchronized (connections) {
+      for (Socket connection : connections) {
+        connection.getOutputStream().write(answer.getBytes(UTF_8));
+        connection.getOutputStream().flush();
+      }
+    }
+  }
+
+  private void closeConnections() throws IOException {
+    synchronized (connections) {
+      for (Socket connection : connections) {
+        connection.close();
+      }
+      connections.clear();
+    }
+  }
+}
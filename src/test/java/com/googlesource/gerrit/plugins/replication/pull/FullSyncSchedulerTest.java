@@ -0,0 +1,128 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.project.ProjectCache;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+public class FullSyncSchedulerTest {
+  private static final String REMOTE = "test";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Source source;
+  private Path cursor;
+  private FullSyncScheduler scheduler;
+
+  @Before
+  public void setUp() throws Exception {
+    source = mock(Source.class);
+    when(source.getRemoteConfigName()).thenReturn(REMOTE);
+    // Always within one of the windows, and due at every check.
+    when(source.getFullSyncWindows())
+        .thenReturn(
+            ImmutableList.of(
+                FullSyncWindow.parse("00:00-12:00"), FullSyncWindow.parse("12:00-00:00")));
+    when(source.getFullSyncInterval()).thenReturn(0L);
+    when(source.getFullSyncProjects()).thenReturn(2);
+    when(source.wouldFetchProject(any(Project.NameKey.class))).thenReturn(true);
+    when(source.isFetchingAny(anySet())).thenReturn(true);
+
+    ProjectCache projectCache = mock(ProjectCache.class);
+    when(projectCache.all())
+        .thenReturn(
+            ImmutableSortedSet.of(
+                Project.nameKey("p1"), Project.nameKey("p2"), Project.nameKey("p3")));
+    SourcesCollection sources = mock(SourcesCollection.class);
+    when(sources.getAll()).thenReturn(ImmutableList.of(source));
+
+    Path pluginData = tempFolder.getRoot().toPath();
+    cursor = pluginData.resolve("full-sync").resolve(REMOTE);
+    scheduler =
+        new FullSyncScheduler(
+            null,
+            sources,
+            projectCache,
+            ReplicationState::new,
+            DynamicItem.itemOf(EventDispatcher.class, mock(EventDispatcher.class)),
+            pluginData);
+  }
+
+  @Test
+  public void shouldSaveCursorOnceFetchesAreCompleted() throws Exception {
+    scheduler.run();
+    assertThat(scheduledProjects()).containsExactly("p1", "p2").inOrder();
+    assertThat(Files.exists(cursor)).isFalse();
+
+    // Still fetching: neither saved nor scheduling the next projects.
+    scheduler.run();
+    assertThat(scheduledProjects()).containsExactly("p1", "p2").inOrder();
+    assertThat(Files.exists(cursor)).isFalse();
+    verify(source).isFetchingAny(ImmutableSet.of(Project.nameKey("p1"), Project.nameKey("p2")));
+
+    when(source.isFetchingAny(anySet())).thenReturn(false);
+    scheduler.run();
+    assertThat(new String(Files.readAllBytes(cursor), UTF_8)).isEqualTo("p2");
+    assertThat(scheduledProjects()).containsExactly("p1", "p2", "p3").inOrder();
+
+    // The last projects start the sweep over once fetched.
+    scheduler.run();
+    assertThat(Files.exists(cursor)).isFalse();
+  }
+
+  @Test
+  public void shouldResumeFromSavedCursor() throws Exception {
+    Files.createDirectories(cursor.getParent());
+    Files.write(cursor, "p1".getBytes(UTF_8));
+
+    scheduler.run();
+
+    assertThat(scheduledProjects()).containsExactly("p2", "p3").inOrder();
+    assertThat(new String(Files.readAllBytes(cursor), UTF_8)).isEqualTo("p1");
+  }
+
+  private List<String> scheduledProjects() {
+    ArgumentCaptor<Project.NameKey> projects = ArgumentCaptor.forClass(Project.NameKey.class);
+    verify(source, atLeast(0)).getURIs(projects.capture(), any());
+    List<String> names = new ArrayList<>();
+    for (Project.NameKey p : projects.getAllValues()) {
+      names.add(p.get());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import org.junit.Test;
+
+public class FullSyncWindowTest {
+  // 2020-06-01 is a Monday.
+  private static ZonedDateTime at(int dayOfJune, int hour, int minute) {
+    return ZonedDateTime.of(2020, 6, dayOfJune, hour, minute, 0, 0, ZoneOffset.UTC);
+  }
+
+  @Test
+  public void shouldContainTimesWithinWindowOfEveryDay() {
+    FullSyncWindow window = FullSyncWindow.parse("09:00-17:30");
+
+    assertThat(window.contains(at(1, 9, 0))).isTrue();
+    assertThat(window.contains(at(6, 17, 29))).isTrue();
+    assertThat(window.contains(at(7, 12, 0))).isTrue();
+    assertThat(window.contains(at(1, 8, 59))).isFalse();
+    assertThat(window.contains(at(1, 17, 30))).isFalse();
+  }
+
+  @Test
+  public void shouldSpanMidnightWhenEndingBeforeStarting() {
+    FullSyncWindow window = FullSyncWindow.parse("22:00-06:00");
+
+    assertThat(window.contains(at(1, 22, 0))).isTrue();
+    assertThat(window.contains(at(1, 23, 59))).isTrue();
+    assertThat(window.contains(at(2, 0, 0))).isTrue();
+    assertThat(window.contains(at(2, 5, 59))).isTrue();
+    assertThat(window.contains(at(2, 6, 0))).isFalse();
+    assertThat(window.contains(at(2, 21, 59))).isFalse();
+  }
+
+  @Test
+  public void shouldBelongToDayItStartsWhenSpanningMidnight() {
+    // Friday night to Saturday morning, but not Saturday night.
+    FullSyncWindow window = FullSyncWindow.parse("Fri 22:00-06:00");
+
+    assertThat(window.contains(at(5, 23, 0))).isTrue();
+    assertThat(window.contains(at(6, 5, 0))).isTrue();
+    assertThat(window.contains(at(6, 23, 0))).isFalse();
+    assertThat(window.contains(at(5, 5, 0))).isFalse();
+    assertThat(window.contains(at(7, 5, 0))).isFalse();
+  }
+
+  @Test
+  public void shouldContainDaysOfRangesAndLists() {
+    FullSyncWindow window = FullSyncWindow.parse("Mon-Wed,Sun 10:00-11:00");
+
+    assertThat(window.contains(at(1, 10, 30))).isTrue();
+    assertThat(window.contains(at(2, 10, 30))).isTrue();
+    assertThat(window.contains(at(3, 10, 30))).isTrue();
+    assertThat(window.contains(at(4, 10, 30))).isFalse();
+    assertThat(window.contains(at(6, 10, 30))).isFalse();
+    assertThat(window.contains(at(7, 10, 30))).isTrue();
+  }
+
+  @Test
+  public void shouldWrapDayRangesAroundEndOfWeek() {
+    FullSyncWindow window = FullSyncWindow.parse("sat-mon 10:00-11:00");
+
+    assertThat(window.contains(at(6, 10, 30))).isTrue();
+    assertThat(window.contains(at(7, 10, 30))).isTrue();
+    assertThat(window.contains(at(1, 10, 30))).isTrue();
+    assertThat(window.contains(at(2, 10, 30))).isFalse();
+    assertThat(window.contains(at(5, 10, 30))).isFalse();
+  }
+
+  @Test
+  public void shouldRejectInvalidWindows() {
+    for (String invalid :
+        new String[] {
+          "",
+          "10:00",
+          "Mon 10:00",
+          "Mon Tue 10:00-11:00",
+          "Xyz 10:00-11:00",
+          "Mon-Tue-Wed 10:00-11:00",
+          "25:00-26:00"
+        }) {
+      try {
+        FullSyncWindow.parse(invalid);
+        throw new AssertionError("expected " + invalid + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,266 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.googlesource.gerrit.plugins.replication.ReplicationFileBasedConfig;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalRepositoryCreatorTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final Project.NameKey OTHER_PROJECT = Project.nameKey("otherProject");
+
+  private GitRepositoryManager gitManager;
+  private ProjectCache projectCache;
+  private TestSource.ManualExecutor defaultQueue;
+  private LocalRepositoryCreator creator;
+
+  @Before
+  public void setUp() throws Exception {
+    gitManager = mock(GitRepositoryManager.class);
+    projectCache = mock(ProjectCache.class);
+    defaultQueue = new TestSource.ManualExecutor();
+    creator = newCreator(new Config());
+  }
+
+  private LocalRepositoryCreator newCreator(Config cfg) {
+    FileBasedConfig fileConfig = new FileBasedConfig(cfg, null, FS.DETECTED);
+    ReplicationFileBasedConfig replicationConfig = mock(ReplicationFileBasedConfig.class);
+    when(replicationConfig.getConfig()).thenReturn(fileConfig);
+    WorkQueue workQueue = mock(WorkQueue.class);
+    when(workQueue.getDefaultQueue()).thenReturn(defaultQueue);
+    return new LocalRepositoryCreator(replicationConfig, gitManager, projectCache, workQueue);
+  }
+
+  @Test
+  public void shouldCreateMissingRepository() throws Exception {
+    when(gitManager.openRepository(PROJECT)).thenThrow(new RepositoryNotFoundException("missing"));
+    when(gitManager.createRepository(PROJECT)).thenReturn(mock(Repository.class));
+
+    ListenableFuture<Void> created = creator.enqueue(PROJECT);
+    assertThat(created.isDone()).isFalse();
+    defaultQueue.runTasks();
+
+    assertThat(created.isDone()).isTrue();
+    created.get();
+    verify(projectCache).onCreateProject(PROJECT);
+  }
+
+  @Test
+  public void shouldNotCreateExistingRepository() throws Exception {
+    when(gitManager.openRepository(PROJECT)).thenReturn(mock(Repository.class));
+
+    ListenableFuture<Void> created = creator.enqueue(PROJECT);
+    defaultQueue.runTasks();
+
+    created.get();
+    verify(gitManager, never()).createRepository(PROJECT);
+  }
+
+  @Test
+  public void shouldFailFutureWhenRepositoryCannotBeCreated() throws Exception {
+    when(gitManager.openRepository(PROJECT)).thenThrow(new RepositoryNotFoundException("missing"));
+    when(gitManager.createRepository(PROJECT)).thenThrow(new IOException("disk full"));
+
+    ListenableFuture<Void> created = creator.enqueue(PROJECT);
+    defaultQueue.runTasks();
+
+    assertThat(created.isDone()).isTrue();
+    try {
+      created.get();
+      throw new AssertionError("expected the creation to fail");
+    } catch (ExecutionException e) {
+      assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+    }
+  }
+
+  @Test
+  public void shouldQueueProjectOnlyOnce() throws Exception {
+    when(gitManager.openRepository(PROJECT)).thenThrow(new RepositoryNotFoundException("missing"));
+    when(gitManager.createRepository(PROJECT)).thenReturn(mock(Repository.class));
+
+    ListenableFuture<Void> first = creator.enqueue(PROJECT);
+    ListenableFuture<Void> second = creator.enqueue(PROJECT);
+
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(defaultQueue.getTasks()).hasSize(1);
+    defaultQueue.runTasks();
+    verify(gitManager, times(1)).createRepository(PROJECT);
+  }
+
+  @Test
+  public void shouldCreateRepositoriesInBatches() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("replication", null, "repositoryCreationBatchSize", 1);
+    creator = newCreator(cfg);
+    when(gitManager.openRepository(any(Project.NameKey.class)))
+        .thenThrow(new RepositoryNotFoundException("missing"));
+    when(gitManager.createRepository(any(Project.NameKey.class)))
+        .thenReturn(mock(Repository.class));
+
+    ListenableFuture<Void> first = creator.enqueue(PROJECT);
+    ListenableFuture<Void> second = creator.enqueue(OTHER_PROJECT);
+    defaultQueue.runTasks();
+
+    assertThat(first.isDone()).isTrue();
+    assertThat(second.isDone()).isFalse();
+    assertThat(defaultQueue.getTasks()).hasSize(1);
+    defaultQueue.runTasks();
+    assertThat(second.isDone()).isTrue();
+  }
+
+  @Test
+  public void shouldFetchAsSoonAsRepositoryIsCreated() throws Exception {
+    Config cfg = TestSource.config("file:///nonexistent/${name}.git");
+    when(gitManager.openRepository(PROJECT)).thenThrow(new RepositoryNotFoundException("missing"));
+    SettableFuture<Void> created = SettableFuture.create();
+    LocalRepositoryCreator mockCreator = mock(LocalRepositoryCreator.class);
+    when(mockCreator.enqueue(PROJECT)).thenReturn(created);
+    TestSource test = new TestSource(cfg, gitManager, mockCreator);
+    URIish uri = new URIish("file:///nonexistent/someProject.git");
+
+    test.source.schedule(PROJECT, "refs/heads/master", uri, newState());
+    test.pool.runTasks();
+
+    verify(mockCreator).enqueue(PROJECT);
+    assertThat(test.pool.getTasks()).isEmpty();
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+    assertThat(op).isNotNull();
+
+    created.set(null);
+
+    List<TestSource.ScheduledTask> tasks = test.pool.getTasks();
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).command).isSameInstanceAs(op);
+    assertThat(tasks.get(0).delayMillis).isEqualTo(0);
+    assertThat(op.isRetrying()).isFalse();
+    verify(test.eventDispatcher, never())
+        .postEvent(any(BranchNameKey.class), isA(FetchRefReplicatedEvent.class));
+    verify(test.eventDispatcher, times(1))
+        .postEvent(
+            eq(BranchNameKey.create(PROJECT, "refs/heads/master")),
+            isA(FetchReplicationScheduledEvent.class));
+  }
+
+  @Test
+  public void shouldRetryWhenRepositoryCannotBeCreated() throws Exception {
+    Config cfg = TestSource.config("file:///nonexistent/${name}.git");
+    when(gitManager.openRepository(PROJECT)).thenThrow(new RepositoryNotFoundException("missing"));
+    SettableFuture<Void> created = SettableFuture.create();
+    LocalRepositoryCreator mockCreator = mock(LocalRepositoryCreator.class);
+    when(mockCreator.enqueue(PROJECT)).thenReturn(created);
+    TestSource test = new TestSource(cfg, gitManager, mockCreator);
+    URIish uri = new URIish("file:///nonexistent/someProject.git");
+
+    test.source.schedule(PROJECT, "refs/heads/master", uri, newState());
+    test.pool.runTasks();
+    created.setException(new IOException("disk full"));
+
+    List<TestSource.ScheduledTask> tasks = test.pool.getTasks();
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).delayMillis).isEqualTo(60_000);
+    assertThat(test.source.getQueueInfo().pending.get(uri).isRetrying()).isTrue();
+  }
+
+  @Test
+  public void shouldScheduleFetchOnceFinishedWhenRepositoryIsCreatedStraightAway()
+      throws Exception {
+    Config cfg = TestSource.config("file:///nonexistent/${name}.git");
+    when(gitManager.openRepository(PROJECT)).thenThrow(new RepositoryNotFoundException("missing"));
+    LocalRepositoryCreator mockCreator = mock(LocalRepositoryCreator.class);
+    when(mockCreator.enqueue(PROJECT)).thenReturn(Futures.immediateFuture(null));
+    TestSource test = new TestSource(cfg, gitManager, mockCreator);
+    URIish uri = new URIish("file:///nonexistent/someProject.git");
+
+    test.source.schedule(PROJECT, "refs/heads/master", uri, newState());
+    test.pool.runTasks();
+
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+    assertThat(test.source.getQueueInfo().inFlight).isEmpty();
+    List<TestSource.ScheduledTask> tasks = test.pool.getTasks();
+    assertThat(tasks).hasSize(1);
+    assertThat(tasks.get(0).command).isSameInstanceAs(op);
+    assertThat(tasks.get(0).delayMillis).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldOverflowFetchOfMissingRepositoryWhenPendingIsFull() throws Exception {
+    Config cfg = TestSource.config("file:///nonexistent/${name}.git");
+    cfg.setInt("remote", TestSource.REMOTE_NAME, "maxPendingFetches", 1);
+    URIish uri = new URIish("file:///nonexistent/someProject.git");
+    URIish otherUri = new URIish("file:///nonexistent/otherProject.git");
+    SettableFuture<Void> created = SettableFuture.create();
+    LocalRepositoryCreator mockCreator = mock(LocalRepositoryCreator.class);
+    when(mockCreator.enqueue(PROJECT)).thenReturn(created);
+    TestSource test = new TestSource(cfg, gitManager, mockCreator);
+    // Another fetch takes the room left in pending while the repository is found missing.
+    when(gitManager.openRepository(PROJECT))
+        .thenAnswer(
+            invocation -> {
+              test.source.schedule(OTHER_PROJECT, "refs/heads/master", otherUri, newState());
+              throw new RepositoryNotFoundException("missing");
+            });
+    FetchResultProcessing processing = mock(FetchResultProcessing.class);
+    test.source.schedule(PROJECT, "refs/heads/master", uri, new ReplicationState(processing));
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+
+    test.pool.runTasks();
+    created.set(null);
+
+    verify(mockCreator).enqueue(PROJECT);
+    assertThat(test.source.getQueueInfo().pending.keySet()).containsExactly(otherUri);
+    assertThat(test.source.getOverflowSize()).isEqualTo(1);
+    assertThat(test.pool.getTasks()).hasSize(1);
+
+    test.source.getQueueInfo().pending.get(otherUri).cancel();
+
+    PendingFetch next = test.source.getQueueInfo().pending.get(uri);
+    assertThat(next).isNotSameInstanceAs(op);
+    assertThat(next.getRefs()).containsExactly(FetchOne.ALL_REFS);
+    assertThat(next.getStates().values()).hasSize(1);
+    assertThat(op.getStates().isEmpty()).isTrue();
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
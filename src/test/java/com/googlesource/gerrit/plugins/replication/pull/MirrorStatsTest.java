@@ -0,0 +1,96 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MirrorStatsTest {
+  private static final String FAST = "ssh://fast/${name}.git";
+  private static final String SLOW = "ssh://slow/${name}.git";
+  private static final String NEW = "ssh://new/${name}.git";
+
+  private MirrorStats stats;
+
+  @Before
+  public void setUp() {
+    stats = new MirrorStats();
+  }
+
+  @Test
+  public void shouldRankFasterMirrorFirst() {
+    stats.recordSuccess(SLOW, 1000);
+    stats.recordSuccess(FAST, 100);
+
+    assertThat(stats.rank(ImmutableList.of(SLOW, FAST))).containsExactly(FAST, SLOW).inOrder();
+  }
+
+  @Test
+  public void shouldRankUnmeasuredMirrorFirst() {
+    stats.recordSuccess(FAST, 100);
+
+    assertThat(stats.rank(ImmutableList.of(FAST, NEW))).containsExactly(NEW, FAST).inOrder();
+  }
+
+  @Test
+  public void shouldRankFailingMirrorLast() {
+    stats.recordSuccess(SLOW, 1000);
+    stats.recordSuccess(FAST, 100);
+    stats.recordFailure(FAST);
+    stats.recordFailure(FAST);
+
+    assertThat(stats.rank(ImmutableList.of(FAST, SLOW))).containsExactly(SLOW, FAST).inOrder();
+  }
+
+  @Test
+  public void shouldRankLosingMirrorAfterWinner() {
+    stats.recordSuccess(FAST, 100);
+    stats.recordAborted(SLOW, 150);
+
+    assertThat(stats.rank(ImmutableList.of(SLOW, FAST))).containsExactly(FAST, SLOW).inOrder();
+  }
+
+  @Test
+  public void shouldRankMirrorThatKeepsLosingAfterUnmeasuredOne() {
+    stats.recordSuccess(FAST, 100);
+    stats.recordAborted(SLOW, 150);
+    stats.recordAborted(SLOW, 120);
+
+    assertThat(stats.rank(ImmutableList.of(SLOW, NEW, FAST)))
+        .containsExactly(NEW, FAST, SLOW)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldNotComputePercentileWithoutEnoughSamples() {
+    stats.recordSuccess(FAST, 100);
+
+    assertThat(stats.latencyPercentile(FAST, 90).isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldComputeLatencyPercentile() {
+    for (int i = 1; i <= 100; i++) {
+      stats.recordSuccess(FAST, i);
+    }
+
+    // Only the most recent samples are kept.
+    assertThat(stats.latencyPercentile(FAST, 50).getAsLong()).isEqualTo(68);
+    assertThat(stats.latencyPercentile(FAST, 100).getAsLong()).isEqualTo(100);
+  }
+}
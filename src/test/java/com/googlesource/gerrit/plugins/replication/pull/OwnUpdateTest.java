@@ -0,0 +1,85 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.INSTANCE_ID;
+import static org.mockito.Mockito.mock;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OwnUpdateTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+  private static final String OTHER_INSTANCE = "other-instance";
+
+  private URIish uri;
+  private TestSource test;
+
+  @Before
+  public void setUp() throws Exception {
+    uri = new URIish("file:///source/someProject.git");
+    Config cfg = TestSource.config("file:///source/${name}.git");
+    cfg.setString("remote", TestSource.REMOTE_NAME, "fetchFreshnessTtl", "1m");
+    test =
+        new TestSource(cfg, mock(GitRepositoryManager.class), mock(LocalRepositoryCreator.class));
+  }
+
+  @Test
+  public void shouldSkipRefsUpdatedByThisInstance() {
+    test.source.schedule(PROJECT, MASTER, uri, newState(), false, INSTANCE_ID);
+    test.source.scheduleDeletion(PROJECT, MASTER, uri, newState(), false, INSTANCE_ID);
+    test.source.scheduleFromMirrors(PROJECT, MASTER, null, newState(), false, INSTANCE_ID);
+
+    assertThat(test.source.getQueueInfo().pending).isEmpty();
+    assertThat(test.pool.getTasks()).isEmpty();
+  }
+
+  @Test
+  public void shouldFetchRefsUpdatedByOtherInstances() {
+    test.source.schedule(PROJECT, MASTER, uri, newState(), false, OTHER_INSTANCE);
+
+    PendingFetch op = test.source.getQueueInfo().pending.get(uri);
+    assertThat(op.getRefs()).containsExactly(MASTER);
+    assertThat(test.pool.getTasks()).hasSize(1);
+  }
+
+  @Test
+  public void shouldFetchRefsOfUnknownOrigin() {
+    test.source.scheduleFromMirrors(PROJECT, MASTER, null, newState(), false, null);
+
+    assertThat(test.source.getQueueInfo().pending.get(uri).getRefs()).containsExactly(MASTER);
+  }
+
+  @Test
+  public void shouldNotReuseFreshFetchForOwnUpdates() {
+    test.source.schedule(PROJECT, FetchOne.ALL_REFS, uri, newState());
+    FetchOne op = test.dueFetch(uri);
+    assertThat(test.source.requestRunway(op)).isTrue();
+
+    assertThat(test.source.reuseFreshFetch(PROJECT, uri, newState(), INSTANCE_ID)).isFalse();
+    assertThat(test.source.reuseFreshFetch(PROJECT, uri, newState(), OTHER_INSTANCE)).isTrue();
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
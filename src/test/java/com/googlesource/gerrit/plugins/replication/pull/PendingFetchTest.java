@@ -0,0 +1,104 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.Iterables;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingFetchTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+  private static final String FEATURE = Constants.R_HEADS + "feature";
+
+  private URIish uri;
+  private TestSource test;
+
+  @Before
+  public void setUp() throws Exception {
+    uri = new URIish("file:///source/someProject.git");
+    test =
+        new TestSource(
+            TestSource.config("file:///source/${name}.git"),
+            mock(GitRepositoryManager.class),
+            mock(LocalRepositoryCreator.class));
+  }
+
+  @Test
+  public void shouldMergeEventsIntoPendingRecord() {
+    ReplicationState master = newState();
+    ReplicationState feature = newState();
+    test.source.schedule(PROJECT, MASTER, uri, master);
+    test.source.schedule(PROJECT, FEATURE, uri, feature);
+
+    PendingFetch e = test.source.getQueueInfo().pending.get(uri);
+    assertThat(e).isNotInstanceOf(FetchOne.class);
+    assertThat(e.getRefs()).containsExactly(MASTER, FEATURE);
+    assertThat(e.getStates().get(MASTER)).containsExactly(master);
+    assertThat(e.getStates().get(FEATURE)).containsExactly(feature);
+    assertThat(Iterables.getOnlyElement(test.pool.getTasks()).command).isSameInstanceAs(e);
+  }
+
+  @Test
+  public void shouldTurnIntoFetchOperationOnceDue() {
+    ReplicationState state = newState();
+    test.source.schedule(PROJECT, MASTER, uri, state);
+    PendingFetch e = test.source.getQueueInfo().pending.get(uri);
+
+    FetchOne op = test.source.materialize(e);
+
+    assertThat(op.toString()).isEqualTo(e.toString());
+    assertThat(op.getProjectNameKey()).isEqualTo(PROJECT);
+    assertThat(op.getRefs()).containsExactly(MASTER);
+    assertThat(op.getStates().get(MASTER)).containsExactly(state);
+    assertThat(e.getStates().isEmpty()).isTrue();
+    assertThat(test.source.getQueueInfo().pending.get(uri)).isSameInstanceAs(op);
+    assertThat(test.source.materialize(op)).isSameInstanceAs(op);
+  }
+
+  @Test
+  public void shouldRemoveCanceledRecord() {
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    PendingFetch e = test.source.getQueueInfo().pending.get(uri);
+
+    e.cancel();
+
+    assertThat(e.wasCanceled()).isTrue();
+    assertThat(test.source.getQueueInfo().pending).isEmpty();
+  }
+
+  @Test
+  public void shouldCancelFetchOperationOfRecord() {
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    PendingFetch e = test.source.getQueueInfo().pending.get(uri);
+    FetchOne op = test.source.materialize(e);
+
+    e.cancel();
+
+    assertThat(op.wasCanceled()).isTrue();
+    assertThat(test.source.getQueueInfo().pending).isEmpty();
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingOverflowTest {
+  private static final String URL = "file:///source/${name}.git";
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final Project.NameKey OTHER = Project.nameKey("otherProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+  private static final String FEATURE = Constants.R_HEADS + "feature";
+
+  private URIish uri;
+  private URIish otherUri;
+  private Config cfg;
+
+  @Before
+  public void setUp() throws Exception {
+    uri = new URIish("file:///source/someProject.git");
+    otherUri = new URIish("file:///source/otherProject.git");
+    cfg = TestSource.config(URL);
+    cfg.setInt("remote", TestSource.REMOTE_NAME, "maxPendingFetches", 1);
+  }
+
+  @Test
+  public void shouldCollapseRefsAndKeepDeletionsAndStates() throws Exception {
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    ReplicationState updated = newState();
+    ReplicationState deleted = newState();
+
+    test.source.schedule(OTHER, MASTER, otherUri, updated);
+    test.source.scheduleDeletion(OTHER, FEATURE, otherUri, deleted);
+
+    assertThat(test.source.getOverflowSize()).isEqualTo(1);
+    assertThat(test.source.getQueueInfo().pending.keySet()).containsExactly(uri);
+
+    test.source.getQueueInfo().pending.get(uri).cancel();
+
+    assertThat(test.source.getOverflowSize()).isEqualTo(0);
+    PendingFetch op = test.source.getQueueInfo().pending.get(otherUri);
+    assertThat(op.getRefs()).containsExactly(FetchOne.ALL_REFS);
+    assertThat(op.getDeletedRefs()).containsExactly(FEATURE);
+    assertThat(op.getStates().get(MASTER)).containsExactly(updated);
+    assertThat(op.getStates().get(FEATURE)).containsExactly(deleted);
+  }
+
+  @Test
+  public void shouldNotFetchAllRefsForCollapsedDeletions() throws Exception {
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    test.source.scheduleDeletion(OTHER, FEATURE, otherUri, newState());
+
+    test.source.getQueueInfo().pending.get(uri).cancel();
+
+    PendingFetch op = test.source.getQueueInfo().pending.get(otherUri);
+    assertThat(op.getRefs()).isEmpty();
+    assertThat(op.getDeletedRefs()).containsExactly(FEATURE);
+  }
+
+  @Test
+  public void shouldBlockUntilThereIsRoom() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "pendingOverflow", "block");
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    ReplicationState state = newState();
+    Thread caller = new Thread(() -> test.source.schedule(OTHER, MASTER, otherUri, state));
+    caller.start();
+    waitUntilWaiting(caller);
+    assertThat(test.source.getQueueInfo().pending.keySet()).containsExactly(uri);
+
+    test.source.getQueueInfo().pending.get(uri).cancel();
+    caller.join(TimeUnit.SECONDS.toMillis(10));
+
+    assertThat(caller.isAlive()).isFalse();
+    PendingFetch op = test.source.getQueueInfo().pending.get(otherUri);
+    assertThat(op.getRefs()).containsExactly(MASTER);
+    assertThat(op.getStates().get(MASTER)).containsExactly(state);
+    assertThat(test.source.getOverflowSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldCollapseWhenBlockedForTooLong() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "pendingOverflow", "block");
+    cfg.setString("remote", TestSource.REMOTE_NAME, "pendingOverflowTimeout", "100ms");
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    ReplicationState state = newState();
+
+    test.source.schedule(OTHER, MASTER, otherUri, state);
+
+    assertThat(test.source.getOverflowSize()).isEqualTo(1);
+    test.source.getQueueInfo().pending.get(uri).cancel();
+    PendingFetch op = test.source.getQueueInfo().pending.get(otherUri);
+    assertThat(op.getRefs()).containsExactly(FetchOne.ALL_REFS);
+    assertThat(op.getStates().get(MASTER)).containsExactly(state);
+  }
+
+  @Test
+  public void shouldNeverBlockTasksOfDefaultQueue() throws Exception {
+    cfg.setString("remote", TestSource.REMOTE_NAME, "pendingOverflow", "block");
+    cfg.setString("remote", TestSource.REMOTE_NAME, "pendingOverflowTimeout", "1h");
+    TestSource test = newSource();
+    test.source.schedule(PROJECT, MASTER, uri, newState());
+    ReplicationState state = newState();
+
+    Source.runWithoutBlocking(() -> test.source.schedule(OTHER, MASTER, otherUri, state));
+
+    assertThat(test.source.getOverflowSize()).isEqualTo(1);
+    assertThat(test.source.getQueueInfo().pending.keySet()).containsExactly(uri);
+  }
+
+  private TestSource newSource() throws Exception {
+    return new TestSource(
+        cfg, mock(GitRepositoryManager.class), mock(LocalRepositoryCreator.class));
+  }
+
+  private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (thread.getState() != Thread.State.TIMED_WAITING) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.entities.Project;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProjectAlternatesTest {
+  private static final Project.NameKey FORK = Project.nameKey("group/fork");
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File basePath;
+  private File forkDir;
+
+  @Before
+  public void setUp() throws Exception {
+    basePath = tempFolder.newFolder("git");
+    forkDir = new File(basePath, FORK.get() + Constants.DOT_GIT);
+    try (Repository fork = FileRepositoryBuilder.create(forkDir)) {
+      fork.create(true);
+    }
+  }
+
+  @Test
+  public void shouldHaveNoAlternatesByDefault() throws Exception {
+    assertThat(alternates()).isEmpty();
+  }
+
+  @Test
+  public void shouldMapRelativeAlternatesToProjects() throws Exception {
+    writeAlternates("../../parent.git/objects", "../../../other/project.git/objects");
+
+    assertThat(alternates())
+        .containsExactly(Project.nameKey("group/parent"), Project.nameKey("other/project"))
+        .inOrder();
+  }
+
+  @Test
+  public void shouldMapAbsoluteAlternatesToProjects() throws Exception {
+    writeAlternates(new File(basePath, "parent.git/objects").getAbsolutePath());
+
+    assertThat(alternates()).containsExactly(Project.nameKey("parent"));
+  }
+
+  @Test
+  public void shouldMapAlternatesWithoutGitSuffix() throws Exception {
+    writeAlternates("../../parent/objects");
+
+    assertThat(alternates()).containsExactly(Project.nameKey("group/parent"));
+  }
+
+  @Test
+  public void shouldIgnoreCommentsAndEmptyLines() throws Exception {
+    writeAlternates("# shared objects", "", "../../parent.git/objects");
+
+    assertThat(alternates()).containsExactly(Project.nameKey("group/parent"));
+  }
+
+  @Test
+  public void shouldIgnoreAlternatesOutsideOfBasePath() throws Exception {
+    writeAlternates(
+        tempFolder.newFolder("elsewhere", "shared.git", "objects").getAbsolutePath(),
+        "../../../../objects");
+
+    assertThat(alternates()).isEmpty();
+  }
+
+  @Test
+  public void shouldHaveNoAlternatesWhenNotStoredOnDisk() throws Exception {
+    try (Repository git = new InMemoryRepository(new DfsRepositoryDescription(FORK.get()))) {
+      assertThat(ProjectAlternates.of(git, FORK)).isEmpty();
+    }
+  }
+
+  private void writeAlternates(String... alternates) throws Exception {
+    Path file = forkDir.toPath().resolve("objects/info/alternates");
+    Files.createDirectories(file.getParent());
+    Files.write(file, String.join("\n", alternates).concat("\n").getBytes(UTF_8));
+  }
+
+  private Iterable<Project.NameKey> alternates() throws Exception {
+    try (Repository fork = new FileRepositoryBuilder().setGitDir(forkDir).build()) {
+      return ProjectAlternates.of(fork, FORK);
+    }
+  }
+}
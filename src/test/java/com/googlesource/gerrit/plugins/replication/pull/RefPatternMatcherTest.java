@@ -0,0 +1,95 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class RefPatternMatcherTest {
+
+  @Test
+  public void shouldMatchAllRefsWithoutPatterns() {
+    RefPatternMatcher matcher = RefPatternMatcher.ALL;
+
+    assertThat(matcher.matchesAll()).isTrue();
+    assertThat(matcher.matches("refs/heads/master")).isTrue();
+  }
+
+  @Test
+  public void shouldOnlyMatchIncludedRefs() {
+    RefPatternMatcher matcher =
+        new RefPatternMatcher(
+            ImmutableList.of("refs/meta/config", "refs/heads/*"), ImmutableList.of());
+
+    assertThat(matcher.matchesAll()).isFalse();
+    assertThat(matcher.matches("refs/meta/config")).isTrue();
+    assertThat(matcher.matches("refs/heads/stable/1.0")).isTrue();
+    assertThat(matcher.matches("refs/tags/v1.0")).isFalse();
+    assertThat(matcher.matches("refs/heads")).isFalse();
+  }
+
+  @Test
+  public void shouldNotMatchExcludedRefs() {
+    RefPatternMatcher matcher =
+        new RefPatternMatcher(
+            ImmutableList.of(),
+            ImmutableList.of(
+                "refs/changes/*/meta", "refs/cache-automerge/*", "^refs/users/.*/edit"));
+
+    assertThat(matcher.matches("refs/changes/01/1/1")).isTrue();
+    assertThat(matcher.matches("refs/changes/01/1/meta")).isFalse();
+    assertThat(matcher.matches("refs/cache-automerge/ab/cdef")).isFalse();
+    assertThat(matcher.matches("refs/users/01/1000001/edit")).isFalse();
+    assertThat(matcher.matches("refs/users/01/1000001")).isTrue();
+  }
+
+  @Test
+  public void shouldExcludeFromIncludedRefs() {
+    RefPatternMatcher matcher =
+        new RefPatternMatcher(
+            ImmutableList.of("refs/changes/*"), ImmutableList.of("refs/changes/*/meta"));
+
+    assertThat(matcher.matches("refs/changes/01/1/1")).isTrue();
+    assertThat(matcher.matches("refs/changes/01/1/meta")).isFalse();
+    assertThat(matcher.matches("refs/heads/master")).isFalse();
+  }
+
+  @Test
+  public void shouldQuoteGlobs() {
+    RefPatternMatcher matcher =
+        new RefPatternMatcher(ImmutableList.of("refs/heads/v1.*-rc"), ImmutableList.of());
+
+    assertThat(matcher.matches("refs/heads/v1.0-rc")).isTrue();
+    assertThat(matcher.matches("refs/heads/v1x0-rc")).isFalse();
+  }
+
+  @Test
+  public void shouldMatchAmongManyPatterns() {
+    List<String> excludes = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      excludes.add("refs/heads/team" + i + "/*");
+      excludes.add("refs/tags/team" + i + "/*/rc");
+    }
+    RefPatternMatcher matcher = new RefPatternMatcher(ImmutableList.of(), excludes);
+
+    assertThat(matcher.matches("refs/heads/team4999/feature")).isFalse();
+    assertThat(matcher.matches("refs/tags/team42/1.0/rc")).isFalse();
+    assertThat(matcher.matches("refs/heads/team5000/feature")).isTrue();
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.commit;
+import static com.googlesource.gerrit.plugins.replication.pull.TestSource.setRef;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import java.io.File;
+import java.io.IOException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RepositoryMaintenanceTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File localDir;
+  private Config cfg;
+  private GitRepositoryManager gitManager;
+  private TestSource.ManualExecutor pool;
+
+  @Before
+  public void setUp() throws Exception {
+    localDir = new File(tempFolder.getRoot(), "local/" + PROJECT.get() + Constants.DOT_GIT);
+    try (Repository local = FileRepositoryBuilder.create(localDir)) {
+      local.create(true);
+      setRef(local, MASTER, commit(local, null));
+    }
+    cfg = new Config();
+    gitManager = mock(GitRepositoryManager.class);
+    when(gitManager.openRepository(PROJECT)).thenAnswer(invocation -> openLocal());
+    pool = new TestSource.ManualExecutor();
+  }
+
+  @Test
+  public void shouldNotQueueMaintenanceWhenDisabled() {
+    RepositoryMaintenance maintenance = start();
+
+    for (int i = 0; i < 10; i++) {
+      maintenance.recordFetch(PROJECT, true);
+    }
+
+    assertThat(maintenance.isEnabled()).isFalse();
+    assertThat(pool.getTasks()).isEmpty();
+  }
+
+  @Test
+  public void shouldPackRefsOnceFetchThresholdIsReached() throws Exception {
+    cfg.setInt("replication", null, "maintenanceFetchThreshold", 3);
+    cfg.setInt("replication", null, "maintenancePackThreshold", 10);
+    RepositoryMaintenance maintenance = start();
+
+    maintenance.recordFetch(PROJECT, true);
+    maintenance.recordFetch(PROJECT, false);
+    assertThat(pool.getTasks()).isEmpty();
+    maintenance.recordFetch(PROJECT, false);
+    assertThat(pool.getTasks()).hasSize(1);
+
+    pool.runTasks();
+
+    try (FileRepository local = openLocal()) {
+      assertThat(local.getRefDatabase().getRefs()).isNotEmpty();
+      assertThat(new File(localDir, Constants.PACKED_REFS).exists()).isTrue();
+      assertThat(local.getObjectDatabase().getPacks()).isEmpty();
+    }
+  }
+
+  @Test
+  public void shouldCollectGarbageOncePackThresholdIsReached() throws Exception {
+    cfg.setInt("replication", null, "maintenanceFetchThreshold", 10);
+    cfg.setInt("replication", null, "maintenancePackThreshold", 2);
+    RepositoryMaintenance maintenance = start();
+
+    maintenance.recordFetch(PROJECT, true);
+    maintenance.recordFetch(PROJECT, false);
+    assertThat(pool.getTasks()).isEmpty();
+    maintenance.recordFetch(PROJECT, true);
+    assertThat(pool.getTasks()).hasSize(1);
+
+    pool.runTasks();
+
+    try (FileRepository local = openLocal()) {
+      assertThat(local.getObjectDatabase().getPacks()).hasSize(1);
+    }
+  }
+
+  @Test
+  public void shouldQueueOneMaintenanceOfProjectAtATime() {
+    cfg.setInt("replication", null, "maintenanceFetchThreshold", 1);
+    RepositoryMaintenance maintenance = start();
+
+    maintenance.recordFetch(PROJECT, false);
+    maintenance.recordFetch(PROJECT, false);
+    maintenance.recordFetch(Project.nameKey("other"), false);
+    assertThat(pool.getTasks()).hasSize(2);
+
+    pool.runTasks();
+    maintenance.recordFetch(PROJECT, false);
+    assertThat(pool.getTasks()).hasSize(1);
+  }
+
+  @Test
+  public void shouldRestartCountingOnceMaintenanceIsQueued() {
+    cfg.setInt("replication", null, "maintenanceFetchThreshold", 2);
+    RepositoryMaintenance maintenance = start();
+
+    maintenance.recordFetch(PROJECT, false);
+    maintenance.recordFetch(PROJECT, false);
+    pool.runTasks();
+
+    maintenance.recordFetch(PROJECT, false);
+    assertThat(pool.getTasks()).isEmpty();
+    maintenance.recordFetch(PROJECT, false);
+    assertThat(pool.getTasks()).hasSize(1);
+  }
+
+  private RepositoryMaintenance start() {
+    WorkQueue workQueue = mock(WorkQueue.class);
+    when(workQueue.createQueue(anyInt(), anyString(), anyInt(), anyBoolean())).thenReturn(pool);
+    RepositoryMaintenance maintenance = new RepositoryMaintenance(cfg, workQueue, gitManager);
+    maintenance.start();
+    return maintenance;
+  }
+
+  private FileRepository openLocal() throws IOException {
+    return (FileRepository)
+        new FileRepositoryBuilder().setGitDir(localDir).setMustExist(true).build();
+  }
+}
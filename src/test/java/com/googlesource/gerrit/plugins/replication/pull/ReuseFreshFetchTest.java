@@ -0,0 +1,134 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReuseFreshFetchTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+
+  private URIish uri;
+  private TestSource test;
+  private FetchResultProcessing processing;
+  private ReplicationState joiner;
+
+  @Before
+  public void setUp() throws Exception {
+    uri = new URIish("file:///source/someProject.git");
+    Config cfg = TestSource.config("file:///source/${name}.git");
+    cfg.setString("remote", TestSource.REMOTE_NAME, "fetchFreshnessTtl", "1m");
+    cfg.setInt("remote", TestSource.REMOTE_NAME, "replicationMaxRetries", 1);
+    test =
+        new TestSource(cfg, mock(GitRepositoryManager.class), mock(LocalRepositoryCreator.class));
+    processing = mock(FetchResultProcessing.class);
+    joiner = new ReplicationState(processing);
+  }
+
+  @Test
+  public void shouldNotJoinWithoutFetchOfAllRefsInFlight() {
+    assertThat(test.source.reuseFreshFetch(PROJECT, uri, joiner, null)).isFalse();
+  }
+
+  @Test
+  public void shouldKeepJoinersWhileFetchIsRetried() {
+    FetchOne op = startFetchOfAllRefs();
+    assertThat(test.source.reuseFreshFetch(PROJECT, uri, joiner, null)).isTrue();
+
+    test.source.reschedule(op, Source.RetryReason.TRANSPORT_ERROR);
+    test.source.notifyFinished(op);
+
+    assertThat(test.source.getQueueInfo().pending.get(uri)).isSameInstanceAs(op);
+    verifyNotNotified();
+  }
+
+  @Test
+  public void shouldFailJoinersWhenRetryIsCanceledAfterMaxRetries() {
+    FetchOne op = startFetchOfAllRefs();
+    test.source.reuseFreshFetch(PROJECT, uri, joiner, null);
+    test.source.reschedule(op, Source.RetryReason.TRANSPORT_ERROR);
+    test.source.notifyFinished(op);
+    assertThat(test.source.requestRunway(op)).isTrue();
+
+    test.source.reschedule(op, Source.RetryReason.TRANSPORT_ERROR);
+    test.source.notifyFinished(op);
+
+    assertThat(op.wasCanceled()).isTrue();
+    verifyFailed();
+  }
+
+  @Test
+  public void shouldFailJoinersWhenRetryIsCanceled() {
+    FetchOne op = startFetchOfAllRefs();
+    test.source.reuseFreshFetch(PROJECT, uri, joiner, null);
+    test.source.reschedule(op, Source.RetryReason.TRANSPORT_ERROR);
+    test.source.notifyFinished(op);
+
+    op.cancel();
+
+    verifyFailed();
+  }
+
+  @Test
+  public void shouldHandJoinersToNextFetchOfAllRefs() {
+    FetchOne op = startFetchOfAllRefs();
+    test.source.reuseFreshFetch(PROJECT, uri, joiner, null);
+    test.source.schedule(PROJECT, FetchOne.ALL_REFS, uri, newState());
+    PendingFetch next = test.source.getQueueInfo().pending.get(uri);
+
+    test.source.notifyFinished(op);
+    verifyNotNotified();
+    next.cancel();
+
+    verifyFailed();
+  }
+
+  private FetchOne startFetchOfAllRefs() {
+    test.source.schedule(PROJECT, FetchOne.ALL_REFS, uri, newState());
+    FetchOne op = test.dueFetch(uri);
+    assertThat(test.source.requestRunway(op)).isTrue();
+    return op;
+  }
+
+  private void verifyNotNotified() {
+    verify(processing, never()).onOneProjectReplicationDone(any(), any(), any(), any(), any());
+  }
+
+  private void verifyFailed() {
+    verify(processing)
+        .onOneProjectReplicationDone(
+            eq(PROJECT.get()),
+            eq(FetchOne.ALL_REFS),
+            eq(uri),
+            eq(ReplicationState.RefFetchResult.FAILED),
+            eq(RefUpdate.Result.REJECTED_OTHER_REASON));
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}
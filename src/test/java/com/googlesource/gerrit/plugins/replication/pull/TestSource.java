@@ -0,0 +1,280 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.endsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.PluginUser;
+import com.google.gerrit.server.account.GroupBackend;
+import com.google.gerrit.server.account.GroupIncludeCache;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.googlesource.gerrit.plugins.replication.CredentialsFactory;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Source wired to mocked collaborators, whose fetches only run when a test asks for it.
+ *
+ * <p>The projects are not cached locally, as on a replica being populated with
+ * createMissingRepositories, so that their replication is not subject to any permission check.
+ */
+class TestSource {
+  static final String REMOTE_NAME = "test";
+  static final String INSTANCE_ID = "test-instance";
+
+  final Source source;
+  final FetchOne.Factory opFactory;
+  final ManualExecutor pool = new ManualExecutor();
+  final ManualExecutor backfillPool = new ManualExecutor();
+  final ManualExecutor defaultQueue = new ManualExecutor();
+  final EventDispatcher eventDispatcher = mock(EventDispatcher.class);
+  final List<Throwable> errors = new ArrayList<>();
+  final List<String> warnings = new ArrayList<>();
+  final FetchReplicationMetrics metrics;
+  final FetchAuditLog auditLog;
+
+  /**
+   * Create a source from its replication configuration.
+   *
+   * @param cfg replication configuration, with the {@link #REMOTE_NAME} remote.
+   * @param gitManager manager of the local repositories to fetch into.
+   * @param repositoryCreator creator of the missing local repositories.
+   */
+  TestSource(Config cfg, GitRepositoryManager gitManager, LocalRepositoryCreator repositoryCreator)
+      throws Exception {
+    SourceConfiguration config = new SourceConfiguration(new RemoteConfig(cfg, REMOTE_NAME), cfg);
+    DynamicSet<ReplicationStateListener> listeners = new DynamicSet<>();
+    listeners.add("test", new ErrorRecorder());
+    ReplicationStateListeners stateLog = new ReplicationStateListeners(listeners);
+    SourcesCollection sources = mock(SourcesCollection.class);
+    metrics =
+        spy(
+            new FetchReplicationMetrics(
+                "pull-replication", new DisabledMetricMaker(), () -> sources));
+    auditLog = spy(new FetchAuditLog(cfg));
+    Injector injector =
+        Guice.createInjector(
+            new AbstractModule() {
+              @Override
+              protected void configure() {
+                bind(GitRepositoryManager.class).toInstance(gitManager);
+                bind(CredentialsFactory.class).toInstance(remoteName -> null);
+                bind(ReplicationStateListeners.class).toInstance(stateLog);
+                bind(FetchReplicationMetrics.class).toInstance(metrics);
+                bind(FetchAuditLog.class).toInstance(auditLog);
+                bind(RepositoryMaintenance.class)
+                    .toInstance(new RepositoryMaintenance(cfg, null, gitManager));
+              }
+            });
+
+    PluginUser pluginUser = mock(PluginUser.class);
+    source =
+        new Source(
+            injector,
+            config,
+            pluginUser,
+            gitManager,
+            mock(PermissionBackend.class),
+            () -> (CurrentUser) pluginUser,
+            emptyProjectCache(),
+            mock(GroupBackend.class),
+            stateLog,
+            mock(GroupIncludeCache.class),
+            DynamicItem.itemOf(EventDispatcher.class, eventDispatcher),
+            repositoryCreator,
+            gerritConfig(),
+            new FetchPartitioner(cfg, null, null),
+            metrics);
+
+    WorkQueue workQueue = mock(WorkQueue.class);
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(pool);
+    when(workQueue.createQueue(anyInt(), endsWith("-backfill"))).thenReturn(backfillPool);
+    when(workQueue.getDefaultQueue()).thenReturn(defaultQueue);
+    source.start(workQueue);
+    opFactory = source.getOpFactory();
+  }
+
+  /** @return the fetch operation of the pending fetch of the URI, as when it is due. */
+  FetchOne dueFetch(URIish uri) {
+    return source.materialize(source.getQueueInfo().pending.get(uri));
+  }
+
+  private static Config gerritConfig() {
+    Config gerritConfig = new Config();
+    gerritConfig.setString("gerrit", null, "instanceId", INSTANCE_ID);
+    return gerritConfig;
+  }
+
+  /**
+   * @param urls URLs of the remote, as in {@code remote.NAME.url}.
+   * @return replication configuration of a source fetching all the refs of the remote.
+   */
+  static Config config(String... urls) {
+    Config cfg = new Config();
+    cfg.setStringList("remote", REMOTE_NAME, "url", Arrays.asList(urls));
+    cfg.setString("remote", REMOTE_NAME, "fetch", "+refs/*:refs/*");
+    cfg.setInt("remote", REMOTE_NAME, "replicationDelay", 1);
+    cfg.setInt("remote", REMOTE_NAME, "replicationRetry", 1);
+    cfg.setBoolean("remote", REMOTE_NAME, "createMissingRepositories", true);
+    return cfg;
+  }
+
+  /**
+   * Create an empty commit.
+   *
+   * @param repo repository to create the commit in.
+   * @param parent parent of the commit, null for a root commit.
+   * @return the created commit.
+   */
+  static ObjectId commit(Repository repo, ObjectId parent) throws IOException {
+    try (ObjectInserter ins = repo.newObjectInserter()) {
+      TreeFormatter tree = new TreeFormatter();
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(ins.insert(tree));
+      if (parent != null) {
+        cb.setParentId(parent);
+      }
+      PersonIdent ident = new PersonIdent("Test", "test@example.com");
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage("Test commit");
+      ObjectId id = ins.insert(cb);
+      ins.flush();
+      return id;
+    }
+  }
+
+  /** Force a ref of a repository to an object. */
+  static void setRef(Repository repo, String ref, ObjectId id) throws IOException {
+    RefUpdate u = repo.updateRef(ref);
+    u.setNewObjectId(id);
+    u.setForceUpdate(true);
+    u.update();
+  }
+
+  private static ProjectCache emptyProjectCache() {
+    return (ProjectCache)
+        Proxy.newProxyInstance(
+            ProjectCache.class.getClassLoader(),
+            new Class<?>[] {ProjectCache.class},
+            (proxy, method, args) -> method.getReturnType() == boolean.class ? false : null);
+  }
+
+  /** Records the replication errors and warnings, so that tests can check them. */
+  private class ErrorRecorder implements ReplicationStateListener {
+    @Override
+    public synchronized void warn(String msg, ReplicationState... states) {
+      warnings.add(msg);
+    }
+
+    @Override
+    public void error(String msg, ReplicationState... states) {
+      error(msg, null, states);
+    }
+
+    @Override
+    public synchronized void error(String msg, Throwable t, ReplicationState... states) {
+      errors.add(new AssertionError(msg, t));
+    }
+  }
+
+  /** Task scheduled on a {@link ManualExecutor}. */
+  static class ScheduledTask {
+    final Runnable command;
+    final long delayMillis;
+
+    ScheduledTask(Runnable command, long delayMillis) {
+      this.command = command;
+      this.delayMillis = delayMillis;
+    }
+  }
+
+  /** Executor queuing the scheduled tasks, until a test runs them. */
+  static class ManualExecutor extends ScheduledThreadPoolExecutor {
+    private final List<ScheduledTask> tasks = new ArrayList<>();
+
+    ManualExecutor() {
+      super(0);
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      tasks.add(new ScheduledTask(command, unit.toMillis(delay)));
+      return null;
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> scheduleAtFixedRate(
+        Runnable command, long initialDelay, long period, TimeUnit unit) {
+      tasks.add(new ScheduledTask(command, unit.toMillis(initialDelay)));
+      return null;
+    }
+
+    /** @return the tasks scheduled and not run yet, in the order they were scheduled. */
+    synchronized List<ScheduledTask> getTasks() {
+      return new ArrayList<>(tasks);
+    }
+
+    /**
+     * Take the tasks scheduled so far, leaving the ones they schedule in turn to later calls.
+     *
+     * @return the tasks taken.
+     */
+    synchronized List<ScheduledTask> takeTasks() {
+      List<ScheduledTask> taken = new ArrayList<>(tasks);
+      tasks.clear();
+      return taken;
+    }
+
+    /** Run the tasks scheduled so far, on the calling thread. */
+    void runTasks() {
+      for (ScheduledTask task : takeTasks()) {
+        task.command.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.replication.pull;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.ProjectRunnable;
+import com.google.gerrit.server.git.WorkQueue.CanceledWhileRunning;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the dispatch of the fetch operations, with platform threads standing in for the virtual
+ * threads on JVMs without them.
+ */
+public class VirtualThreadDispatcherTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("someProject");
+
+  private ExecutorService executor;
+  private VirtualThreadDispatcher dispatcher;
+  private CountDownLatch release;
+  private AtomicInteger running;
+  private AtomicInteger maxRunning;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+    dispatcher = new VirtualThreadDispatcher(executor, 2);
+    release = new CountDownLatch(1);
+    running = new AtomicInteger();
+    maxRunning = new AtomicInteger();
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldBoundConcurrentFetches() throws Exception {
+    FetchOne[] ops = new FetchOne[4];
+    for (int i = 0; i < ops.length; i++) {
+      ops[i] = blockingOp();
+      dispatcher.wrap(ops[i]).run();
+    }
+
+    waitForRunning(2);
+    // Give the fetches waiting for a permit the chance to start, if they could.
+    Thread.sleep(200);
+    assertThat(running.get()).isEqualTo(2);
+
+    release.countDown();
+    for (FetchOne op : ops) {
+      verify(op, timeout(5000)).run();
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(maxRunning.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldCancelFetchesWaitingForPermitOnShutdown() throws Exception {
+    FetchOne first = blockingOp();
+    FetchOne second = blockingOp();
+    FetchOne queued = blockingOp();
+    dispatcher.wrap(first).run();
+    dispatcher.wrap(second).run();
+    waitForRunning(2);
+    dispatcher.wrap(queued).run();
+
+    assertThat(dispatcher.shutdown()).isEqualTo(3);
+
+    verify(first).setCanceledWhileRunning();
+    verify(second).setCanceledWhileRunning();
+    verify(queued, timeout(5000)).cancel();
+    verify(queued, never()).run();
+  }
+
+  @Test
+  public void shouldCancelFetchesDispatchedAfterShutdown() {
+    FetchOne op = blockingOp();
+    dispatcher.shutdown();
+
+    dispatcher.wrap(op).run();
+
+    verify(op).cancel();
+    verify(op, never()).run();
+  }
+
+  @Test
+  public void shouldDelegateWorkQueueTaskToFetch() {
+    FetchOne op = mock(FetchOne.class);
+    when(op.getProjectNameKey()).thenReturn(PROJECT);
+    when(op.getRemoteName()).thenReturn(TestSource.REMOTE_NAME);
+    when(op.hasCustomizedPrint()).thenReturn(true);
+    when(op.toString()).thenReturn("fetch of someProject");
+
+    ProjectRunnable task = dispatcher.wrap(op);
+    assertThat(task.getProjectNameKey()).isEqualTo(PROJECT);
+    assertThat(task.getRemoteName()).isEqualTo(TestSource.REMOTE_NAME);
+    assertThat(task.hasCustomizedPrint()).isTrue();
+    assertThat(task.toString()).isEqualTo("fetch of someProject");
+
+    assertThat(task).isInstanceOf(CanceledWhileRunning.class);
+    ((CanceledWhileRunning) task).cancel();
+    verify(op).cancel();
+    ((CanceledWhileRunning) task).setCanceledWhileRunning();
+    verify(op).setCanceledWhileRunning();
+  }
+
+  @Test
+  public void shouldOnlyCreateDispatcherWhenVirtualThreadsAreSupported() {
+    VirtualThreadDispatcher created = VirtualThreadDispatcher.create("test", 1);
+    try {
+      assertThat(created != null).isEqualTo(supportsVirtualThreads());
+    } finally {
+      if (created != null) {
+        created.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void shouldFallBackToWorkQueueThreadsWithoutVirtualThreads() throws Exception {
+    Config cfg = TestSource.config("file:///source/${name}.git");
+    cfg.setBoolean("remote", TestSource.REMOTE_NAME, "virtualThreads", true);
+    TestSource test =
+        new TestSource(cfg, mock(GitRepositoryManager.class), mock(LocalRepositoryCreator.class));
+    URIish uri = new URIish("file:///source/someProject.git");
+
+    test.source.schedule(PROJECT, Constants.R_HEADS + Constants.MASTER, uri, newState());
+
+    Runnable task = test.pool.getTasks().get(0).command;
+    if (supportsVirtualThreads()) {
+      assertThat(task).isNotInstanceOf(FetchOne.class);
+    } else {
+      assertThat(task).isSameInstanceAs(test.source.getQueueInfo().pending.get(uri));
+    }
+  }
+
+  private FetchOne blockingOp() {
+    FetchOne op = mock(FetchOne.class);
+    doAnswer(
+            invocation -> {
+              maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                // Cancelled while running.
+                Thread.currentThread().interrupt();
+              } finally {
+                running.decrementAndGet();
+              }
+              return null;
+            })
+        .when(op)
+        .run();
+    return op;
+  }
+
+  private void waitForRunning(int expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (running.get() < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(running.get()).isEqualTo(expected);
+  }
+
+  private static boolean supportsVirtualThreads() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static ReplicationState newState() {
+    return new ReplicationState(mock(FetchResultProcessing.class));
+  }
+}